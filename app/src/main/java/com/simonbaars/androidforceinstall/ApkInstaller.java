@@ -0,0 +1,744 @@
+package com.simonbaars.androidforceinstall;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipFile;
+
+/**
+ * The force install flow for a single APK or split bundle: a plain install first,
+ * and on failure the clean install or direct APK replacement recovery paths.
+ * Has no UI of its own so it can be driven by the activity or by a batch.
+ */
+public class ApkInstaller {
+
+    /**
+     * Receives human readable progress messages. Called from the worker thread.
+     */
+    public interface StatusListener {
+        void onStatus(String message);
+    }
+
+    // Content hashes survive restarts, see HashIndex
+    private static HashIndex hashIndex;
+    private static StagingCache stagingCache;
+    private static InstallJournal installJournal;
+    private static MetricsLog metricsLog;
+
+    private final Context context;
+    private final RootShell shell;
+    private final Readiness readiness;
+    // Where the direct replacement of the current install got to, see InstallJournal
+    private InstallJournal.Item journal = InstallJournal.Item.NONE;
+
+    public ApkInstaller(Context context, RootShell shell) {
+        this.context = context.getApplicationContext();
+        this.shell = shell;
+        this.readiness = new Readiness(shell);
+    }
+
+    /**
+     * Installs the APK at {@code apkFile}, picking the strategy up front where
+     * possible and falling back to the recovery paths if a plain install fails.
+     */
+    public InstallResult install(File apkFile, StatusListener listener, InstallMetrics metrics) {
+        InstallMetrics.Stage stage = metrics.begin("preflight");
+        Preflight.Plan plan = preflight(apkFile);
+        metrics.end(stage, 0, plan != null);
+        return install(apkFile, plan, listener, metrics);
+    }
+
+    /**
+     * Compares the APK's signers with the installed package. Returns null for
+     * bundles and for APKs that cannot be read, which take the old route of
+     * trying a plain install first.
+     */
+    public Preflight.Plan preflight(File apkFile) {
+        if (ApkBundle.isBundle(apkFile.getName())) {
+            return null;
+        }
+        try {
+            HashIndex index = hashIndex(context);
+            return preflight(ApkReader.read(apkFile), () -> index.hash(apkFile));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param newHash lazily hashes the new APK for the up to date check
+     */
+    public Preflight.Plan preflight(ApkInfo apk, Preflight.ContentHash newHash) {
+        return new Preflight(shell, hashIndex(context)).plan(apk, newHash);
+    }
+
+    static synchronized HashIndex hashIndex(Context context) {
+        if (hashIndex == null) {
+            hashIndex = new HashIndex(new File(context.getFilesDir(), "hash-index.tsv"));
+        }
+        return hashIndex;
+    }
+
+    static synchronized StagingCache stagingCache(Context context) {
+        if (stagingCache == null) {
+            stagingCache = new StagingCache(new File(context.getCacheDir(), "staging"),
+                    StagingCache.DEFAULT_MAX_BYTES, hashIndex(context));
+        }
+        return stagingCache;
+    }
+
+    static synchronized InstallJournal installJournal(Context context) {
+        if (installJournal == null) {
+            installJournal = new InstallJournal(new File(context.getFilesDir(), "install-journal.tsv"),
+                    new UriGrants(context.getContentResolver()));
+        }
+        return installJournal;
+    }
+
+    static synchronized MetricsLog metricsLog(Context context) {
+        if (metricsLog == null) {
+            metricsLog = new MetricsLog(new File(context.getFilesDir(), "install-metrics.jsonl"));
+        }
+        return metricsLog;
+    }
+
+    /**
+     * Records the steps of the installs that follow in {@code journal}, so a
+     * direct replacement the process does not live to finish can be repaired.
+     */
+    public void setJournal(InstallJournal.Item journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Starts the metrics of one install, counting this installer's shell round trips.
+     */
+    public InstallMetrics newMetrics(String name) {
+        return new InstallMetrics(name, shell);
+    }
+
+    /**
+     * Finishes {@code metrics} with the outcome of the install and appends it to the log.
+     */
+    public void record(InstallMetrics metrics, InstallResult result) {
+        metrics.finish(result.isSuccess());
+        metricsLog(context).append(metrics);
+    }
+
+    /**
+     * Installs {@code apkFile} following a plan from {@link #preflight}, which
+     * may be null.
+     */
+    public InstallResult install(File apkFile, Preflight.Plan plan, StatusListener listener,
+                                 InstallMetrics metrics) {
+        try {
+            if (plan != null) {
+                metrics.setPackageName(plan.getApk().getPackageName());
+                metrics.setStrategy(plan.getStrategy().name());
+            }
+            if (plan != null && plan.getStrategy() == Preflight.Strategy.UP_TO_DATE) {
+                // Nothing changed, leave the running app alone
+                return InstallResult.success(context.getString(R.string.already_up_to_date,
+                        plan.getApk().getPackageName()));
+            }
+            if (plan != null && plan.getStrategy() == Preflight.Strategy.DIRECT_REPLACEMENT) {
+                // Known signature mismatch, skip the pm install that would fail anyway
+                listener.onStatus("Signature mismatch detected. Replacing APK directly...");
+                return replaceDirectly(singleApk(apkFile), plan.getApk().getPackageName(),
+                        plan.getInstalledPaths(), listener, metrics);
+            }
+
+            ShellResult result = installFresh(apkFile, metrics);
+            if (result.isSuccess()) {
+                return InstallResult.success(context.getString(R.string.install_success));
+            }
+            return recover(apkFile, result, listener, metrics);
+        } catch (IOException e) {
+            return InstallResult.failure(context.getString(R.string.install_error, e.getMessage()));
+        }
+    }
+
+    /**
+     * Makes a successful install available to {@code users} too, with one
+     * {@code pm install-existing} each instead of writing the APK again, and
+     * adds a line per user to the status. {@code apkFile}, which may be null,
+     * is read for the package name if the install did not already tell it.
+     */
+    public InstallResult installForUsers(InstallResult result, File apkFile, List<DeviceUser> users,
+                                         StatusListener listener, InstallMetrics metrics) {
+        if (!result.isSuccess() || users.isEmpty()) {
+            return result;
+        }
+        String packageName = metrics.getPackageName();
+        if (packageName == null && apkFile != null && !ApkBundle.isBundle(apkFile.getName())) {
+            try {
+                packageName = ApkReader.read(apkFile).getPackageName();
+                metrics.setPackageName(packageName);
+            } catch (IOException e) {
+                // Reported below like any other unknown package
+            }
+        }
+        if (packageName == null) {
+            return InstallResult.success(result.getStatus()
+                            + "\n\nNot installed for other users: could not tell the package name",
+                    result.getToast());
+        }
+
+        listener.onStatus(context.getString(R.string.installing_for_users, users.size()));
+        InstallMetrics.Stage stage = metrics.begin("install for users");
+        List<UserFanOut.Result> results = new UserFanOut(shell, InstallJobs.get(context).workers())
+                .installExisting(packageName, users);
+        StringBuilder status = new StringBuilder(result.getStatus()).append("\n");
+        List<String> failed = new ArrayList<>();
+        for (UserFanOut.Result userResult : results) {
+            status.append("\nUser ").append(userResult.getUser()).append(": ")
+                    .append(userResult.isSuccess() ? "installed" : "failed, " + userResult.getMessage());
+            if (!userResult.isSuccess()) {
+                failed.add(String.valueOf(userResult.getUser().getId()));
+            }
+        }
+        metrics.end(stage, 0, failed.isEmpty());
+        // The primary install went through either way, so this stays a success
+        return InstallResult.success(status.toString(), failed.isEmpty() ? result.getToast()
+                : result.getToast() + " Failed for user " + String.join(", ", failed) + ".");
+    }
+
+    /**
+     * Plain install of an APK, or of all splits of a bundle in one session.
+     */
+    private ShellResult installFresh(File apkFile, InstallMetrics metrics) throws IOException {
+        if (metrics.strategyUnset()) {
+            metrics.setStrategy(Preflight.Strategy.NORMAL_INSTALL.name());
+        }
+        if (ApkBundle.isBundle(apkFile.getName())) {
+            InstallMetrics.Stage stage = metrics.begin("session install");
+            ShellResult result = null;
+            try (ZipFile zip = new ZipFile(apkFile)) {
+                result = new SessionInstaller(shell, InstallJobs.get(context).workers())
+                        .installSplits(ApkBundle.splitsOf(zip), null);
+                return result;
+            } finally {
+                metrics.end(stage, apkFile.length(), result != null && result.isSuccess());
+            }
+        }
+
+        // Use pm install with root to force install the APK
+        // The -d flag allows downgrading
+        // The -r flag replaces existing application
+        // The --user flag ensures installation to user space (not private space)
+        InstallMetrics.Stage stage = metrics.begin("pm install");
+        ShellResult result = shell.exec(RootShell.INSTALL_TIMEOUT_MILLIS,
+                "pm install -d -r --user " + DeviceUser.PRIMARY_USER + " \"" + apkFile.getAbsolutePath() + "\""
+        );
+        metrics.end(stage, apkFile.length(), result.isSuccess());
+        return result;
+    }
+
+    /**
+     * Handles a failed first install attempt whose output is {@code result}.
+     * {@code apkFile} is a copy of the same APK or bundle on disk.
+     */
+    public InstallResult recover(File apkFile, ShellResult result, StatusListener listener,
+                                 InstallMetrics metrics) {
+        File bundleDir = new File(context.getCacheDir(), "bundle");
+        try {
+            // Split name -> APK file, base first. A plain APK is just its base.
+            Map<String, File> newApks;
+            if (ApkBundle.isBundle(apkFile.getName())) {
+                InstallMetrics.Stage stage = metrics.begin("extract bundle");
+                newApks = ApkBundle.extract(apkFile, bundleDir);
+                metrics.end(stage, totalLength(newApks.values()), true);
+            } else {
+                newApks = singleApk(apkFile);
+            }
+            return recover(apkFile, newApks, result, listener, metrics);
+        } catch (IOException e) {
+            return InstallResult.failure(context.getString(R.string.install_error, e.getMessage()));
+        } finally {
+            deleteRecursively(bundleDir);
+        }
+    }
+
+    private InstallResult recover(File apkFile, Map<String, File> newApks, ShellResult result,
+                                  StatusListener listener, InstallMetrics metrics) throws IOException {
+        String output = String.join("\n", result.getOut());
+
+        // Extract package name straight from the APK's manifest
+        // We need this to check installation status and handle special cases
+        String packageName = null;
+        try {
+            packageName = ApkReader.read(newApks.get(ApkBundle.BASE)).getPackageName();
+        } catch (IOException e) {
+            // Not a readable APK
+        }
+
+        // Check for signature mismatch errors
+        // When an APK with a different signature is installed over an existing app,
+        // Android refuses the installation for security reasons.
+        // Our NEW approach: replace APK file directly on filesystem
+        // This preserves all app data since we don't uninstall
+        //
+        // WARNING: This approach bypasses Android's security checks
+        // - The app may fail signature verification on launch
+        // - PackageManager cache may become out of sync
+        // - May not work on all Android versions
+        boolean isSignatureMismatch = PmOutput.isSignatureMismatch(output);
+
+        if (isSignatureMismatch) {
+            listener.onStatus("Signature mismatch detected. Replacing APK directly...");
+        }
+
+        if (packageName == null) {
+            // Could not extract package name
+            // This shouldn't happen often, but if it does, just report the original error
+            String error = output.isEmpty() ? "Unknown error" : output;
+            return InstallResult.failure(context.getString(R.string.install_error, error));
+        }
+
+        // Check if the app is currently installed
+        boolean isAppInstalled = false;
+        try {
+            context.getPackageManager().getPackageInfo(packageName, 0);
+            isAppInstalled = true;
+        } catch (PackageManager.NameNotFoundException e) {
+            // App is not installed
+        }
+
+        if (!isAppInstalled) {
+            // App is not installed according to PackageManager
+            // This could be:
+            // 1. A fresh install attempt with signature mismatch detection (false positive)
+            // 2. A corrupted installation with leftover files
+            //
+            // In either case, we need to clean up and install fresh
+            return cleanInstall(apkFile, packageName, listener, metrics);
+        }
+
+        // If we reach here, the app IS installed and we have a signature mismatch
+        // Only proceed with direct APK replacement if it's actually a signature mismatch
+        if (!isSignatureMismatch) {
+            // Installation failed for a different reason (not signature mismatch)
+            // and the app IS installed, so just report the error
+            String error = output.isEmpty() ? "Unknown error" : output;
+            return InstallResult.failure("Installation failed: " + error,
+                    context.getString(R.string.install_error, error));
+        }
+
+        return replaceDirectly(newApks, packageName, null, listener, metrics);
+    }
+
+    private InstallResult cleanInstall(File apkFile, String packageName, StatusListener listener,
+                                       InstallMetrics metrics) throws IOException {
+        listener.onStatus("App not installed or corrupted. Cleaning up and installing...");
+        metrics.setPackageName(packageName);
+        metrics.setStrategy(Preflight.Strategy.CLEAN_INSTALL.name());
+
+        // Try to clean up any corruption and install fresh
+        // The uninstall will fail if nothing exists, but that's okay
+        // Use --user to ensure operations in user space
+        InstallMetrics.Stage stage = metrics.begin("pm uninstall");
+        ShellResult uninstallResult = shell.exec("pm uninstall --user " + DeviceUser.PRIMARY_USER + " " + packageName);
+        metrics.end(stage, 0, uninstallResult.isSuccess());
+        ShellResult forceInstallResult = installFresh(apkFile, metrics);
+
+        if (forceInstallResult.isSuccess() || forceInstallResult.getOut().toString().contains("Success")) {
+            return InstallResult.success("App installed successfully", "App installed successfully!");
+        }
+        String error = forceInstallResult.getOut().isEmpty() ?
+                "Unknown error" :
+                String.join("\n", forceInstallResult.getOut());
+        return InstallResult.failure("Installation failed: " + error);
+    }
+
+    /**
+     * Replaces the installed APK files in place. {@code installedApkPaths} may
+     * be null, in which case they are looked up with {@code pm path}.
+     */
+    private InstallResult replaceDirectly(Map<String, File> newApks, String packageName,
+                                          List<String> installedApkPaths, StatusListener listener,
+                                          InstallMetrics metrics) {
+        metrics.setPackageName(packageName);
+        metrics.setStrategy(Preflight.Strategy.DIRECT_REPLACEMENT.name());
+        if (installedApkPaths == null || installedApkPaths.isEmpty()) {
+            listener.onStatus("Finding installed APK location for " + packageName + "...");
+
+            // Get the APK installation path(s)
+            // Use --user to query user space
+            InstallMetrics.Stage stage = metrics.begin("pm path");
+            ShellResult pathResult = shell.exec(RootShell.QUERY_TIMEOUT_MILLIS,
+                    "pm path --user " + DeviceUser.PRIMARY_USER + " " + packageName
+            );
+            metrics.end(stage, 0, pathResult.isSuccess());
+
+            if (!pathResult.isSuccess() || pathResult.getOut().isEmpty()) {
+                return InstallResult.failure("Could not find installed APK location");
+            }
+
+            // Parse APK paths - can be multiple for split APKs
+            installedApkPaths = PmOutput.parsePackagePaths(pathResult.getOut());
+        }
+
+        if (installedApkPaths.isEmpty()) {
+            return InstallResult.failure("Could not parse APK paths");
+        }
+
+        // Work out which new file goes where. Splits are matched by name, so a
+        // bundle replaces every installed file as one set.
+        Map<String, String> replacements = new LinkedHashMap<>();
+        String baseApkPath = installedApkPaths.get(0);
+        if (newApks.size() == 1) {
+            // A single APK can only stand in for base.apk
+            if (installedApkPaths.size() > 1) {
+                listener.onStatus("Warning: App uses split APKs. This may not work correctly.");
+            }
+            replacements.put(newApks.get(ApkBundle.BASE).getAbsolutePath(), baseApkPath);
+        } else {
+            for (String installedPath : installedApkPaths) {
+                String splitName = ApkBundle.splitNameOf(installedPath);
+                File newApk = newApks.get(splitName);
+                if (newApk == null) {
+                    return InstallResult.failure("APK replacement failed: bundle has no split " + splitName
+                            + " to replace the installed one");
+                }
+                replacements.put(newApk.getAbsolutePath(), installedPath);
+            }
+            // Splits the installed app does not have yet go next to base.apk
+            String installDir = baseApkPath.substring(0, baseApkPath.lastIndexOf('/'));
+            for (Map.Entry<String, File> newApk : newApks.entrySet()) {
+                if (!replacements.containsKey(newApk.getValue().getAbsolutePath())) {
+                    replacements.put(newApk.getValue().getAbsolutePath(),
+                            installDir + "/split_" + newApk.getKey() + ".apk");
+                }
+            }
+        }
+
+        // A truncated or corrupt file copied over the installed one would leave
+        // an app that no longer starts, so check every entry before touching it
+        listener.onStatus("Verifying APK file(s)...");
+        InstallMetrics.Stage stage = metrics.begin("verify");
+        String invalid = verify(newApks);
+        metrics.end(stage, totalLength(newApks.values()), invalid == null);
+        if (invalid != null) {
+            return InstallResult.failure("APK replacement refused: " + invalid);
+        }
+
+        listener.onStatus("Force-stopping " + packageName + "...");
+        journal.replacing(packageName);
+
+        // Force stop the app before replacing APK, and keep the current files so
+        // the replacement can be rolled back. Hard links make the snapshot free,
+        // and the renames below leave them untouched. Neither depends on the
+        // other, so both go out in one round trip.
+        // The replaced files back the app in every user, so stop it in all of them
+        stage = metrics.begin("force-stop and snapshot");
+        SnapshotStore store = snapshots();
+        SnapshotStore.Snapshot snapshot = store.newSnapshot(packageName);
+        List<ShellResult> stopAndSnapshot = shell.execBatch(RootShell.DEFAULT_TIMEOUT_MILLIS,
+                "am force-stop --user all " + packageName,
+                store.takeCommand(snapshot, installedApkPaths));
+        ShellResult stopResult = stopAndSnapshot.get(0);
+        snapshot = store.taken(snapshot, stopAndSnapshot.get(1));
+        metrics.end(stage, 0, stopResult.isSuccess() && snapshot != null);
+        journal.snapshot(snapshot != null ? snapshot.getDir() : null, replacements.values());
+
+        if (!stopResult.isSuccess()) {
+            listener.onStatus("Warning: Could not force-stop app");
+        }
+        if (snapshot == null) {
+            listener.onStatus("Warning: Could not take a snapshot, rollback will not be possible");
+        }
+
+        // Wait until the app is really gone instead of a fixed sleep
+        stage = metrics.begin("wait for stop");
+        Readiness.Wait stopped = readiness.processGone(packageName);
+        metrics.end(stage, 0, stopped.isReady());
+        if (!stopped.isReady()) {
+            listener.onStatus("Warning: " + stopped);
+        }
+
+        listener.onStatus("Replacing APK file(s)...");
+
+        // Stage the new file(s) next to the installed ones, then swap them in
+        // with a rename each, so a crash never leaves a half-copied base.apk
+        stage = metrics.begin("replace");
+        ShellResult replaceResult = new ApkReplacer(shell).replace(replacements);
+        metrics.end(stage, totalLength(newApks.values()), replaceResult.isSuccess());
+
+        if (!replaceResult.isSuccess()) {
+            String error = replaceResult.getOut().isEmpty() ?
+                    "Failed to replace APK file" :
+                    String.join("\n", replaceResult.getOut());
+            return InstallResult.failure("APK replacement failed: " + error);
+        }
+        journal.replaced(new ArrayList<>(replacements.values()));
+
+        listener.onStatus("Registering APK with Package Manager...");
+
+        // Now that the APK file is replaced, install it properly to register with PackageManager
+        // This ensures the app is properly registered and won't corrupt/disappear
+        // Since the APK is already in place at the correct location, this won't change the UID or data
+        ShellResult registerResult = register(packageName, new ArrayList<>(replacements.values()), metrics);
+        if (registerResult.isSuccess()) {
+            journal.registered();
+        }
+
+        if (!registerResult.isSuccess()) {
+            // Registration failed, but APK is already replaced
+            // Report a warning but don't fail - the app might still work
+            String warning = registerResult.getOut().isEmpty() ?
+                    "Unknown error" :
+                    String.join("\n", registerResult.getOut());
+            return InstallResult.success(
+                    "APK replaced but registration had issues: " + warning + "\n\nApp data preserved. You may need to reboot the device."
+                            + (snapshot != null ? " If the app does not start, roll it back." : ""),
+                    "APK replaced with warnings. Reboot may be needed.");
+        }
+
+        // Success - APK is both replaced and registered
+        return InstallResult.success(
+                "APK replaced and registered successfully. App data preserved.",
+                "APK installed successfully with data preserved!");
+    }
+
+    /**
+     * Checks that each APK is a complete archive with intact entries. Splits
+     * carry no code, so only the base must have classes.dex.
+     *
+     * @return what is wrong, or null if every file is fine
+     */
+    private String verify(Map<String, File> apks) {
+        InstallJobs jobs = InstallJobs.get(context);
+        // One share per worker thread, and one for this install thread; more would only queue
+        ApkVerifier verifier = new ApkVerifier(jobs.workers(), jobs.workerThreads() + 1);
+        for (Map.Entry<String, File> apk : apks.entrySet()) {
+            try {
+                if (ApkBundle.BASE.equals(apk.getKey())) {
+                    verifier.verify(apk.getValue(), ApkVerifier.MANIFEST, ApkVerifier.CLASSES_DEX);
+                } else {
+                    verifier.verify(apk.getValue(), ApkVerifier.MANIFEST);
+                }
+            } catch (IOException e) {
+                return apk.getValue().getName() + ": " + e.getMessage();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Registers APK files that are already in place with PackageManager and
+     * waits until it reports them.
+     */
+    private ShellResult register(String packageName, List<String> targets, InstallMetrics metrics) {
+        // The files changed under the same path, drop what preflight read of the old ones
+        Preflight.forget(packageName);
+
+        // Read the version before pm moves the files, to know when the new one is live
+        long versionCode;
+        try {
+            versionCode = ApkReader.read(new File(targets.get(0))).getVersionCode();
+        } catch (IOException | SecurityException e) {
+            versionCode = -1;
+        }
+
+        // Use --user to ensure registration in user space
+        // Split installs are registered as one multi-APK session
+        InstallMetrics.Stage stage = metrics.begin("register");
+        ShellResult registerResult = targets.size() > 1
+                ? new SessionInstaller(shell).installPaths(targets)
+                : shell.exec(RootShell.INSTALL_TIMEOUT_MILLIS, "pm install -d -r --user " + DeviceUser.PRIMARY_USER + " \"" + targets.get(0) + "\"");
+        metrics.end(stage, 0, registerResult.isSuccess());
+
+        if (registerResult.isSuccess()) {
+            // Wait for PackageManager to settle instead of a fixed sleep
+            stage = metrics.begin("wait for register");
+            Readiness.Wait registered = readiness.packageRegistered(packageName, versionCode);
+            metrics.end(stage, 0, registered.isReady());
+        }
+        return registerResult;
+    }
+
+    /**
+     * Shell round trips made so far, see {@link RootShell#getRoundTrips()}.
+     */
+    public long getRoundTrips() {
+        return shell.getRoundTrips();
+    }
+
+    /**
+     * How long each readiness wait of this installer took, oldest first.
+     */
+    public List<Readiness.Wait> getWaits() {
+        return readiness.getWaits();
+    }
+
+    /**
+     * Packages whose APK files were replaced and can be rolled back.
+     */
+    public List<String> rollbackCandidates() {
+        return snapshots().packages();
+    }
+
+    /**
+     * Puts back the APK files {@code packageName} had before its last direct
+     * replacement and registers them again. The snapshot is linked into place,
+     * so this costs almost no I/O, and it is kept for another rollback.
+     */
+    public InstallResult rollback(String packageName, StatusListener listener) {
+        InstallMetrics metrics = newMetrics("rollback");
+        metrics.setPackageName(packageName);
+        metrics.setStrategy("ROLLBACK");
+        InstallResult result = rollback(packageName, listener, metrics);
+        record(metrics, result);
+        return result;
+    }
+
+    /**
+     * Undoes a direct replacement the process died in the middle of, by
+     * restoring the snapshot it took first. Refuses if that snapshot is no
+     * longer the latest, as restoring another one would be a surprise.
+     */
+    public InstallResult rollbackInterrupted(String packageName, String snapshotDir, StatusListener listener) {
+        InstallMetrics metrics = newMetrics("recovery");
+        metrics.setPackageName(packageName);
+        metrics.setStrategy("ROLLBACK");
+        SnapshotStore.Snapshot snapshot = snapshots().latest(packageName);
+        InstallResult result = snapshot != null && snapshot.getDir().equals(snapshotDir)
+                ? rollback(snapshot, listener, metrics)
+                : InstallResult.failure("Snapshot of " + packageName + " is gone, it may be half replaced");
+        record(metrics, result);
+        return result;
+    }
+
+    /**
+     * Registers the files of a direct replacement the process died before
+     * registering. The files themselves were all replaced.
+     */
+    public InstallResult finishReplacement(String packageName, List<String> targets, StatusListener listener) {
+        InstallMetrics metrics = newMetrics("recovery");
+        metrics.setPackageName(packageName);
+        metrics.setStrategy(Preflight.Strategy.DIRECT_REPLACEMENT.name());
+        listener.onStatus("Registering APK with Package Manager...");
+        ShellResult registerResult = register(packageName, targets, metrics);
+        InstallResult result = registerResult.isSuccess()
+                ? InstallResult.success("Finished replacing " + packageName + ". App data preserved.")
+                : InstallResult.failure("Registering " + packageName + " failed: "
+                + String.join("\n", registerResult.getOut()));
+        record(metrics, result);
+        return result;
+    }
+
+    private InstallResult rollback(String packageName, StatusListener listener, InstallMetrics metrics) {
+        SnapshotStore.Snapshot snapshot = snapshots().latest(packageName);
+        if (snapshot == null) {
+            return InstallResult.failure("No snapshot of " + packageName + " to roll back to");
+        }
+        return rollback(snapshot, listener, metrics);
+    }
+
+    private InstallResult rollback(SnapshotStore.Snapshot snapshot, StatusListener listener, InstallMetrics metrics) {
+        String packageName = snapshot.getPackageName();
+        SnapshotStore store = snapshots();
+
+        // Registration may have moved the package to a new directory since the
+        // snapshot was taken, so restore into wherever it lives now
+        listener.onStatus("Finding installed APK location for " + packageName + "...");
+        List<ShellResult> lookups = shell.execBatch(RootShell.QUERY_TIMEOUT_MILLIS,
+                store.installedPathsCommand(snapshot),
+                "pm path --user " + DeviceUser.PRIMARY_USER + " " + packageName);
+        List<String> snapshotPaths = SnapshotStore.parseInstalledPaths(lookups.get(0));
+        if (snapshotPaths.isEmpty()) {
+            return InstallResult.failure("Snapshot of " + packageName + " is empty");
+        }
+        List<String> currentPaths = PmOutput.parsePackagePaths(lookups.get(1).getOut());
+        String snapshotBase = snapshotPaths.get(0);
+        String installDir = currentPaths.isEmpty()
+                ? snapshotBase.substring(0, snapshotBase.lastIndexOf('/'))
+                : currentPaths.get(0).substring(0, currentPaths.get(0).lastIndexOf('/'));
+
+        Map<String, String> restores = new LinkedHashMap<>();
+        for (String snapshotPath : snapshotPaths) {
+            restores.put(snapshot.fileFor(snapshotPath), installDir + "/" + SnapshotStore.fileName(snapshotPath));
+        }
+        // Splits added by the replacement would not match the restored base
+        List<String> extra = new ArrayList<>();
+        for (String currentPath : currentPaths) {
+            if (!restores.containsValue(currentPath)) {
+                extra.add("rm -f \"" + currentPath + "\"");
+            }
+        }
+
+        listener.onStatus("Force-stopping " + packageName + "...");
+        shell.exec("am force-stop --user all " + packageName);
+        readiness.processGone(packageName);
+
+        listener.onStatus("Restoring snapshot...");
+        InstallMetrics.Stage stage = metrics.begin("restore snapshot");
+        ShellResult restoreResult = new ApkReplacer(shell).replace(restores, true);
+        metrics.end(stage, 0, restoreResult.isSuccess());
+        if (!restoreResult.isSuccess()) {
+            String error = restoreResult.getOut().isEmpty() ?
+                    "Failed to restore APK file" :
+                    String.join("\n", restoreResult.getOut());
+            return InstallResult.failure("Rollback failed: " + error);
+        }
+        if (!extra.isEmpty()) {
+            // One command, so a failed rm is not hidden by the exit code of the next
+            ShellResult removeResult = shell.exec(String.join(" && ", extra));
+            if (!removeResult.isSuccess()) {
+                String error = removeResult.getOut().isEmpty() ?
+                        "Failed to remove newer split APKs" :
+                        String.join("\n", removeResult.getOut());
+                return InstallResult.failure("Rollback failed: " + error);
+            }
+        }
+        store.touch(snapshot);
+
+        listener.onStatus("Registering APK with Package Manager...");
+        ShellResult registerResult = register(packageName, new ArrayList<>(restores.values()), metrics);
+        if (!registerResult.isSuccess()) {
+            String warning = registerResult.getOut().isEmpty() ?
+                    "Unknown error" :
+                    String.join("\n", registerResult.getOut());
+            return InstallResult.success(
+                    "Snapshot restored but registration had issues: " + warning + "\n\nYou may need to reboot the device.",
+                    "Rolled back with warnings. Reboot may be needed.");
+        }
+        return InstallResult.success(
+                "Rolled " + packageName + " back to its previous APK. App data preserved.",
+                "Rolled back successfully!");
+    }
+
+    private SnapshotStore snapshots() {
+        return new SnapshotStore(shell, SnapshotStore.DEFAULT_MAX_BYTES);
+    }
+
+    private static long totalLength(Iterable<File> files) {
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        return total;
+    }
+
+    private static Map<String, File> singleApk(File apkFile) {
+        Map<String, File> apks = new LinkedHashMap<>();
+        apks.put(ApkBundle.BASE, apkFile);
+        return apks;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,139 @@
+package com.simonbaars.androidforceinstall;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Replaces installed APK files without ever leaving a half-written file at the
+ * live path. Each new file is first copied next to its target, on the same
+ * filesystem, where it gets its mode, owner and SELinux label and is synced to
+ * disk. Only then are all files swapped in with {@code mv}, which is a single
+ * rename per file, so the app is only broken for the time the renames take.
+ * The previous files are kept as hard links until every rename has gone
+ * through, so a failed rename puts the ones before it back as well.
+ */
+public class ApkReplacer {
+
+    // Not ending in .apk, so PackageManager never picks up a leftover staging file
+    static final String STAGING_SUFFIX = ".afi-staging";
+    static final String PREVIOUS_SUFFIX = ".afi-previous";
+
+    // Printed after each rename, so a failed swap tells which targets it already replaced
+    private static final String SWAPPED = "afi-swapped ";
+
+    private final RootShell shell;
+
+    public ApkReplacer(RootShell shell) {
+        this.shell = shell;
+    }
+
+    /**
+     * Replaces every target with its source, in iteration order.
+     *
+     * @param replacements source path on the app side -> installed target path
+     */
+    public ShellResult replace(Map<String, String> replacements) {
+        return replace(replacements, false);
+    }
+
+    /**
+     * Like {@link #replace(Map)}, but with {@code link} set sources on the same
+     * filesystem as their targets are hard linked into place instead of
+     * copied, which is what makes restoring a snapshot nearly free. Sources
+     * that cannot be linked are still copied.
+     */
+    public ShellResult replace(Map<String, String> replacements, boolean link) {
+        // Stage everything first, so a failure leaves every live file untouched
+        List<String> stage = new ArrayList<>();
+        List<String> cleanup = new ArrayList<>();
+        for (Map.Entry<String, String> replacement : replacements.entrySet()) {
+            String source = replacement.getKey();
+            String target = replacement.getValue();
+            String staged = stagingPath(target);
+            String previous = previousPath(target);
+            String copy = "cp -f \"" + source + "\" \"" + staged + "\"";
+            stage.add((link ? "{ ln -f \"" + source + "\" \"" + staged + "\" 2>/dev/null || " + copy + "; }" : copy) + " &&"
+                    + " chmod 644 \"" + staged + "\" &&"
+                    + " chown system:system \"" + staged + "\" &&"
+                    + " restorecon \"" + staged + "\" &&"
+                    // Per-file fsync where toybox supports it, a global sync otherwise
+                    + " { sync \"" + staged + "\" 2>/dev/null || sync; } &&"
+                    // Keep the live file reachable until the whole set is swapped
+                    + " { [ ! -e \"" + target + "\" ] || ln -f \"" + target + "\" \"" + previous + "\"; }");
+            cleanup.add("rm -f \"" + staged + "\" \"" + previous + "\"");
+        }
+        ShellResult staging = shell.exec(String.join(" && ", stage));
+        if (!staging.isSuccess()) {
+            shell.exec(cleanup.toArray(new String[0]));
+            return staging;
+        }
+
+        // Swap them in as one ordered set of renames
+        List<String> swap = new ArrayList<>();
+        for (String target : replacements.values()) {
+            swap.add("mv -f \"" + stagingPath(target) + "\" \"" + target + "\" && echo \"" + SWAPPED + target + "\"");
+        }
+        ShellResult swapped = shell.exec(String.join(" && ", swap));
+        List<String> out = new ArrayList<>();
+        List<String> done = new ArrayList<>();
+        for (String line : swapped.getOut()) {
+            if (line.startsWith(SWAPPED)) {
+                done.add(line.substring(SWAPPED.length()));
+            } else {
+                out.add(line);
+            }
+        }
+        if (!swapped.isSuccess() && !done.isEmpty()) {
+            out.addAll(undo(done));
+        }
+        shell.exec(cleanup.toArray(new String[0]));
+        return new ShellResult(swapped.getCode(), out);
+    }
+
+    /**
+     * Puts the previous files back over targets that were already swapped, or
+     * removes targets that did not exist before. Returns lines describing
+     * what happened to each.
+     */
+    private List<String> undo(List<String> targets) {
+        List<String> restore = new ArrayList<>();
+        for (String target : targets) {
+            String previous = previousPath(target);
+            restore.add("if [ -e \"" + previous + "\" ]; then mv -f \"" + previous + "\" \"" + target + "\";"
+                    + " else rm -f \"" + target + "\"; fi");
+        }
+        List<ShellResult> results = shell.execBatch(RootShell.DEFAULT_TIMEOUT_MILLIS, restore.toArray(new String[0]));
+        List<String> out = new ArrayList<>();
+        for (int i = 0; i < targets.size(); i++) {
+            out.add((results.get(i).isSuccess() ? "Restored " : "Left replaced: ") + targets.get(i));
+        }
+        return out;
+    }
+
+    /**
+     * Clears up after a {@link #replace} the process died in: staged copies
+     * next to {@code targets} are removed, a target left missing gets its
+     * previous file back, and the links to previous files go.
+     */
+    public ShellResult cleanUp(Collection<String> targets) {
+        List<String> commands = new ArrayList<>();
+        for (String target : targets) {
+            String previous = previousPath(target);
+            commands.add("rm -f \"" + stagingPath(target) + "\"");
+            commands.add("{ [ -e \"" + target + "\" ] || [ ! -e \"" + previous + "\" ]"
+                    + " || mv -f \"" + previous + "\" \"" + target + "\"; }");
+            commands.add("rm -f \"" + previous + "\"");
+        }
+        return shell.exec(commands.toArray(new String[0]));
+    }
+
+    static String stagingPath(String target) {
+        return target + STAGING_SUFFIX;
+    }
+
+    static String previousPath(String target) {
+        return target + PREVIOUS_SUFFIX;
+    }
+}
@@ -0,0 +1,380 @@
+package com.simonbaars.androidforceinstall;
+
+import android.content.Context;
+import android.net.Uri;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Installs many APKs as a pipeline. Staging, hashing and manifest parsing run
+ * concurrently on a bounded pool, while the pm commits run one after another
+ * on the calling thread as soon as each item is ready, so a batch takes about
+ * as long as its slowest stage rather than the sum of all of them.
+ *
+ * <p>{@link #cancel()} stops the copies in flight and skips every item that
+ * is not committed yet; the commit that is running is always finished.
+ */
+public class BatchInstaller {
+
+    public enum State {
+        PENDING, PREPARING, READY, INSTALLING, INSTALLED, SKIPPED, FAILED
+    }
+
+    /**
+     * One APK in the batch.
+     */
+    public static class Item {
+        final Uri uri;
+        final String name;
+        // Content a previous, interrupted run already staged
+        final String cachedSha256;
+        volatile State state = State.PENDING;
+        String sha256;
+        String packageName;
+        Preflight.Plan plan;
+        InstallMetrics metrics;
+        StagingCache.Entry staged;
+        InstallJournal.Item journal = InstallJournal.Item.NONE;
+        String message;
+
+        public Item(Uri uri, String name) {
+            this(uri, name, null);
+        }
+
+        /**
+         * An item staged before, which is taken from the staging cache by
+         * {@code cachedSha256} if it is still there. {@code uri} is only read if
+         * not, and may be null.
+         */
+        public Item(Uri uri, String name, String cachedSha256) {
+            this.uri = uri;
+            this.name = name;
+            this.cachedSha256 = cachedSha256;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+
+    /**
+     * Receives per item progress. Called from the batch threads.
+     */
+    public interface Listener {
+        void onItemChanged(Item item, int finished, int total);
+    }
+
+    /**
+     * Aggregated result of a batch.
+     */
+    public static class Summary {
+        private final List<Item> items;
+        private final long elapsedMs;
+        private final long roundTrips;
+
+        Summary(List<Item> items, long elapsedMs, long roundTrips) {
+            this.items = items;
+            this.elapsedMs = elapsedMs;
+            this.roundTrips = roundTrips;
+        }
+
+        public int count(State state) {
+            int count = 0;
+            for (Item item : items) {
+                if (item.state == state) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        public long getElapsedMs() {
+            return elapsedMs;
+        }
+
+        public List<Item> getItems() {
+            return items;
+        }
+
+        public long getRoundTrips() {
+            return roundTrips;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append("Batch finished in ").append(elapsedMs / 1000).append(" s: ")
+                    .append(count(State.INSTALLED)).append(" installed, ")
+                    .append(count(State.SKIPPED)).append(" skipped, ")
+                    .append(count(State.FAILED)).append(" failed, ")
+                    .append(roundTrips).append(" shell round trips");
+            for (Item item : items) {
+                if (item.state != State.INSTALLED) {
+                    builder.append("\n").append(item.name).append(": ").append(item.message);
+                }
+            }
+            return builder.toString();
+        }
+    }
+
+    private final Context context;
+    private final ApkInstaller installer;
+    private final ExecutorService pool;
+    private final List<DeviceUser> users;
+    private final int threads;
+    private final Set<FileStager> copies = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private volatile boolean cancelled;
+
+    /**
+     * @param pool  runs the staging, shared with other work so a batch does not
+     *              start threads of its own
+     * @param users other users each installed package is also made available to
+     */
+    public BatchInstaller(Context context, ApkInstaller installer, ExecutorService pool, List<DeviceUser> users) {
+        this.context = context.getApplicationContext();
+        this.installer = installer;
+        this.pool = pool;
+        this.users = users;
+        this.threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Stops the batch after the commit in progress. Safe to call from any thread.
+     */
+    public void cancel() {
+        cancelled = true;
+        for (FileStager copy : copies) {
+            copy.cancel();
+        }
+    }
+
+    /**
+     * Runs the whole batch and blocks until every item is installed or failed.
+     *
+     * @param journal records each item's progress, so a batch cut short by the
+     *                process dying resumes where it stopped; may be null
+     */
+    public Summary run(List<Item> items, InstallJournal.Job journal, Listener listener) {
+        if (journal != null) {
+            for (int i = 0; i < items.size(); i++) {
+                items.get(i).journal = journal.item(i);
+            }
+        }
+        long start = System.currentTimeMillis();
+        long startRoundTrips = installer.getRoundTrips();
+        StagingCache cache = ApkInstaller.stagingCache(context);
+
+        CompletionService<Item> prepared = new ExecutorCompletionService<>(pool);
+        List<Future<Item>> futures = new ArrayList<>();
+        // Only stage a few items ahead of the commits, so a large batch never
+        // needs much more than a handful of APKs worth of cache space
+        int lookahead = threads * 2;
+        int submitted = 0;
+        int finished = 0;
+        Map<String, Item> seenHashes = new HashMap<>();
+        // Packages this batch already changed, whose prepared plans are stale
+        Set<String> committedPackages = new HashSet<>();
+
+        try {
+            while (submitted < items.size() && submitted < lookahead) {
+                futures.add(submitPrepare(prepared, items.get(submitted), submitted, cache, listener,
+                        items.size()));
+                submitted++;
+            }
+
+            while (finished < submitted) {
+                Item item;
+                try {
+                    item = prepared.take().get();
+                } catch (ExecutionException e) {
+                    // prepare() reports its own failures, this is never expected
+                    throw new IllegalStateException(e.getCause());
+                }
+                if (submitted < items.size() && !cancelled) {
+                    futures.add(submitPrepare(prepared, items.get(submitted), submitted, cache, listener,
+                            items.size()));
+                    submitted++;
+                }
+
+                if (cancelled) {
+                    item.state = State.SKIPPED;
+                    item.message = "Cancelled";
+                } else if (item.state == State.READY) {
+                    Item duplicate = seenHashes.get(item.sha256);
+                    if (duplicate != null) {
+                        item.state = State.SKIPPED;
+                        item.message = "Same APK as " + duplicate.name;
+                    } else {
+                        seenHashes.put(item.sha256, item);
+                        commit(item, committedPackages.contains(item.packageName), listener, finished, items.size());
+                        if (item.packageName != null) {
+                            committedPackages.add(item.packageName);
+                        }
+                    }
+                }
+                release(cache, item);
+                item.journal.done();
+                finished++;
+                listener.onItemChanged(item, finished, items.size());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // The pool is shared, so only stop this batch's own work
+            for (Future<Item> future : futures) {
+                future.cancel(true);
+            }
+        }
+        for (int i = submitted; i < items.size(); i++) {
+            Item item = items.get(i);
+            item.state = State.SKIPPED;
+            item.message = "Cancelled";
+            listener.onItemChanged(item, ++finished, items.size());
+        }
+
+        return new Summary(items, System.currentTimeMillis() - start,
+                installer.getRoundTrips() - startRoundTrips);
+    }
+
+    private Future<Item> submitPrepare(CompletionService<Item> prepared, Item item, int index, StagingCache cache,
+                                       Listener listener, int total) {
+        return prepared.submit(() -> {
+            prepare(item, cache, listener, total);
+            return item;
+        });
+    }
+
+    /**
+     * Copies the APK or bundle into the staging cache while hashing it, unless
+     * the cache already holds it, then reads the package name from a staged
+     * APK and plans its install. Planning queries PackageManager, which the shell pool lets several
+     * items do at the same time.
+     */
+    private void prepare(Item item, StagingCache cache, Listener listener, int total) {
+        item.state = State.PREPARING;
+        item.metrics = installer.newMetrics(item.name);
+        listener.onItemChanged(item, -1, total);
+        try {
+            // Resumed items come straight from the cache, without reading the source again
+            item.staged = item.cachedSha256 != null ? cache.pin(item.cachedSha256) : null;
+            if (item.staged == null && item.uri == null) {
+                fail(item, "No longer available, select it again", listener, -1, total);
+                return;
+            }
+            if (item.staged == null) {
+                item.staged = cache.find(context.getContentResolver(), item.uri);
+            }
+            if (item.staged == null) {
+                MessageDigest digest = StagingCache.newDigest();
+                InstallMetrics.Stage stage = item.metrics.begin("stage and hash");
+                // Hashed by the stager, a real file is still copied with transferTo
+                FileStager copy = new FileStager(null, digest);
+                copies.add(copy);
+                if (cancelled) {
+                    copy.cancel();
+                }
+                try {
+                    item.staged = cache.stage(context.getContentResolver(), item.uri, item.name, copy, digest);
+                } finally {
+                    copies.remove(copy);
+                }
+                item.metrics.end(stage, item.staged.getSize(), true);
+            }
+            item.sha256 = item.staged.getSha256();
+            if (!item.sha256.equals(item.cachedSha256)) {
+                item.journal.staged(item.sha256);
+            }
+            File target = item.staged.getFile();
+
+            if (!ApkBundle.isBundle(item.name)) {
+                ApkInfo apk;
+                try {
+                    apk = ApkReader.read(target);
+                } catch (IOException e) {
+                    fail(item, "Not a valid APK: " + e.getMessage(), listener, -1, total);
+                    return;
+                }
+                item.packageName = apk.getPackageName();
+                // The hash from staging doubles as the content hash for the up to date check
+                InstallMetrics.Stage stage = item.metrics.begin("preflight");
+                item.plan = installer.preflight(apk, () -> item.sha256);
+                item.metrics.end(stage, 0, item.plan != null);
+            }
+            item.state = State.READY;
+            listener.onItemChanged(item, -1, total);
+        } catch (Exception e) {
+            fail(item, "Error: " + e.getMessage(), listener, -1, total);
+        }
+    }
+
+    /**
+     * @param replan whether an earlier item of the batch installed the same
+     *               package since this one was planned
+     */
+    private void commit(Item item, boolean replan, Listener listener, int finished, int total) {
+        item.state = State.INSTALLING;
+        listener.onItemChanged(item, finished, total);
+
+        Preflight.Plan plan = item.plan;
+        if (replan && plan != null) {
+            InstallMetrics.Stage stage = item.metrics.begin("preflight");
+            plan = installer.preflight(plan.getApk(), () -> item.sha256);
+            item.metrics.end(stage, 0, plan != null);
+        }
+        ApkInstaller.StatusListener status = message -> {
+            item.message = message;
+            listener.onItemChanged(item, finished, total);
+        };
+        installer.setJournal(item.journal);
+        InstallResult result;
+        try {
+            result = installer.install(item.staged.getFile(), plan, status, item.metrics);
+            result = installer.installForUsers(result, item.staged.getFile(), users, status, item.metrics);
+        } finally {
+            installer.setJournal(InstallJournal.Item.NONE);
+        }
+        installer.record(item.metrics, result);
+        boolean upToDate = plan != null && plan.getStrategy() == Preflight.Strategy.UP_TO_DATE;
+        item.state = upToDate ? State.SKIPPED : result.isSuccess() ? State.INSTALLED : State.FAILED;
+        item.message = result.getStatus();
+    }
+
+    private static void fail(Item item, String message, Listener listener, int finished, int total) {
+        item.state = State.FAILED;
+        item.message = message;
+        listener.onItemChanged(item, finished, total);
+    }
+
+    /**
+     * Unpins the item's staged file, which stays in the cache for the next time.
+     */
+    private static void release(StagingCache cache, Item item) {
+        if (item.staged != null) {
+            cache.release(item.staged);
+            item.staged = null;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.simonbaars.androidforceinstall;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.provider.OpenableColumns;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+
+/**
+ * Copies a content URI into a local file with a {@link FileStager}, on the
+ * fastest path the provider allows.
+ */
+final class ContentStaging {
+
+    private ContentStaging() {
+    }
+
+    /**
+     * Stages {@code uri} into {@code target}. When the provider hands out a
+     * descriptor of a real file it is copied channel to channel; a pipe or
+     * socket, or a provider without descriptors, is read as a stream.
+     *
+     * @return number of bytes copied
+     */
+    static long stage(ContentResolver resolver, Uri uri, File target, FileStager stager) throws IOException {
+        ParcelFileDescriptor pfd;
+        try {
+            pfd = resolver.openFileDescriptor(uri, "r");
+        } catch (FileNotFoundException | SecurityException e) {
+            pfd = null;
+        }
+        if (pfd == null) {
+            try (InputStream in = resolver.openInputStream(uri)) {
+                if (in == null) {
+                    throw new IOException("Could not read file");
+                }
+                return stager.stage(in, -1, target);
+            }
+        }
+
+        // getStatSize is -1 for anything that is not a regular file
+        long size = pfd.getStatSize();
+        if (size < 0) {
+            try (InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pfd)) {
+                return stager.stage(in, -1, target);
+            }
+        }
+        try (FileInputStream in = new FileInputStream(pfd.getFileDescriptor());
+             FileChannel channel = in.getChannel()) {
+            return stager.stage(channel, target);
+        } finally {
+            pfd.close();
+        }
+    }
+
+    /**
+     * The size the provider reports for {@code uri}, or -1.
+     */
+    static long size(ContentResolver resolver, Uri uri) {
+        if (!"content".equals(uri.getScheme())) {
+            return -1;
+        }
+        Cursor cursor = resolver.query(uri, null, null, null, null);
+        try {
+            if (cursor != null && cursor.moveToFirst()) {
+                int sizeIndex = cursor.getColumnIndex(OpenableColumns.SIZE);
+                if (sizeIndex >= 0 && !cursor.isNull(sizeIndex)) {
+                    return cursor.getLong(sizeIndex);
+                }
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The modification time a document provider reports for {@code uri}, or -1.
+     */
+    static long lastModified(ContentResolver resolver, Uri uri) {
+        Cursor cursor = null;
+        try {
+            // Providers other than document providers may reject the column
+            cursor = resolver.query(uri,
+                    new String[]{DocumentsContract.Document.COLUMN_LAST_MODIFIED}, null, null, null);
+            if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+                return cursor.getLong(0);
+            }
+        } catch (IllegalArgumentException | UnsupportedOperationException e) {
+            // Not a document provider
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return -1;
+    }
+}
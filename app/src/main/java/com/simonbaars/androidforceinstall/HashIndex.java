@@ -0,0 +1,181 @@
+package com.simonbaars.androidforceinstall;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Persistent SHA-256 index of files, keyed by path (or URI) and validated by
+ * size and modification time, so an unchanged file is never hashed twice.
+ * Stored as an append-only tab separated file that is compacted when stale
+ * lines pile up.
+ */
+public class HashIndex {
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    // A SHA-256 digest in hex
+    private static final int SHA256_HEX_LENGTH = 64;
+
+    private static final class Entry {
+        final long size;
+        final long lastModified;
+        final String sha256;
+
+        Entry(long size, long lastModified, String sha256) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.sha256 = sha256;
+        }
+    }
+
+    private final File file;
+    private Map<String, Entry> entries;
+    private int lines;
+
+    public HashIndex(File file) {
+        this.file = file;
+    }
+
+    public String hash(File target) throws IOException {
+        return hash(target.getAbsolutePath(), target.length(), target.lastModified(),
+                () -> new FileInputStream(target));
+    }
+
+    /**
+     * Returns the SHA-256 of the content behind {@code id}, hashing it through
+     * {@code opener} only if the index has nothing for this size and
+     * modification time. A {@code lastModified} of 0 or less is never cached.
+     */
+    public String hash(String id, long size, long lastModified, SessionInstaller.StreamOpener opener)
+            throws IOException {
+        String known = lookup(id, size, lastModified);
+        if (known != null) {
+            return known;
+        }
+
+        String sha256;
+        try (InputStream in = opener.open()) {
+            sha256 = sha256(in);
+        }
+        put(id, size, lastModified, sha256);
+        return sha256;
+    }
+
+    /**
+     * The recorded SHA-256 of {@code id} if it still has this size and
+     * modification time, without hashing anything.
+     */
+    public synchronized String lookup(String id, long size, long lastModified) {
+        if (lastModified <= 0) {
+            return null;
+        }
+        Entry entry = entries().get(key(id));
+        return entry != null && entry.size == size && entry.lastModified == lastModified ? entry.sha256 : null;
+    }
+
+    /**
+     * Records a hash computed elsewhere, e.g. while the content was copied.
+     */
+    public synchronized void put(String id, long size, long lastModified, String sha256) {
+        if (lastModified <= 0) {
+            return;
+        }
+        String key = key(id);
+        entries().put(key, new Entry(size, lastModified, sha256));
+        append(key + "\t" + size + "\t" + lastModified + "\t" + sha256 + "\n");
+    }
+
+    private static String key(String id) {
+        return id.replace('\t', ' ').replace('\n', ' ');
+    }
+
+    public static String sha256(InputStream in) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+        }
+        return Hex.encode(digest.digest());
+    }
+
+    private Map<String, Entry> entries() {
+        if (entries != null) {
+            return entries;
+        }
+        entries = new HashMap<>();
+        lines = 0;
+        if (file.exists()) {
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t");
+                    if (fields.length != 4 || fields[3].length() != SHA256_HEX_LENGTH) {
+                        // Torn last line after a crash, possibly cut off inside the hash, ignore it
+                        continue;
+                    }
+                    try {
+                        entries.put(fields[0], new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]));
+                        lines++;
+                    } catch (NumberFormatException e) {
+                        // Ignore the corrupt line
+                    }
+                }
+            } catch (IOException e) {
+                // Start over with an empty index
+                entries.clear();
+            }
+        }
+        return entries;
+    }
+
+    private void append(String line) {
+        try {
+            if (lines > entries.size() * 2 + 64) {
+                compact();
+                return;
+            }
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8)) {
+                writer.write(line);
+            }
+            lines++;
+        } catch (IOException e) {
+            // The index is only a cache, the hash is still returned
+        }
+    }
+
+    /**
+     * Rewrites the index with only the live entries.
+     */
+    private void compact() throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                Entry value = entry.getValue();
+                writer.write(entry.getKey() + "\t" + value.size + "\t" + value.lastModified + "\t" + value.sha256 + "\n");
+            }
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+        lines = entries.size();
+    }
+}
@@ -0,0 +1,157 @@
+package com.simonbaars.androidforceinstall;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One unit of work the user asked for: an install, a batch, a rollback or
+ * the copy made when a file is picked. Jobs are owned by {@link InstallJobs},
+ * not by the activity, so they keep running and keep their status when the
+ * activity is recreated.
+ *
+ * <p>A queued job can be cancelled outright. A running one only stops where
+ * its work registered a canceller, such as a copy or between the items of a
+ * batch: pm and the file replacement are never interrupted halfway.
+ */
+public class InstallJob {
+
+    public enum State {
+        QUEUED, RUNNING, SUCCEEDED, FAILED, CANCELLED;
+
+        public boolean isFinished() {
+            return this != QUEUED && this != RUNNING;
+        }
+    }
+
+    /**
+     * What the job does. Runs on an {@link InstallJobs} worker thread.
+     */
+    public interface Work {
+        /**
+         * @return the result to show, or null for jobs that report nothing
+         *         when they succeed
+         */
+        InstallResult run(InstallJob job) throws Exception;
+    }
+
+    final long id;
+    final String key;
+    final String name;
+    final boolean longRunning;
+    final Work work;
+    private final InstallJobs owner;
+    private volatile State state = State.QUEUED;
+    private volatile String status;
+    private volatile InstallResult result;
+    private volatile boolean cancelled;
+    // Stops what the job is doing right now, if that can be stopped
+    private volatile Runnable canceller;
+    private final AtomicBoolean resultShown = new AtomicBoolean();
+    Future<?> future;
+
+    InstallJob(InstallJobs owner, long id, String key, String name, boolean longRunning, Work work) {
+        this.owner = owner;
+        this.id = id;
+        this.key = key;
+        this.name = name;
+        this.longRunning = longRunning;
+        this.work = work;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * The latest progress line, or the result's status once finished.
+     */
+    public String getStatus() {
+        InstallResult done = result;
+        return done != null ? done.getStatus() : status;
+    }
+
+    public InstallResult getResult() {
+        return result;
+    }
+
+    /**
+     * Updates the progress line. Cheap to call often: the UI hears about it at
+     * most once per {@link InstallJobs} update interval.
+     */
+    public void setStatus(String status) {
+        this.status = status;
+        owner.changed();
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Whether {@link #cancel()} would still stop anything.
+     */
+    public boolean isCancellable() {
+        return !cancelled && (state == State.QUEUED || canceller != null);
+    }
+
+    public void cancel() {
+        cancelled = true;
+        Runnable running = canceller;
+        if (running != null) {
+            running.run();
+        }
+        owner.cancelled(this);
+    }
+
+    /**
+     * Makes the running work stoppable by {@link #cancel()} until
+     * {@link #clearCanceller()}. Runs {@code canceller} right away if the job
+     * was already cancelled.
+     */
+    public void setCanceller(Runnable canceller) {
+        this.canceller = canceller;
+        if (cancelled) {
+            canceller.run();
+        }
+        owner.changed();
+    }
+
+    public void clearCanceller() {
+        canceller = null;
+        owner.changed();
+    }
+
+    /**
+     * True exactly once for a finished job with a result, so its toast is
+     * shown once even when several activity instances see it finish.
+     */
+    public boolean takeResultToShow() {
+        return state.isFinished() && result != null && resultShown.compareAndSet(false, true);
+    }
+
+    /**
+     * Finishes without a toast, for jobs replaced by newer ones.
+     */
+    void suppressResult() {
+        resultShown.set(true);
+    }
+
+    void setState(State state) {
+        this.state = state;
+        owner.changed();
+    }
+
+    void finish(State state, InstallResult result) {
+        this.result = result;
+        this.canceller = null;
+        setState(state);
+    }
+}
@@ -0,0 +1,307 @@
+package com.simonbaars.androidforceinstall;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs {@link InstallJob}s for the whole process, so they survive the
+ * activity being recreated. Installs, batches and rollbacks go one at a time
+ * through a single install thread, like pm would serialize them anyway, and
+ * keep {@link InstallService} in the foreground while they run. Picks, batch
+ * staging and quick queries share a small worker pool. Both pools keep their
+ * threads for a while when idle, so repeated use does not start new threads.
+ *
+ * <p>Listeners are told about changes on the main thread, at most once per
+ * {@link #UPDATE_INTERVAL_MS} however often jobs report progress, and then
+ * read the current state themselves.
+ */
+public class InstallJobs {
+
+    static final long UPDATE_INTERVAL_MS = 100;
+    // Finished jobs kept for an activity that comes back later
+    private static final int MAX_FINISHED = 20;
+    private static final long IDLE_THREAD_SECONDS = 30;
+
+    /**
+     * Hears that some job changed. Called on the main thread.
+     */
+    public interface Listener {
+        void onJobsChanged();
+    }
+
+    private static InstallJobs instance;
+
+    public static synchronized InstallJobs get(Context context) {
+        if (instance == null) {
+            instance = new InstallJobs(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private final Context context;
+    private final ThreadPoolExecutor installs;
+    private final ThreadPoolExecutor workers;
+    private final Handler main = new Handler(Looper.getMainLooper());
+    private final List<InstallJob> jobs = new ArrayList<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean updatePending = new AtomicBoolean();
+    private volatile long lastUpdate;
+    private long nextId;
+    private Selection selection;
+    private long pickGeneration;
+    // Users besides the primary one that installs also go to
+    private List<DeviceUser> otherUsers = Collections.emptyList();
+
+    private final Runnable dispatch = () -> {
+        lastUpdate = SystemClock.uptimeMillis();
+        // Cleared first, so a change made while listeners run posts again
+        updatePending.set(false);
+        for (Listener listener : listeners) {
+            listener.onJobsChanged();
+        }
+    };
+
+    private InstallJobs(Context context) {
+        this.context = context;
+        this.installs = executor("afi-install", 1);
+        this.workers = executor("afi-worker", Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors())));
+    }
+
+    private static ThreadPoolExecutor executor(String name, int threads) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, IDLE_THREAD_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> new Thread(runnable, name + "-" + count.incrementAndGet()));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Queues a job, unless one with the same {@code key} is still queued or
+     * running, in which case that job is returned instead.
+     *
+     * @param longRunning runs on the install thread under the foreground
+     *                    service, instead of on the worker pool
+     */
+    public synchronized InstallJob submit(String key, String name, boolean longRunning, InstallJob.Work work) {
+        for (InstallJob job : jobs) {
+            if (!job.getState().isFinished() && !job.isCancelled() && job.key.equals(key)) {
+                return job;
+            }
+        }
+        InstallJob job = new InstallJob(this, ++nextId, key, name, longRunning, work);
+        jobs.add(job);
+        trimFinished();
+        job.future = (longRunning ? installs : workers).submit(() -> run(job));
+        if (longRunning) {
+            InstallService.start(context);
+        }
+        changed();
+        return job;
+    }
+
+    /**
+     * Runs a short task that is not worth tracking on the worker pool.
+     */
+    public void execute(Runnable task) {
+        workers.execute(task);
+    }
+
+    /**
+     * The worker pool, for work a job fans out, like staging a batch.
+     */
+    public ExecutorService workers() {
+        return workers;
+    }
+
+    /**
+     * Number of threads in {@link #workers()}, to size work fanned out on it.
+     */
+    public int workerThreads() {
+        return workers.getMaximumPoolSize();
+    }
+
+    private void run(InstallJob job) {
+        if (job.isCancelled()) {
+            // Cancelled after it was handed to the thread but before it started
+            job.finish(InstallJob.State.CANCELLED,
+                    InstallResult.failure(context.getString(R.string.job_cancelled, job.name)));
+            return;
+        }
+        job.setState(InstallJob.State.RUNNING);
+        try {
+            InstallResult result = job.work.run(job);
+            job.finish(result == null || result.isSuccess()
+                    ? InstallJob.State.SUCCEEDED : InstallJob.State.FAILED, result);
+        } catch (InterruptedIOException e) {
+            job.finish(InstallJob.State.CANCELLED,
+                    InstallResult.failure(context.getString(R.string.job_cancelled, job.name)));
+        } catch (Exception e) {
+            job.finish(InstallJob.State.FAILED,
+                    InstallResult.failure(context.getString(R.string.install_error, e.getMessage())));
+        }
+    }
+
+    synchronized void cancelled(InstallJob job) {
+        if (job.getState() == InstallJob.State.QUEUED && job.future != null && job.future.cancel(false)) {
+            job.finish(InstallJob.State.CANCELLED,
+                    InstallResult.failure(context.getString(R.string.job_cancelled, job.name)));
+        }
+    }
+
+    /**
+     * Cancels everything that can still be stopped.
+     */
+    public void cancelAll() {
+        for (InstallJob job : getJobs()) {
+            if (job.isCancellable()) {
+                job.cancel();
+            }
+        }
+    }
+
+    /**
+     * Coalesces change notifications: at most one is pending at a time, and
+     * it is delivered no sooner than {@link #UPDATE_INTERVAL_MS} after the last.
+     */
+    void changed() {
+        if (updatePending.compareAndSet(false, true)) {
+            long delay = lastUpdate + UPDATE_INTERVAL_MS - SystemClock.uptimeMillis();
+            main.postDelayed(dispatch, Math.max(0, delay));
+        }
+    }
+
+    /**
+     * Must be called on the main thread.
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public synchronized List<InstallJob> getJobs() {
+        return new ArrayList<>(jobs);
+    }
+
+    /**
+     * The most recently submitted job, or null.
+     */
+    public synchronized InstallJob latest() {
+        return jobs.isEmpty() ? null : jobs.get(jobs.size() - 1);
+    }
+
+    /**
+     * The long running job that is running or next in line, or null when
+     * there is none and the foreground service can stop.
+     */
+    public synchronized InstallJob current() {
+        for (InstallJob job : jobs) {
+            if (job.longRunning && !job.getState().isFinished()) {
+                return job;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Long running jobs waiting behind {@link #current()}.
+     */
+    public synchronized int queued() {
+        InstallJob current = current();
+        int queued = 0;
+        for (InstallJob job : jobs) {
+            if (job != current && job.longRunning && job.getState() == InstallJob.State.QUEUED) {
+                queued++;
+            }
+        }
+        return queued;
+    }
+
+    public synchronized boolean hasCancellable() {
+        for (InstallJob job : jobs) {
+            if (job.isCancellable()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Starts a new pick and cancels the copy of any earlier one still running.
+     *
+     * @return the generation to hand to {@link #select} when the pick is done
+     */
+    public synchronized long newPick() {
+        cancelPick();
+        return ++pickGeneration;
+    }
+
+    public synchronized void cancelPick() {
+        for (InstallJob job : jobs) {
+            if (job.key.startsWith("pick:") && job.isCancellable()) {
+                job.suppressResult();
+                job.cancel();
+            }
+        }
+    }
+
+    /**
+     * Makes {@code selection} the current one, unless the user picked again
+     * since {@code generation} started.
+     *
+     * @return whether the selection was taken
+     */
+    public synchronized boolean select(long generation, Selection selection) {
+        if (generation != pickGeneration) {
+            return false;
+        }
+        this.selection = selection;
+        changed();
+        return true;
+    }
+
+    public synchronized Selection getSelection() {
+        return selection;
+    }
+
+    public synchronized void setOtherUsers(List<DeviceUser> users) {
+        otherUsers = Collections.unmodifiableList(new ArrayList<>(users));
+        changed();
+    }
+
+    public synchronized List<DeviceUser> getOtherUsers() {
+        return otherUsers;
+    }
+
+    private void trimFinished() {
+        int finished = 0;
+        for (InstallJob job : jobs) {
+            if (job.getState().isFinished()) {
+                finished++;
+            }
+        }
+        for (Iterator<InstallJob> it = jobs.iterator(); it.hasNext() && finished > MAX_FINISHED; ) {
+            if (it.next().getState().isFinished()) {
+                it.remove();
+                finished--;
+            }
+        }
+    }
+}
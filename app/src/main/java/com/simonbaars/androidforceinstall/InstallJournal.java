@@ -0,0 +1,547 @@
+package com.simonbaars.androidforceinstall;
+
+import android.net.Uri;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Write-ahead log of running install jobs, so work cut short by the process
+ * dying can be picked up again. Each job records its items, then every
+ * boundary an item crosses: staged (with its content hash), direct
+ * replacement started, snapshot taken, files replaced, registered, done.
+ * Every record is synced to disk before the step after it runs.
+ *
+ * <p>A job that never recorded its end was interrupted. {@link #interrupted()}
+ * replays the log into what is left of such jobs: a replacement that stopped
+ * between snapshot and replace is rolled back, one that stopped after the
+ * replace only needs registering, and items not done yet are installed
+ * again from the staging cache by their hash, without copying them again.
+ *
+ * <p>Items are replayed by their content URI, so the journal holds a
+ * persistable read grant on each one while its job is open, and releases it
+ * once no open job refers to it any more.
+ *
+ * <p>The log is one tab separated record per line. A last line without its
+ * newline was cut off mid-write and is ignored. Once no job is open the log
+ * is emptied.
+ */
+public class InstallJournal {
+
+    private static final String NONE = "-";
+
+    /**
+     * Where an item got to in a direct replacement.
+     */
+    public enum Phase {
+        /** No replacement started, or it finished. */
+        NONE,
+        /** Stopping the app and taking a snapshot, nothing replaced yet. */
+        STOPPING,
+        /** Snapshot taken, the files may be partly replaced. */
+        REPLACING,
+        /** All files replaced, PackageManager does not know yet. */
+        REPLACED,
+        /** Registered, only the done record is missing. */
+        REGISTERED
+    }
+
+    /**
+     * What the log knows about one item of an interrupted job.
+     */
+    public static class Pending {
+        final String uri;
+        final String name;
+        String sha256;
+        String packageName;
+        String snapshotDir;
+        List<String> targets = Collections.emptyList();
+        Phase phase = Phase.NONE;
+        boolean done;
+
+        Pending(String uri, String name, String sha256) {
+            this.uri = uri;
+            this.name = name;
+            this.sha256 = sha256;
+        }
+
+        /**
+         * Null when the item was a file copied before the job started.
+         */
+        public Uri getUri() {
+            return uri != null ? Uri.parse(uri) : null;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Hash of the staged content, if the item got that far.
+         */
+        public String getSha256() {
+            return sha256;
+        }
+
+        public String getPackageName() {
+            return packageName;
+        }
+
+        /**
+         * The snapshot taken before the replacement, or null if there is none.
+         */
+        public String getSnapshotDir() {
+            return snapshotDir;
+        }
+
+        /**
+         * The installed paths the replacement writes to, once known.
+         */
+        public List<String> getTargets() {
+            return targets;
+        }
+
+        public Phase getPhase() {
+            return phase;
+        }
+
+        public boolean isDone() {
+            return done;
+        }
+    }
+
+    /**
+     * A job without an end record.
+     */
+    public static class Interrupted {
+        final long id;
+        final String name;
+        final List<Pending> items = new ArrayList<>();
+        List<Integer> userIds = Collections.emptyList();
+        // Raw lines, to carry the job over when the log is compacted
+        final List<String> lines = new ArrayList<>();
+
+        Interrupted(long id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public List<Pending> getItems() {
+            return items;
+        }
+
+        /**
+         * The other users the job also installed for.
+         */
+        public List<DeviceUser> getUsers() {
+            List<DeviceUser> users = new ArrayList<>();
+            for (int id : userIds) {
+                users.add(new DeviceUser(id, "", false));
+            }
+            return users;
+        }
+    }
+
+    /**
+     * Records the progress of one running job.
+     */
+    public class Job {
+        final long id;
+
+        Job(long id) {
+            this.id = id;
+        }
+
+        public Item item(int index) {
+            return new Item(this, index);
+        }
+
+        InstallJournal journal() {
+            return InstallJournal.this;
+        }
+
+        /**
+         * The job finished, successfully or not, and needs no recovery.
+         */
+        public void end() {
+            finish(this);
+        }
+    }
+
+    /**
+     * Records the progress of one item. {@link #NONE} records nothing, for
+     * installs that are not journaled.
+     */
+    public static class Item {
+        public static final Item NONE = new Item(null, 0);
+
+        private final Job job;
+        private final int index;
+
+        Item(Job job, int index) {
+            this.job = job;
+            this.index = index;
+        }
+
+        public void staged(String sha256) {
+            record("staged", sha256);
+        }
+
+        /**
+         * About to stop the app for a direct replacement of {@code packageName}.
+         */
+        public void replacing(String packageName) {
+            record("replacing", packageName);
+        }
+
+        /**
+         * @param snapshotDir null if no snapshot could be taken
+         * @param targets     the installed paths the replacement is about to write
+         */
+        public void snapshot(String snapshotDir, Collection<String> targets) {
+            List<String> fields = new ArrayList<>();
+            fields.add(snapshotDir != null ? snapshotDir : InstallJournal.NONE);
+            fields.addAll(targets);
+            record("snapshot", fields.toArray(new String[0]));
+        }
+
+        public void replaced(List<String> targets) {
+            record("replaced", targets.toArray(new String[0]));
+        }
+
+        public void registered() {
+            record("registered");
+        }
+
+        public void done() {
+            record("done");
+        }
+
+        private void record(String type, String... fields) {
+            if (job != null) {
+                job.journal().append(type, job.id, index, fields);
+            }
+        }
+    }
+
+    /**
+     * Keeps access to the items' content URIs after the process dies.
+     */
+    public interface Grants {
+        /**
+         * The URI whose grant covers {@code uri}, or null if it needs none.
+         */
+        Uri grantFor(Uri uri);
+
+        void hold(Uri grant);
+
+        void release(Uri grant);
+    }
+
+    private final File file;
+    private final Grants grants;
+    private Map<Long, Interrupted> open;
+    // Jobs of this process, which are running rather than interrupted
+    private final Set<Long> running = new HashSet<>();
+    private long nextId;
+    private int lines;
+
+    public InstallJournal(File file, Grants grants) {
+        this.file = file;
+        this.grants = grants;
+    }
+
+    /**
+     * Records the start of a job over {@code items}, with the content hash of
+     * those already staged.
+     *
+     * @param resumes id of the interrupted job this one continues, or -1; that
+     *                job counts as ended from here on
+     * @param users   other users the job also installs for
+     */
+    public synchronized Job begin(String name, long resumes, List<DeviceUser> users,
+                                  List<BatchInstaller.Item> items) {
+        Interrupted previous = resumes >= 0 ? open().get(resumes) : null;
+        long id = nextId++;
+        running.add(id);
+        for (BatchInstaller.Item item : items) {
+            Uri grant = item.uri != null ? grants.grantFor(item.uri) : null;
+            if (grant != null) {
+                grants.hold(grant);
+            }
+        }
+        append("begin", id, -1, clean(name), resumes >= 0 ? String.valueOf(resumes) : NONE);
+        if (!users.isEmpty()) {
+            StringBuilder userIds = new StringBuilder();
+            for (DeviceUser user : users) {
+                userIds.append(userIds.length() > 0 ? "," : "").append(user.getId());
+            }
+            append("users", id, -1, userIds.toString());
+        }
+        for (int i = 0; i < items.size(); i++) {
+            BatchInstaller.Item item = items.get(i);
+            append("item", id, i, item.uri != null ? clean(item.uri.toString()) : NONE, clean(item.name),
+                    item.cachedSha256 != null ? item.cachedSha256 : NONE);
+        }
+        if (previous != null) {
+            // Items of the interrupted job that were finished while resuming it
+            releaseUnused(previous);
+        }
+        return new Job(id);
+    }
+
+    /**
+     * Jobs a previous process started and never finished, oldest first.
+     */
+    public synchronized List<Interrupted> interrupted() {
+        List<Interrupted> interrupted = new ArrayList<>();
+        for (Interrupted job : open().values()) {
+            if (!running.contains(job.id)) {
+                interrupted.add(job);
+            }
+        }
+        return interrupted;
+    }
+
+    private synchronized void finish(Job job) {
+        Interrupted ended = open().get(job.id);
+        append("end", job.id, -1);
+        running.remove(job.id);
+        if (ended != null) {
+            releaseUnused(ended);
+        }
+    }
+
+    /**
+     * Releases the grants of {@code ended}'s items that no open job needs.
+     */
+    private void releaseUnused(Interrupted ended) {
+        Set<Uri> inUse = new HashSet<>();
+        for (Interrupted job : open().values()) {
+            inUse.addAll(grantsOf(job));
+        }
+        for (Uri grant : grantsOf(ended)) {
+            if (!inUse.contains(grant)) {
+                grants.release(grant);
+            }
+        }
+    }
+
+    private Set<Uri> grantsOf(Interrupted job) {
+        Set<Uri> uris = new HashSet<>();
+        for (Pending item : job.items) {
+            Uri grant = item.uri != null ? grants.grantFor(item.getUri()) : null;
+            if (grant != null) {
+                uris.add(grant);
+            }
+        }
+        return uris;
+    }
+
+    private synchronized void append(String type, long job, int index, String... fields) {
+        Map<Long, Interrupted> jobs = open();
+        StringBuilder line = new StringBuilder(type).append('\t').append(job).append('\t').append(index);
+        for (String field : fields) {
+            line.append('\t').append(field);
+        }
+        line.append('\n');
+        apply(jobs, line.substring(0, line.length() - 1));
+
+        try {
+            if (jobs.isEmpty()) {
+                // Nothing to recover any more, start the next job on an empty log
+                write(Collections.emptyList(), false);
+                lines = 0;
+            } else {
+                write(Collections.singletonList(line.substring(0, line.length() - 1)), true);
+                lines++;
+                int live = 0;
+                for (Interrupted interrupted : jobs.values()) {
+                    live += interrupted.lines.size();
+                }
+                if (lines > live * 2 + 64) {
+                    // Only rewrite once finished jobs make up most of the log
+                    compact(jobs);
+                }
+            }
+        } catch (IOException e) {
+            // The install goes on, it just cannot be recovered if the process dies
+        }
+    }
+
+    /**
+     * Rewrites the log with only the lines of jobs that are still open.
+     */
+    private void compact(Map<Long, Interrupted> jobs) throws IOException {
+        List<String> live = new ArrayList<>();
+        for (Interrupted interrupted : jobs.values()) {
+            live.addAll(interrupted.lines);
+        }
+        write(live, false);
+        lines = live.size();
+    }
+
+    /**
+     * Writes {@code records} and waits until they are on disk.
+     */
+    private void write(List<String> records, boolean append) throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (String record : records) {
+            text.append(record).append('\n');
+        }
+        File target = append ? file : new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(target, append)) {
+            out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        if (!append && !target.renameTo(file)) {
+            target.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    private Map<Long, Interrupted> open() {
+        if (open != null) {
+            return open;
+        }
+        open = new LinkedHashMap<>();
+        String text = "";
+        if (file.exists()) {
+            try (InputStream in = new FileInputStream(file)) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                StreamCopy.copy(in, bytes, -1, null);
+                text = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                // Nothing to recover from a log that cannot be read
+            }
+        }
+        // Whatever follows the last newline was cut off mid-write
+        int end = text.lastIndexOf('\n');
+        String[] records = end >= 0 ? text.substring(0, end).split("\n") : new String[0];
+        for (String record : records) {
+            apply(open, record);
+        }
+        lines = records.length;
+        return open;
+    }
+
+    /**
+     * Applies one record to the replayed state of the open jobs.
+     */
+    private void apply(Map<Long, Interrupted> jobs, String record) {
+        String[] fields = record.split("\t", -1);
+        if (fields.length < 3) {
+            return;
+        }
+        long id;
+        int index;
+        try {
+            id = Long.parseLong(fields[1]);
+            index = Integer.parseInt(fields[2]);
+        } catch (NumberFormatException e) {
+            return;
+        }
+        nextId = Math.max(nextId, id + 1);
+        String type = fields[0];
+        if (type.equals("begin") && fields.length >= 5) {
+            Interrupted job = new Interrupted(id, fields[3]);
+            job.lines.add(record);
+            jobs.put(id, job);
+            if (!fields[4].equals(NONE)) {
+                try {
+                    jobs.remove(Long.parseLong(fields[4]));
+                } catch (NumberFormatException e) {
+                    // Nothing resumed
+                }
+            }
+            return;
+        }
+        Interrupted job = jobs.get(id);
+        if (job == null) {
+            return;
+        }
+        if (type.equals("end")) {
+            jobs.remove(id);
+            return;
+        }
+        job.lines.add(record);
+        if (type.equals("users") && fields.length >= 4) {
+            List<Integer> userIds = new ArrayList<>();
+            for (String userId : fields[3].split(",")) {
+                try {
+                    userIds.add(Integer.parseInt(userId));
+                } catch (NumberFormatException e) {
+                    // Skip it
+                }
+            }
+            job.userIds = userIds;
+            return;
+        }
+        if (type.equals("item") && fields.length >= 6) {
+            job.items.add(new Pending(fields[3].equals(NONE) ? null : fields[3], fields[4],
+                    fields[5].equals(NONE) ? null : fields[5]));
+            return;
+        }
+        if (index < 0 || index >= job.items.size()) {
+            return;
+        }
+        Pending item = job.items.get(index);
+        switch (type) {
+            case "staged":
+                item.sha256 = fields.length >= 4 ? fields[3] : null;
+                break;
+            case "replacing":
+                item.packageName = fields.length >= 4 ? fields[3] : null;
+                item.snapshotDir = null;
+                item.targets = Collections.emptyList();
+                item.phase = Phase.STOPPING;
+                break;
+            case "snapshot":
+                item.snapshotDir = fields.length >= 4 && !fields[3].equals(NONE) ? fields[3] : null;
+                item.targets = fields.length >= 5 ? new ArrayList<>(Arrays.asList(fields).subList(4, fields.length))
+                        : Collections.<String>emptyList();
+                item.phase = Phase.REPLACING;
+                break;
+            case "replaced":
+                item.targets = new ArrayList<>(Arrays.asList(fields).subList(3, fields.length));
+                item.phase = Phase.REPLACED;
+                break;
+            case "registered":
+                item.phase = Phase.REGISTERED;
+                break;
+            case "done":
+                item.done = true;
+                item.phase = Phase.NONE;
+                break;
+            default:
+                // Unknown record from a newer version
+                break;
+        }
+    }
+
+    private static String clean(String value) {
+        return value.replace('\t', ' ').replace('\n', ' ');
+    }
+}
@@ -0,0 +1,219 @@
+package com.simonbaars.androidforceinstall;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Timings of one install, stage by stage, with the bytes each stage moved and
+ * the shell round trips it made. Stages are opened and closed around whole
+ * steps such as a copy or a {@code pm install}, never inside a copy loop, so
+ * recording costs nothing on the hot path: byte counts come from what the
+ * copy returns once it is done.
+ *
+ * <p>Round trips are read from the shell's counter, which is shared, so a
+ * stage that overlaps with another install's commands is charged for those too.
+ */
+public class InstallMetrics {
+
+    /**
+     * One timed step of an install.
+     */
+    public static class Stage {
+        final String name;
+        final long startNanos;
+        final long startRoundTrips;
+        long durationMillis = -1;
+        long bytes;
+        long roundTrips;
+        boolean ok;
+
+        Stage(String name, long startNanos, long startRoundTrips) {
+            this.name = name;
+            this.startNanos = startNanos;
+            this.startRoundTrips = startRoundTrips;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getRoundTrips() {
+            return roundTrips;
+        }
+
+        public boolean isOk() {
+            return ok;
+        }
+    }
+
+    private final String name;
+    private final RootShell shell;
+    private final long startMillis = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    private final long startRoundTrips;
+    private final long startPipedProcesses;
+    private final List<Stage> stages = new ArrayList<>();
+    private String packageName;
+    private String strategy;
+    private boolean success;
+    private long totalMillis = -1;
+
+    /**
+     * @param name  what is installed, usually the file name
+     * @param shell shell whose round trips are counted, may be null
+     */
+    public InstallMetrics(String name, RootShell shell) {
+        this.name = name;
+        this.shell = shell;
+        this.startRoundTrips = roundTrips();
+        this.startPipedProcesses = pipedProcesses();
+    }
+
+    public Stage begin(String stage) {
+        return new Stage(stage, System.nanoTime(), roundTrips());
+    }
+
+    public void end(Stage stage, long bytes, boolean ok) {
+        stage.durationMillis = (System.nanoTime() - stage.startNanos) / 1_000_000L;
+        stage.bytes = bytes;
+        stage.roundTrips = roundTrips() - stage.startRoundTrips;
+        stage.ok = ok;
+        synchronized (stages) {
+            stages.add(stage);
+        }
+    }
+
+    /**
+     * Records a stage that was timed before this install started, such as the
+     * copy made when the file was picked.
+     */
+    public void add(String stage, long durationMillis, long bytes) {
+        Stage done = new Stage(stage, 0, 0);
+        done.durationMillis = durationMillis;
+        done.bytes = bytes;
+        done.ok = true;
+        synchronized (stages) {
+            stages.add(done);
+        }
+    }
+
+    public void setPackageName(String packageName) {
+        this.packageName = packageName;
+    }
+
+    /**
+     * Null until a strategy that knows the package has run.
+     */
+    public String getPackageName() {
+        return packageName;
+    }
+
+    /**
+     * The strategy that ended up installing the APK; the last call wins.
+     */
+    public void setStrategy(String strategy) {
+        this.strategy = strategy;
+    }
+
+    boolean strategyUnset() {
+        return strategy == null;
+    }
+
+    public void finish(boolean success) {
+        this.success = success;
+        this.totalMillis = (System.nanoTime() - startNanos) / 1_000_000L;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<Stage> getStages() {
+        synchronized (stages) {
+            return new ArrayList<>(stages);
+        }
+    }
+
+    /**
+     * One line of JSON, the record format of {@link MetricsLog}.
+     */
+    public String toJson() {
+        long bytes = 0;
+        StringBuilder json = new StringBuilder(256);
+        json.append("{\"time\":").append(startMillis)
+                .append(",\"name\":").append(quote(name))
+                .append(",\"package\":").append(quote(packageName))
+                .append(",\"strategy\":").append(quote(strategy))
+                .append(",\"success\":").append(success)
+                .append(",\"totalMs\":").append(totalMillis)
+                .append(",\"roundTrips\":").append(roundTrips() - startRoundTrips)
+                .append(",\"pipedProcesses\":").append(pipedProcesses() - startPipedProcesses)
+                .append(",\"stages\":[");
+        List<Stage> snapshot = getStages();
+        for (int i = 0; i < snapshot.size(); i++) {
+            Stage stage = snapshot.get(i);
+            bytes += stage.bytes;
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"name\":").append(quote(stage.name))
+                    .append(",\"ms\":").append(stage.durationMillis)
+                    .append(",\"bytes\":").append(stage.bytes)
+                    .append(",\"roundTrips\":").append(stage.roundTrips)
+                    .append(",\"ok\":").append(stage.ok)
+                    .append('}');
+        }
+        json.append("],\"bytes\":").append(bytes).append('}');
+        return json.toString();
+    }
+
+    private long roundTrips() {
+        return shell != null ? shell.getRoundTrips() : 0;
+    }
+
+    private long pipedProcesses() {
+        return shell != null ? shell.getPipedProcesses() : 0;
+    }
+
+    static String quote(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    quoted.append("\\\"");
+                    break;
+                case '\\':
+                    quoted.append("\\\\");
+                    break;
+                case '\n':
+                    quoted.append("\\n");
+                    break;
+                case '\r':
+                    quoted.append("\\r");
+                    break;
+                case '\t':
+                    quoted.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        quoted.append(c);
+                    }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
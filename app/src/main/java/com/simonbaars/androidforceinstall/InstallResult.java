@@ -0,0 +1,46 @@
+package com.simonbaars.androidforceinstall;
+
+/**
+ * Outcome of installing one APK: whether it went through, the status line to
+ * show, and the shorter message for a toast.
+ */
+public class InstallResult {
+
+    private final boolean success;
+    private final String status;
+    private final String toast;
+
+    private InstallResult(boolean success, String status, String toast) {
+        this.success = success;
+        this.status = status;
+        this.toast = toast;
+    }
+
+    public static InstallResult success(String message) {
+        return new InstallResult(true, message, message);
+    }
+
+    public static InstallResult success(String status, String toast) {
+        return new InstallResult(true, status, toast);
+    }
+
+    public static InstallResult failure(String message) {
+        return new InstallResult(false, message, message);
+    }
+
+    public static InstallResult failure(String status, String toast) {
+        return new InstallResult(false, status, toast);
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public String getToast() {
+        return toast;
+    }
+}
@@ -0,0 +1,103 @@
+package com.simonbaars.androidforceinstall;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ServiceInfo;
+import android.os.Build;
+import android.os.IBinder;
+
+import androidx.core.app.NotificationCompat;
+import androidx.core.content.ContextCompat;
+
+/**
+ * Keeps the process in the foreground while {@link InstallJobs} has installs
+ * queued or running, so leaving the app does not get a half done install
+ * killed. The notification shows the running job and follows its progress,
+ * and the service stops itself once the queue is empty.
+ */
+public class InstallService extends Service implements InstallJobs.Listener {
+
+    private static final String CHANNEL_ID = "installs";
+    private static final int NOTIFICATION_ID = 1;
+
+    private InstallJobs jobs;
+    private NotificationManager notifications;
+    private int lastStartId;
+
+    static void start(Context context) {
+        ContextCompat.startForegroundService(context, new Intent(context, InstallService.class));
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        jobs = InstallJobs.get(this);
+        notifications = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            notifications.createNotificationChannel(new NotificationChannel(CHANNEL_ID,
+                    getString(R.string.install_channel), NotificationManager.IMPORTANCE_LOW));
+        }
+        jobs.addListener(this);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        lastStartId = startId;
+        // Every start has to be answered with startForeground, even if the job is already done
+        Notification notification = notification(jobs.current());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            startForeground(NOTIFICATION_ID, notification, ServiceInfo.FOREGROUND_SERVICE_TYPE_DATA_SYNC);
+        } else {
+            startForeground(NOTIFICATION_ID, notification);
+        }
+        onJobsChanged();
+        // Jobs live in this process, a restarted service would have nothing to run
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onJobsChanged() {
+        InstallJob job = jobs.current();
+        if (job == null) {
+            // Only stops if no start came in after the last one seen here
+            stopSelf(lastStartId);
+            return;
+        }
+        notifications.notify(NOTIFICATION_ID, notification(job));
+    }
+
+    @Override
+    public void onDestroy() {
+        jobs.removeListener(this);
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    private Notification notification(InstallJob job) {
+        Intent open = new Intent(this, MainActivity.class).addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        PendingIntent contentIntent = PendingIntent.getActivity(this, 0, open,
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setSmallIcon(R.drawable.ic_launcher)
+                .setContentTitle(job != null ? job.getName() : getString(R.string.app_name))
+                .setContentText(job != null ? job.getStatus() : null)
+                .setContentIntent(contentIntent)
+                .setProgress(0, 0, true)
+                .setOngoing(true)
+                .setOnlyAlertOnce(true);
+        int queued = jobs.queued();
+        if (queued > 0) {
+            builder.setSubText(getString(R.string.jobs_queued, queued));
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,449 @@
+package com.simonbaars.androidforceinstall;
+
+import android.content.ClipData;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.provider.OpenableColumns;
+import android.text.format.Formatter;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The work behind each kind of {@link InstallJob}. Holds only the application
+ * context, so a job never keeps an activity alive, and reports through the
+ * job's status instead of touching views.
+ */
+class InstallTasks {
+
+    private final Context context;
+    private final RootShell shell;
+    private final InstallJobs jobs;
+
+    InstallTasks(Context context, RootShell shell) {
+        this.context = context.getApplicationContext();
+        this.shell = shell;
+        this.jobs = InstallJobs.get(context);
+    }
+
+    /**
+     * Resolves a single picked APK into a {@link Selection}, copying it into
+     * the cache only when the provider cannot tell its size.
+     */
+    InstallResult pick(InstallJob job, Uri uri, long generation) throws IOException {
+        try {
+            String fileName = getFileName(uri);
+            String displayName = fileName != null ? fileName : "temp.apk";
+            long size = ContentStaging.size(context.getContentResolver(), uri);
+
+            if (size > 0) {
+                // Size is known, so the APK can be streamed into a pm session later
+                jobs.select(generation, Selection.stream(uri, size, displayName));
+                return null;
+            }
+
+            // Provider cannot tell us the size, fall back to a copy in the staging cache
+            StagingCache cache = ApkInstaller.stagingCache(context);
+            long copyStart = System.currentTimeMillis();
+            StagingCache.Entry staged = copyToCache(job, uri, displayName);
+            long copyMillis = System.currentTimeMillis() - copyStart;
+            // Unpinned until the install, a superseded pick just stays cached
+            cache.release(staged);
+            job.setStatus("");
+            jobs.select(generation, Selection.copied(staged.getFile(), copyMillis, displayName));
+            return null;
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (Exception e) {
+            return InstallResult.failure("Error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Selects several picked APKs as a batch.
+     */
+    InstallResult pickMultiple(ClipData clipData, long generation) {
+        List<BatchInstaller.Item> items = new ArrayList<>();
+        for (int i = 0; i < clipData.getItemCount(); i++) {
+            Uri uri = clipData.getItemAt(i).getUri();
+            String fileName = getFileName(uri);
+            items.add(new BatchInstaller.Item(uri, fileName != null ? fileName : "temp" + i + ".apk"));
+        }
+        return selectBatch(items, generation);
+    }
+
+    /**
+     * Selects every APK in a picked folder as a batch.
+     */
+    InstallResult pickFolder(Uri treeUri, long generation) {
+        return selectBatch(listApksInTree(treeUri), generation);
+    }
+
+    private InstallResult selectBatch(List<BatchInstaller.Item> items, long generation) {
+        if (items.isEmpty()) {
+            return InstallResult.failure("No APK files found");
+        }
+        jobs.select(generation, Selection.batch(items));
+        return null;
+    }
+
+    /**
+     * @param users other users to make the package available to once it is
+     *              installed for the primary user
+     */
+    InstallResult install(InstallJob job, Selection selection, List<DeviceUser> users) throws Exception {
+        job.setStatus(context.getString(R.string.installing));
+        ApkInstaller installer = new ApkInstaller(context, shell);
+        InstallMetrics metrics = installer.newMetrics(selection.name);
+        if (selection.file != null && selection.copyMillis >= 0) {
+            metrics.add("copy to cache", selection.copyMillis, selection.file.length());
+        }
+        ApkInstaller.StatusListener listener = job::setStatus;
+        StagingCache cache = ApkInstaller.stagingCache(context);
+        StagingCache.Entry staged = null;
+        InstallJournal.Job journal = ApkInstaller.installJournal(context).begin(selection.name, -1, users,
+                Collections.singletonList(new BatchInstaller.Item(selection.uri, selection.name)));
+        InstallJournal.Item journalItem = journal.item(0);
+        installer.setJournal(journalItem);
+
+        try {
+            InstallResult installResult;
+            Preflight.Plan plan = null;
+            if (selection.uri != null) {
+                InstallMetrics.Stage stage = metrics.begin("preflight");
+                plan = preflight(installer, selection.uri, selection.name);
+                metrics.end(stage, 0, plan != null);
+            }
+            boolean needsFile = plan != null && plan.getStrategy() == Preflight.Strategy.DIRECT_REPLACEMENT;
+            if (plan != null && plan.getStrategy() == Preflight.Strategy.UP_TO_DATE) {
+                metrics.setPackageName(plan.getApk().getPackageName());
+                metrics.setStrategy(plan.getStrategy().name());
+                installResult = InstallResult.success(context.getString(R.string.already_up_to_date,
+                        plan.getApk().getPackageName()));
+            } else if (needsFile) {
+                // A plain install is known to fail, go straight to the strategy that works
+                staged = copyToCache(job, selection.uri, selection.name, metrics);
+                journalItem.staged(staged.getSha256());
+                installResult = installer.install(staged.getFile(), plan, listener, metrics);
+            } else if (selection.uri != null) {
+                // Stream straight into a pm install session, no copy on disk
+                if (plan != null) {
+                    metrics.setPackageName(plan.getApk().getPackageName());
+                }
+                InstallMetrics.Stage stage = metrics.begin("stream install");
+                ShellResult result = streamInstall(job, selection.uri, selection.size, selection.name);
+                metrics.end(stage, selection.size, result.isSuccess());
+                if (result.isSuccess()) {
+                    metrics.setStrategy(Preflight.Strategy.NORMAL_INSTALL.name());
+                    installResult = InstallResult.success(context.getString(R.string.install_success));
+                } else {
+                    // The recovery paths work on a file, so only now stage a copy
+                    job.setStatus(context.getString(R.string.installing));
+                    staged = copyToCache(job, selection.uri, selection.name, metrics);
+                    journalItem.staged(staged.getSha256());
+                    installResult = installer.recover(staged.getFile(), result, listener, metrics);
+                }
+            } else {
+                staged = cache.pin(selection.file);
+                if (staged == null) {
+                    throw new IOException("The copied APK was evicted from the cache, select it again");
+                }
+                journalItem.staged(staged.getSha256());
+                installResult = installer.install(selection.file, listener, metrics);
+            }
+            installResult = installer.installForUsers(installResult,
+                    staged != null ? staged.getFile() : null, users, listener, metrics);
+            installer.record(metrics, installResult);
+            return installResult;
+        } catch (Exception e) {
+            installer.record(metrics, InstallResult.failure(e.getMessage()));
+            throw e;
+        } finally {
+            cache.release(staged);
+            // Also when cancelled or failed: the user saw the outcome, nothing to resume
+            journal.end();
+        }
+    }
+
+    InstallResult installBatch(InstallJob job, Selection selection, List<DeviceUser> users) {
+        InstallJournal.Job journal = ApkInstaller.installJournal(context).begin(
+                context.getString(R.string.selected_batch, selection.batch.size()), -1, users, selection.batch);
+        return runBatch(job, selection.batch, users, journal);
+    }
+
+    /**
+     * Repairs and finishes the jobs a previous process was killed in the
+     * middle of, as recorded in the {@link InstallJournal}. Files a cut-off
+     * replacement left next to the installed APKs are cleaned up first. A
+     * replacement cut off before all files were swapped is rolled back to its
+     * snapshot, one cut off before registering is registered, and the items
+     * that were not done yet are installed as a batch, from the staging cache
+     * where they were already staged.
+     */
+    InstallResult resume(InstallJob job) {
+        InstallJournal journal = ApkInstaller.installJournal(context);
+        ApkInstaller installer = new ApkInstaller(context, shell);
+        StringBuilder status = new StringBuilder();
+        int failed = 0;
+        for (InstallJournal.Interrupted interrupted : journal.interrupted()) {
+            List<BatchInstaller.Item> remaining = new ArrayList<>();
+            for (InstallJournal.Pending item : interrupted.getItems()) {
+                if (item.isDone()) {
+                    continue;
+                }
+                InstallResult repair = null;
+                if ((item.getPhase() == InstallJournal.Phase.REPLACING
+                        || item.getPhase() == InstallJournal.Phase.REPLACED) && !item.getTargets().isEmpty()) {
+                    // Staged copies and previous files a cut-off swap left next to the installed APKs
+                    new ApkReplacer(shell).cleanUp(item.getTargets());
+                }
+                switch (item.getPhase()) {
+                    case REPLACING:
+                        if (item.getSnapshotDir() != null) {
+                            repair = installer.rollbackInterrupted(item.getPackageName(), item.getSnapshotDir(),
+                                    job::setStatus);
+                        }
+                        // Without a snapshot the only way back to a consistent app is forward
+                        break;
+                    case REPLACED:
+                        repair = installer.finishReplacement(item.getPackageName(), item.getTargets(),
+                                job::setStatus);
+                        break;
+                    case REGISTERED:
+                        repair = InstallResult.success("Replaced " + item.getPackageName());
+                        break;
+                    default:
+                        // Nothing was touched yet, or nothing that needs undoing
+                        break;
+                }
+                if (repair != null) {
+                    status.append(item.getName()).append(": ").append(repair.getStatus()).append('\n');
+                    failed += repair.isSuccess() ? 0 : 1;
+                } else {
+                    remaining.add(new BatchInstaller.Item(item.getUri(), item.getName(), item.getSha256()));
+                }
+            }
+
+            // The new job ends the interrupted one as it begins, so a crash in
+            // between cannot run either twice
+            InstallJournal.Job resumed = journal.begin(interrupted.getName(), interrupted.getId(),
+                    interrupted.getUsers(), remaining);
+            if (remaining.isEmpty()) {
+                resumed.end();
+                continue;
+            }
+            InstallResult result = runBatch(job, remaining, interrupted.getUsers(), resumed);
+            status.append(interrupted.getName()).append(":\n").append(result.getStatus()).append('\n');
+        }
+        String toast = context.getString(R.string.resume_done);
+        return failed == 0 ? InstallResult.success(status.toString().trim(), toast)
+                : InstallResult.failure(status.toString().trim(), toast);
+    }
+
+    /**
+     * Whether {@link #resume} has anything to do.
+     */
+    boolean hasInterrupted() {
+        return !ApkInstaller.installJournal(context).interrupted().isEmpty();
+    }
+
+    private InstallResult runBatch(InstallJob job, List<BatchInstaller.Item> items, List<DeviceUser> users,
+                                   InstallJournal.Job journal) {
+        job.setStatus(context.getString(R.string.batch_progress, 0, items.size(), ""));
+
+        BatchInstaller batch = new BatchInstaller(context, new ApkInstaller(context, shell), jobs.workers(), users);
+        job.setCanceller(batch::cancel);
+        BatchInstaller.Summary summary;
+        try {
+            summary = batch.run(items, journal, (item, finished, total) -> {
+                if (finished >= 0) {
+                    job.setStatus(context.getString(R.string.batch_progress,
+                            finished, total, item.getName() + ": " + item.getState()));
+                }
+            });
+        } finally {
+            job.clearCanceller();
+            journal.end();
+        }
+        return InstallResult.success(summary.toString(), context.getString(R.string.batch_done,
+                summary.count(BatchInstaller.State.INSTALLED), items.size()));
+    }
+
+    /**
+     * Every user on the device other than the primary one.
+     */
+    List<DeviceUser> listOtherUsers() {
+        List<DeviceUser> users = new ArrayList<>();
+        for (DeviceUser user : new UserFanOut(shell, jobs.workers()).listUsers()) {
+            if (user.getId() != DeviceUser.PRIMARY_USER) {
+                users.add(user);
+            }
+        }
+        return users;
+    }
+
+    InstallResult rollback(InstallJob job, String packageName) {
+        job.setStatus(context.getString(R.string.rolling_back, packageName));
+        return new ApkInstaller(context, shell).rollback(packageName, job::setStatus);
+    }
+
+    /**
+     * {@link #copyToCache(InstallJob, Uri, String, InstallMetrics)} without timing the copy.
+     */
+    private StagingCache.Entry copyToCache(InstallJob job, Uri uri, String fileName) throws IOException {
+        return copyToCache(job, uri, fileName, null);
+    }
+
+    /**
+     * Returns {@code uri} from the staging cache, copying it in first unless
+     * the cache already holds it, and reports progress as the job's status.
+     * Cancelling the job stops the copy with an
+     * {@link InterruptedIOException} and leaves no file behind. The returned
+     * entry is pinned until released.
+     *
+     * @param metrics times the copy as a stage, or null
+     */
+    private StagingCache.Entry copyToCache(InstallJob job, Uri uri, String fileName, InstallMetrics metrics)
+            throws IOException {
+        StagingCache cache = ApkInstaller.stagingCache(context);
+        StagingCache.Entry staged = cache.find(context.getContentResolver(), uri);
+        if (staged != null) {
+            return staged;
+        }
+        InstallMetrics.Stage stage = metrics != null ? metrics.begin("copy to cache") : null;
+        try {
+            staged = stage(job, cache, uri, fileName);
+            if (metrics != null) {
+                metrics.end(stage, staged.getSize(), true);
+            }
+            return staged;
+        } catch (IOException e) {
+            if (metrics != null) {
+                metrics.end(stage, 0, false);
+            }
+            throw e;
+        }
+    }
+
+    private StagingCache.Entry stage(InstallJob job, StagingCache cache, Uri uri, String fileName)
+            throws IOException {
+        MessageDigest digest = StagingCache.newDigest();
+        FileStager stager = new FileStager((done, total, bytesPerSecond) ->
+                job.setStatus(context.getString(R.string.copying_progress,
+                        Formatter.formatShortFileSize(context, done),
+                        total >= 0 ? Formatter.formatShortFileSize(context, total) : "?",
+                        Formatter.formatShortFileSize(context, bytesPerSecond))), digest);
+        job.setCanceller(stager::cancel);
+        try {
+            return cache.stage(context.getContentResolver(), uri, fileName, stager, digest);
+        } finally {
+            job.clearCanceller();
+        }
+    }
+
+    /**
+     * Streams the selected APK, or every split of a bundle, into a pm install
+     * session, reporting throughput.
+     */
+    private ShellResult streamInstall(InstallJob job, Uri uri, long size, String fileName) throws IOException {
+        try (InputStream inputStream = context.getContentResolver().openInputStream(uri)) {
+            if (inputStream == null) {
+                throw new IOException("Could not read file");
+            }
+            ProgressListener progress = (done, total, bytesPerSecond) ->
+                    job.setStatus(context.getString(R.string.streaming_progress,
+                            Formatter.formatShortFileSize(context, done),
+                            Formatter.formatShortFileSize(context, total >= 0 ? total : size),
+                            Formatter.formatShortFileSize(context, bytesPerSecond)));
+            SessionInstaller sessionInstaller = new SessionInstaller(shell);
+            if (ApkBundle.isBundle(fileName)) {
+                return sessionInstaller.installBundle(inputStream, context.getCacheDir(), progress);
+            }
+            return sessionInstaller.install(inputStream, size, progress);
+        }
+    }
+
+    /**
+     * Runs the signer pre-flight check straight on the provider's file
+     * descriptor. Returns null when the provider does not hand out a seekable
+     * file, in which case the streamed install simply goes first.
+     */
+    private Preflight.Plan preflight(ApkInstaller installer, Uri uri, String fileName) {
+        if (ApkBundle.isBundle(fileName)) {
+            return null;
+        }
+        try (ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(uri, "r");
+             FileInputStream in = new FileInputStream(pfd.getFileDescriptor());
+             FileChannel channel = in.getChannel()) {
+            long size = channel.size();
+            long lastModified = ContentStaging.lastModified(context.getContentResolver(), uri);
+            return installer.preflight(ApkReader.read(channel), () ->
+                    ApkInstaller.hashIndex(context).hash(uri.toString(), size, lastModified,
+                            () -> context.getContentResolver().openInputStream(uri)));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private List<BatchInstaller.Item> listApksInTree(Uri treeUri) {
+        List<BatchInstaller.Item> items = new ArrayList<>();
+        Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(treeUri,
+                DocumentsContract.getTreeDocumentId(treeUri));
+        Cursor cursor = context.getContentResolver().query(childrenUri, new String[]{
+                DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+                DocumentsContract.Document.COLUMN_DISPLAY_NAME
+        }, null, null, null);
+        try {
+            while (cursor != null && cursor.moveToNext()) {
+                String name = cursor.getString(1);
+                if (name != null && (name.toLowerCase(Locale.ROOT).endsWith(".apk") || ApkBundle.isBundle(name))) {
+                    Uri uri = DocumentsContract.buildDocumentUriUsingTree(treeUri, cursor.getString(0));
+                    items.add(new BatchInstaller.Item(uri, name));
+                }
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return items;
+    }
+
+    private String getFileName(Uri uri) {
+        String result = null;
+        if (uri.getScheme().equals("content")) {
+            Cursor cursor = context.getContentResolver().query(uri, null, null, null, null);
+            try {
+                if (cursor != null && cursor.moveToFirst()) {
+                    int nameIndex = cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME);
+                    if (nameIndex >= 0) {
+                        result = cursor.getString(nameIndex);
+                    }
+                }
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+        if (result == null) {
+            result = uri.getPath();
+            int cut = result.lastIndexOf('/');
+            if (cut != -1) {
+                result = result.substring(cut + 1);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,348 @@
+package com.simonbaars.androidforceinstall;
+
+import android.os.Build;
+
+import com.topjohnwu.superuser.Shell;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link RootShell} backed by a small pool of persistent libsu root shells.
+ * Shells are opened once, ideally by {@link #warmUp(Executor)} while the app checks
+ * for root, and reused for every command after that, so unrelated packages
+ * can be queried at the same time without paying for a new su process each
+ * time. A shell whose command times out is closed and replaced.
+ */
+public class LibsuRootShell implements RootShell {
+
+    // Only opening a shell waits for the user to grant root, commands have their own timeouts
+    private static final long SU_GRANT_TIMEOUT_SECONDS = 10;
+    private static final int DEFAULT_POOL_SIZE = 3;
+    // How often a piped command is checked for output and exit
+    private static final long OUTPUT_POLL_MILLIS = 10;
+
+    private final int poolSize;
+    private final BlockingQueue<Shell> idle = new LinkedBlockingQueue<>();
+    // Shells that are open, idle or busy
+    private final AtomicInteger open = new AtomicInteger();
+    private final AtomicLong roundTrips = new AtomicLong();
+    private final AtomicLong pipedProcesses = new AtomicLong();
+    private final SecureRandom random = new SecureRandom();
+
+    public LibsuRootShell() {
+        this(DEFAULT_POOL_SIZE);
+    }
+
+    public LibsuRootShell(int poolSize) {
+        this.poolSize = Math.max(1, poolSize);
+    }
+
+    /**
+     * Opens the first shell, which is where su asks for root, and the rest of
+     * the pool on {@code executor}. Blocks until the first shell is open.
+     *
+     * @return whether the shell has root
+     */
+    public boolean warmUp(Executor executor) {
+        Shell first;
+        try {
+            first = borrow();
+        } catch (RuntimeException e) {
+            return false;
+        }
+        boolean root = first.isRoot();
+        release(first);
+        if (root) {
+            executor.execute(() -> {
+                while (true) {
+                    int count = open.get();
+                    if (count >= poolSize) {
+                        return;
+                    }
+                    if (open.compareAndSet(count, count + 1)) {
+                        try {
+                            idle.offer(newShell());
+                        } catch (RuntimeException e) {
+                            open.decrementAndGet();
+                            return;
+                        }
+                    }
+                }
+            });
+        }
+        return root;
+    }
+
+    @Override
+    public ShellResult exec(String... commands) {
+        return exec(DEFAULT_TIMEOUT_MILLIS, commands);
+    }
+
+    @Override
+    public ShellResult exec(long timeoutMillis, String... commands) {
+        Shell shell;
+        try {
+            shell = borrow();
+        } catch (RuntimeException e) {
+            return new ShellResult(-1, Collections.singletonList("No root shell: " + e.getMessage()));
+        }
+
+        Future<Shell.Result> future = shell.newJob().add(commands).enqueue();
+        roundTrips.incrementAndGet();
+        try {
+            Shell.Result result = future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            release(shell);
+            return new ShellResult(result.getCode(), result.getOut());
+        } catch (TimeoutException e) {
+            // The command is still running in that shell, so it cannot be reused
+            discard(shell);
+            return new ShellResult(TIMEOUT_CODE, Collections.singletonList(
+                    "Timed out after " + timeoutMillis + " ms: " + String.join("; ", commands)));
+        } catch (ExecutionException e) {
+            discard(shell);
+            return new ShellResult(-1, Collections.singletonList("Shell failed: " + e.getCause()));
+        } catch (InterruptedException e) {
+            discard(shell);
+            Thread.currentThread().interrupt();
+            return new ShellResult(-1, Collections.singletonList("Interrupted"));
+        }
+    }
+
+    @Override
+    public List<ShellResult> execBatch(long timeoutMillis, String... commands) {
+        // Each command runs in a subshell so it cannot affect the others, and is
+        // followed by a marker line carrying its exit code, which splits the
+        // combined output apart again
+        String marker = "__afi_" + Long.toHexString(random.nextLong()) + "__";
+        List<String> script = new ArrayList<>();
+        for (String command : commands) {
+            script.add("( " + command + " ) 2>&1");
+            script.add("echo \"" + marker + " $?\"");
+        }
+        ShellResult combined = exec(timeoutMillis, script.toArray(new String[0]));
+        return splitBatch(combined, marker, commands.length);
+    }
+
+    static List<ShellResult> splitBatch(ShellResult combined, String marker, int count) {
+        List<ShellResult> results = new ArrayList<>(count);
+        List<String> out = new ArrayList<>();
+        for (String line : combined.getOut()) {
+            int at = line.indexOf(marker);
+            if (at < 0) {
+                out.add(line);
+                continue;
+            }
+            // Output without a trailing newline ends up in front of the marker
+            if (at > 0) {
+                out.add(line.substring(0, at));
+            }
+            int code;
+            try {
+                code = Integer.parseInt(line.substring(at + marker.length()).trim());
+            } catch (NumberFormatException e) {
+                code = -1;
+            }
+            results.add(new ShellResult(code, out));
+            out = new ArrayList<>();
+        }
+        // Commands that never reported back, e.g. after a timeout, share its result
+        while (results.size() < count) {
+            results.add(new ShellResult(combined.isSuccess() ? -1 : combined.getCode(), out));
+            out = Collections.emptyList();
+        }
+        return results;
+    }
+
+    @Override
+    public ShellResult execWithInput(String command, InputStream input, long size,
+                                     ProgressListener listener) throws IOException {
+        // libsu feeds its shell's stdin with the scripts themselves, so a command
+        // reading raw bytes from stdin gets its own su process instead. Counted
+        // apart from the round trips, which all go to the pooled shells
+        pipedProcesses.incrementAndGet();
+        Process process = new ProcessBuilder("su", "-c", command)
+                .redirectErrorStream(true)
+                .start();
+
+        IOException writeError = null;
+        try (OutputStream stdin = process.getOutputStream()) {
+            StreamCopy.copy(input, stdin, size, listener);
+        } catch (IOException e) {
+            // The command may have exited early; its output explains why
+            writeError = e;
+        }
+
+        // Drain the output while waiting, so a command that never exits cannot hold this thread
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        int code;
+        try (InputStream stdout = process.getInputStream()) {
+            Integer exit = waitFor(process, stdout, output, INSTALL_TIMEOUT_MILLIS);
+            if (exit == null) {
+                kill(process);
+                List<String> out = lines(output);
+                out.add("Timed out after " + INSTALL_TIMEOUT_MILLIS + " ms: " + command);
+                return new ShellResult(TIMEOUT_CODE, out);
+            }
+            code = exit;
+            // Whatever was still buffered when it exited
+            StreamCopy.copy(stdout, output, -1, null);
+        } catch (InterruptedException e) {
+            kill(process);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for: " + command, e);
+        }
+        List<String> out = lines(output);
+
+        if (writeError != null && code == 0) {
+            throw writeError;
+        }
+        return new ShellResult(code, out);
+    }
+
+    /**
+     * Copies the output of {@code process} into {@code output} until it exits
+     * or {@code timeoutMillis} have passed. Polls instead of using
+     * {@code waitFor(long, TimeUnit)}, which needs API 26.
+     *
+     * @return the exit code, or null on timeout
+     */
+    private static Integer waitFor(Process process, InputStream stdout, ByteArrayOutputStream output,
+                                   long timeoutMillis) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000L;
+        byte[] buffer = new byte[8192];
+        while (true) {
+            int available = stdout.available();
+            if (available > 0) {
+                int read = stdout.read(buffer, 0, Math.min(available, buffer.length));
+                if (read > 0) {
+                    output.write(buffer, 0, read);
+                }
+                continue;
+            }
+            try {
+                return process.exitValue();
+            } catch (IllegalThreadStateException e) {
+                // Still running
+            }
+            if (System.nanoTime() >= deadline) {
+                return null;
+            }
+            Thread.sleep(OUTPUT_POLL_MILLIS);
+        }
+    }
+
+    private static void kill(Process process) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            process.destroyForcibly();
+        } else {
+            process.destroy();
+        }
+    }
+
+    private static List<String> lines(ByteArrayOutputStream output) throws IOException {
+        List<String> out = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(output.toByteArray()), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                out.add(line);
+            }
+        }
+        return out;
+    }
+
+    @Override
+    public long getRoundTrips() {
+        return roundTrips.get();
+    }
+
+    @Override
+    public long getPipedProcesses() {
+        return pipedProcesses.get();
+    }
+
+    /**
+     * Takes an idle shell, opens a new one while the pool has room, or waits
+     * for one to be released.
+     */
+    private Shell borrow() {
+        while (true) {
+            Shell shell = idle.poll();
+            if (shell != null) {
+                if (shell.isAlive()) {
+                    return shell;
+                }
+                discard(shell);
+                continue;
+            }
+            int count = open.get();
+            if (count < poolSize) {
+                if (open.compareAndSet(count, count + 1)) {
+                    try {
+                        return newShell();
+                    } catch (RuntimeException e) {
+                        open.decrementAndGet();
+                        throw e;
+                    }
+                }
+                continue;
+            }
+            try {
+                shell = idle.poll(SU_GRANT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for a shell", e);
+            }
+            if (shell != null) {
+                if (shell.isAlive()) {
+                    return shell;
+                }
+                discard(shell);
+            }
+        }
+    }
+
+    private void release(Shell shell) {
+        if (shell.isAlive()) {
+            idle.offer(shell);
+        } else {
+            discard(shell);
+        }
+    }
+
+    private void discard(Shell shell) {
+        open.decrementAndGet();
+        try {
+            shell.close();
+        } catch (IOException e) {
+            // Already gone
+        }
+    }
+
+    private static Shell newShell() {
+        return Shell.Builder.create()
+                .setFlags(Shell.FLAG_REDIRECT_STDERR)
+                .setTimeout(SU_GRANT_TIMEOUT_SECONDS)
+                .build();
+    }
+}
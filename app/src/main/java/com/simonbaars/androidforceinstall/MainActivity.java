@@ -1,13 +1,15 @@
 package com.simonbaars.androidforceinstall;
 
+import android.Manifest;
 import android.app.Activity;
+import android.content.ClipData;
+import android.content.ComponentName;
 import android.content.Intent;
-import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
-import android.database.Cursor;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
-import android.provider.OpenableColumns;
+import android.view.View;
 import android.widget.Button;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -17,28 +19,50 @@ import androidx.appcompat.app.AppCompatActivity;
 
 import com.topjohnwu.superuser.Shell;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 
-public class MainActivity extends AppCompatActivity {
+public class MainActivity extends AppCompatActivity implements InstallJobs.Listener {
 
     private static final int PICK_APK_REQUEST = 1;
-    
+    private static final int PICK_FOLDER_REQUEST = 2;
+    private static final int EXPORT_METRICS_REQUEST = 3;
+    private static final int NOTIFICATION_PERMISSION_REQUEST = 4;
+    // Installs the metrics summary looks back over
+    private static final int METRICS_WINDOW = 50;
+
+    // Rolls back the last direct replacement of the package in EXTRA_PACKAGE
+    static final String ACTION_ROLLBACK = "com.simonbaars.androidforceinstall.action.ROLLBACK";
+    static final String EXTRA_PACKAGE = "package";
+    // The non-exported alias ACTION_ROLLBACK has to come through
+    private static final String ROLLBACK_ALIAS = "com.simonbaars.androidforceinstall.RollbackActivity";
+
     private Button selectButton;
+    private Button selectFolderButton;
     private Button installButton;
+    private Button rollbackButton;
+    private Button usersButton;
+    private Button cancelButton;
     private TextView selectedFileText;
     private TextView statusText;
     private TextView rootStatusText;
-    private File selectedApkFile;
+    // Jobs and the current selection live here, not in the activity, so they survive recreation
+    private InstallJobs jobs;
+    private InstallTasks tasks;
+
+    // Shared by every activity instance, so the warm shells outlive rotations
+    private static final LibsuRootShell rootShell = new LibsuRootShell();
+    // Once granted, a recreated activity does not ask the shell again
+    private static volatile boolean rootGranted;
+    // Interrupted jobs are looked for once per process, not on every recreate
+    private static boolean resumeChecked;
 
     static {
-        // Set libsu configurations
+        // Set libsu configurations, the shells themselves are built by LibsuRootShell
         Shell.enableVerboseLogging = BuildConfig.DEBUG;
-        Shell.setDefaultBuilder(Shell.Builder.create()
-                .setFlags(Shell.FLAG_REDIRECT_STDERR)
-                .setTimeout(10));
     }
 
     @Override
@@ -46,34 +70,168 @@ public class MainActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
+        jobs = InstallJobs.get(this);
+        tasks = new InstallTasks(this, rootShell);
+
         selectButton = findViewById(R.id.selectButton);
+        selectFolderButton = findViewById(R.id.selectFolderButton);
         installButton = findViewById(R.id.installButton);
+        rollbackButton = findViewById(R.id.rollbackButton);
+        usersButton = findViewById(R.id.usersButton);
+        cancelButton = findViewById(R.id.cancelButton);
         selectedFileText = findViewById(R.id.selectedFile);
         statusText = findViewById(R.id.status);
         rootStatusText = findViewById(R.id.rootStatus);
 
         selectButton.setOnClickListener(v -> selectApkFile());
+        selectFolderButton.setOnClickListener(v -> selectApkFolder());
         installButton.setOnClickListener(v -> installApk());
+        rollbackButton.setOnClickListener(v -> chooseRollback());
+        usersButton.setOnClickListener(v -> chooseUsers());
+        cancelButton.setOnClickListener(v -> jobs.cancelAll());
+        findViewById(R.id.metricsButton).setOnClickListener(v -> showMetrics());
 
         checkRootAccess();
+        // Only a fresh launch acts on the intent, a recreated activity already did
+        if (savedInstanceState == null) {
+            handleRollbackIntent(getIntent());
+        }
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        jobs.addListener(this);
+        render();
+    }
+
+    @Override
+    protected void onStop() {
+        jobs.removeListener(this);
+        super.onStop();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (isFinishing()) {
+            // Nobody is left to install what was being picked
+            jobs.cancelPick();
+        }
+    }
+
+    @Override
+    protected void onNewIntent(Intent intent) {
+        super.onNewIntent(intent);
+        handleRollbackIntent(intent);
+    }
+
+    @Override
+    public void onJobsChanged() {
+        render();
+    }
+
+    /**
+     * Shows the current selection and the latest job. Called on every
+     * coalesced job update, so it only reads state and never blocks.
+     */
+    private void render() {
+        Selection selection = jobs.getSelection();
+        String selected;
+        if (selection == null) {
+            selected = getString(R.string.no_file_selected);
+        } else if (selection.isBatch()) {
+            selected = getString(R.string.selected_batch, selection.batch.size());
+        } else {
+            selected = getString(R.string.selected_file, selection.name);
+        }
+        List<DeviceUser> otherUsers = jobs.getOtherUsers();
+        if (!otherUsers.isEmpty()) {
+            selected += "\n" + getString(R.string.selected_users, otherUsers.size());
+        }
+        selectedFileText.setText(selected);
+
+        selectButton.setEnabled(rootGranted);
+        selectFolderButton.setEnabled(rootGranted);
+        rollbackButton.setEnabled(rootGranted);
+        usersButton.setEnabled(rootGranted);
+        installButton.setEnabled(rootGranted && selection != null);
+        cancelButton.setVisibility(jobs.hasCancellable() ? View.VISIBLE : View.GONE);
+
+        // A running install is what the user waits for, otherwise show whatever happened last
+        InstallJob current = jobs.current();
+        InstallJob shown = current != null ? current : jobs.latest();
+        if (shown != null) {
+            String status = shown.getStatus();
+            statusText.setText(status != null ? status : "");
+        }
+        for (InstallJob job : jobs.getJobs()) {
+            if (job.takeResultToShow()) {
+                Toast.makeText(this, job.getResult().getToast(), Toast.LENGTH_LONG).show();
+            }
+        }
+    }
+
+    /**
+     * Acts on {@link #ACTION_ROLLBACK} only if it was sent to the alias, which
+     * other apps cannot start; this activity itself is exported, so anyone
+     * could send it the action directly. Whoever can reach the alias already
+     * has root, so the rollback starts right away, without a dialog a script
+     * could not answer.
+     */
+    private void handleRollbackIntent(Intent intent) {
+        if (intent == null || !ACTION_ROLLBACK.equals(intent.getAction())) {
+            return;
+        }
+        ComponentName component = intent.getComponent();
+        String packageName = intent.getStringExtra(EXTRA_PACKAGE);
+        if (component == null || !ROLLBACK_ALIAS.equals(component.getClassName()) || packageName == null) {
+            return;
+        }
+        rollback(packageName);
     }
 
     private void checkRootAccess() {
+        if (rootGranted) {
+            rootStatusText.setText(R.string.root_granted);
+            return;
+        }
         rootStatusText.setText("Checking root access...");
-        
-        new Thread(() -> {
-            Shell.getShell(shell -> {
-                runOnUiThread(() -> {
-                    if (shell.isRoot()) {
-                        rootStatusText.setText(R.string.root_granted);
-                        selectButton.setEnabled(true);
-                    } else {
-                        rootStatusText.setText(R.string.root_denied);
-                        showRootRequiredDialog();
-                    }
-                });
+
+        jobs.execute(() -> {
+            // Opening the root shells here means the first install finds them ready
+            boolean root = rootShell.warmUp(jobs.workers());
+            runOnUiThread(() -> {
+                if (isFinishing() || isDestroyed()) {
+                    return;
+                }
+                if (root) {
+                    rootGranted = true;
+                    rootStatusText.setText(R.string.root_granted);
+                    render();
+                    resumeInterrupted();
+                } else {
+                    rootStatusText.setText(R.string.root_denied);
+                    showRootRequiredDialog();
+                }
             });
-        }).start();
+        });
+    }
+
+    /**
+     * Picks up the installs the previous process was killed in the middle of.
+     */
+    private void resumeInterrupted() {
+        if (resumeChecked) {
+            return;
+        }
+        resumeChecked = true;
+        jobs.execute(() -> {
+            if (tasks.hasInterrupted()) {
+                runOnUiThread(() -> jobs.submit("resume", getString(R.string.resuming), true,
+                        job -> tasks.resume(job)));
+            }
+        });
     }
 
     private void showRootRequiredDialog() {
@@ -85,381 +243,209 @@ public class MainActivity extends AppCompatActivity {
                 .show();
     }
 
+    /**
+     * Asks once for the permission the install notification needs on
+     * Android 13 and later. Installs run the same without it, just without a
+     * visible notification.
+     */
+    private void requestNotificationPermission() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU
+                && checkSelfPermission(Manifest.permission.POST_NOTIFICATIONS) != PackageManager.PERMISSION_GRANTED) {
+            requestPermissions(new String[]{Manifest.permission.POST_NOTIFICATIONS}, NOTIFICATION_PERMISSION_REQUEST);
+        }
+    }
+
     private void selectApkFile() {
-        Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
-        intent.setType("application/vnd.android.package-archive");
+        // Opened as documents, so an interrupted install can still read them after a restart
+        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_GRANT_PERSISTABLE_URI_PERMISSION);
+        // Split bundles (.apks/.xapk) come with generic ZIP mime types
+        intent.setType("*/*");
+        intent.putExtra(Intent.EXTRA_MIME_TYPES, new String[]{
+                "application/vnd.android.package-archive",
+                "application/zip",
+                "application/octet-stream"
+        });
         intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
         startActivityForResult(intent, PICK_APK_REQUEST);
     }
 
+    private void selectApkFolder() {
+        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT_TREE);
+        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_GRANT_PERSISTABLE_URI_PERMISSION);
+        startActivityForResult(intent, PICK_FOLDER_REQUEST);
+    }
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
-        
-        if (requestCode == PICK_APK_REQUEST && resultCode == Activity.RESULT_OK) {
+
+        if (requestCode == EXPORT_METRICS_REQUEST && resultCode == Activity.RESULT_OK) {
             if (data != null && data.getData() != null) {
-                Uri uri = data.getData();
-                
-                // Copy the file to cache directory for installation
-                new Thread(() -> {
-                    try {
-                        String fileName = getFileName(uri);
-                        File cacheFile = new File(getCacheDir(), fileName != null ? fileName : "temp.apk");
-                        
-                        InputStream inputStream = getContentResolver().openInputStream(uri);
-                        if (inputStream != null) {
-                            FileOutputStream outputStream = new FileOutputStream(cacheFile);
-                            byte[] buffer = new byte[4096];
-                            int bytesRead;
-                            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                                outputStream.write(buffer, 0, bytesRead);
-                            }
-                            outputStream.close();
-                            inputStream.close();
-                            
-                            runOnUiThread(() -> {
-                                selectedApkFile = cacheFile;
-                                selectedFileText.setText(getString(R.string.selected_file, fileName != null ? fileName : "temp.apk"));
-                                installButton.setEnabled(true);
-                                statusText.setText("");
-                            });
-                        } else {
-                            runOnUiThread(() -> Toast.makeText(this, "Could not read file", Toast.LENGTH_SHORT).show());
-                        }
-                    } catch (Exception e) {
-                        runOnUiThread(() -> Toast.makeText(this, "Error: " + e.getMessage(), Toast.LENGTH_SHORT).show());
-                    }
-                }).start();
+                exportMetrics(data.getData());
             }
+            return;
         }
-    }
-    
-    private String getFileName(Uri uri) {
-        String result = null;
-        if (uri.getScheme().equals("content")) {
-            Cursor cursor = getContentResolver().query(uri, null, null, null, null);
-            try {
-                if (cursor != null && cursor.moveToFirst()) {
-                    int nameIndex = cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME);
-                    if (nameIndex >= 0) {
-                        result = cursor.getString(nameIndex);
-                    }
-                }
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
-                }
+
+        if (requestCode == PICK_FOLDER_REQUEST && resultCode == Activity.RESULT_OK) {
+            if (data != null && data.getData() != null) {
+                Uri treeUri = data.getData();
+                long generation = jobs.newPick();
+                jobs.submit("pick:" + generation, treeUri.toString(), false,
+                        job -> tasks.pickFolder(treeUri, generation));
             }
+            return;
         }
-        if (result == null) {
-            result = uri.getPath();
-            int cut = result.lastIndexOf('/');
-            if (cut != -1) {
-                result = result.substring(cut + 1);
+
+        if (requestCode == PICK_APK_REQUEST && resultCode == Activity.RESULT_OK) {
+            ClipData clipData = data != null ? data.getClipData() : null;
+            if (clipData != null && clipData.getItemCount() > 1) {
+                long generation = jobs.newPick();
+                jobs.submit("pick:" + generation, getString(R.string.selected_batch, clipData.getItemCount()), false,
+                        job -> tasks.pickMultiple(clipData, generation));
+                return;
+            }
+            // Some pickers report a single pick through the clip data only
+            Uri pickedUri = data == null ? null
+                    : data.getData() != null ? data.getData()
+                    : clipData != null ? clipData.getItemAt(0).getUri() : null;
+            if (pickedUri != null) {
+                // A newer pick always wins, whichever finishes first
+                long generation = jobs.newPick();
+                jobs.submit("pick:" + generation, pickedUri.toString(), false,
+                        job -> tasks.pick(job, pickedUri, generation));
             }
         }
-        return result;
     }
 
     private void installApk() {
-        if (selectedApkFile == null || !selectedApkFile.exists()) {
+        Selection selection = jobs.getSelection();
+        if (selection == null || (selection.file != null && !selection.file.exists())) {
             Toast.makeText(this, "Please select a valid APK file", Toast.LENGTH_SHORT).show();
             return;
         }
 
-        installButton.setEnabled(false);
-        selectButton.setEnabled(false);
-        statusText.setText(R.string.installing);
-
-        new Thread(() -> {
-            try {
-                String apkPath = selectedApkFile.getAbsolutePath();
-                
-                // Use pm install with root to force install the APK
-                // The -d flag allows downgrading
-                // The -r flag replaces existing application
-                // The --user 0 flag ensures installation to user space (not private space)
-                Shell.Result result = Shell.cmd(
-                        "pm install -d -r --user 0 \"" + apkPath + "\""
-                ).exec();
-
-                // Check if installation failed due to signature mismatch or other issues
-                if (!result.isSuccess()) {
-                    String output = String.join("\n", result.getOut());
-                    
-                    // Extract package name from the APK using PackageManager
-                    // We need this to check installation status and handle special cases
-                    String packageName = null;
-                    try {
-                        PackageManager pm = getPackageManager();
-                        PackageInfo info = pm.getPackageArchiveInfo(apkPath, 0);
-                        if (info != null) {
-                            packageName = info.packageName;
-                        }
-                    } catch (Exception e) {
-                        // Failed to get package name from PackageManager
-                    }
-                    
-                    // Check for signature mismatch errors
-                    // When an APK with a different signature is installed over an existing app,
-                    // Android refuses the installation for security reasons.
-                    // Our NEW approach: replace APK file directly on filesystem
-                    // This preserves all app data since we don't uninstall
-                    // 
-                    // WARNING: This approach bypasses Android's security checks
-                    // - The app may fail signature verification on launch
-                    // - PackageManager cache may become out of sync
-                    // - May not work on all Android versions
-                    boolean isSignatureMismatch = output.contains("INSTALL_FAILED_UPDATE_INCOMPATIBLE") || 
-                        output.contains("signatures do not match") ||
-                        (output.contains("Existing package") && output.contains("signatures do not match"));
-                    
-                    if (isSignatureMismatch) {
-                        runOnUiThread(() -> {
-                            statusText.setText("Signature mismatch detected. Replacing APK directly...");
-                        });
+        requestNotificationPermission();
+        // Installing the same selection for the same users again while it is
+        // queued or running returns that job
+        List<DeviceUser> users = jobs.getOtherUsers();
+        StringBuilder key = new StringBuilder(selection.key());
+        for (DeviceUser user : users) {
+            key.append("|user:").append(user.getId());
+        }
+        if (selection.isBatch()) {
+            jobs.submit(key.toString(), getString(R.string.selected_batch, selection.batch.size()), true,
+                    job -> tasks.installBatch(job, selection, users));
+        } else {
+            jobs.submit(key.toString(), selection.name, true, job -> tasks.install(job, selection, users));
+        }
+    }
+
+    /**
+     * Lets the user pick which other users, such as a work profile, installs
+     * also go to. The APK is installed once; each chosen user only gets a
+     * {@code pm install-existing}.
+     */
+    private void chooseUsers() {
+        jobs.execute(() -> {
+            List<DeviceUser> users = tasks.listOtherUsers();
+            runOnUiThread(() -> {
+                if (isFinishing() || isDestroyed()) {
+                    return;
+                }
+                if (users.isEmpty()) {
+                    jobs.setOtherUsers(users);
+                    Toast.makeText(this, R.string.no_other_users, Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                List<DeviceUser> current = jobs.getOtherUsers();
+                String[] names = new String[users.size()];
+                boolean[] checked = new boolean[users.size()];
+                for (int i = 0; i < users.size(); i++) {
+                    names[i] = users.get(i).toString();
+                    for (DeviceUser user : current) {
+                        checked[i] |= user.getId() == users.get(i).getId();
                     }
-                    
-                    if (packageName != null) {
-                        final String pkgName = packageName;
-                        
-                        // Check if the app is currently installed
-                        boolean isAppInstalled = false;
-                        try {
-                            getPackageManager().getPackageInfo(packageName, 0);
-                            isAppInstalled = true;
-                        } catch (PackageManager.NameNotFoundException e) {
-                            // App is not installed
-                        }
-                        
-                        if (!isAppInstalled) {
-                            // App is not installed according to PackageManager
-                            // This could be:
-                            // 1. A fresh install attempt with signature mismatch detection (false positive)
-                            // 2. A corrupted installation with leftover files
-                            // 
-                            // In either case, we need to clean up and install fresh
-                            runOnUiThread(() -> {
-                                statusText.setText("App not installed or corrupted. Cleaning up and installing...");
-                            });
-                            
-                            // Try to clean up any corruption and install fresh
-                            // The uninstall will fail if nothing exists, but that's okay
-                            // Use --user 0 to ensure operations in user space
-                            Shell.Result forceInstallResult = Shell.cmd(
-                                    "pm uninstall --user 0 " + packageName,
-                                    "pm install -d -r --user 0 \"" + apkPath + "\""
-                            ).exec();
-                            
-                            final Shell.Result finalForceResult = forceInstallResult;
-                            runOnUiThread(() -> {
-                                if (finalForceResult.isSuccess() || finalForceResult.getOut().toString().contains("Success")) {
-                                    statusText.setText("App installed successfully");
-                                    Toast.makeText(MainActivity.this, "App installed successfully!", Toast.LENGTH_LONG).show();
-                                } else {
-                                    String error = finalForceResult.getOut().isEmpty() ? 
-                                            "Unknown error" : 
-                                            String.join("\n", finalForceResult.getOut());
-                                    statusText.setText("Installation failed: " + error);
-                                    Toast.makeText(MainActivity.this, "Installation failed: " + error, Toast.LENGTH_LONG).show();
+                }
+                new AlertDialog.Builder(this)
+                        .setTitle(R.string.users_choose)
+                        .setMultiChoiceItems(names, checked, (dialog, which, isChecked) -> checked[which] = isChecked)
+                        .setPositiveButton(android.R.string.ok, (dialog, which) -> {
+                            List<DeviceUser> chosen = new ArrayList<>();
+                            for (int i = 0; i < users.size(); i++) {
+                                if (checked[i]) {
+                                    chosen.add(users.get(i));
                                 }
-                                installButton.setEnabled(true);
-                                selectButton.setEnabled(true);
-                            });
-                            return;
-                        }
-                        
-                        // If we reach here, the app IS installed and we have a signature mismatch
-                        // Only proceed with direct APK replacement if it's actually a signature mismatch
-                        if (!isSignatureMismatch) {
-                            // Installation failed for a different reason (not signature mismatch)
-                            // and the app IS installed, so just report the error
-                            runOnUiThread(() -> {
-                                String error = output.isEmpty() ? "Unknown error" : output;
-                                statusText.setText("Installation failed: " + error);
-                                Toast.makeText(MainActivity.this, getString(R.string.install_error, error), Toast.LENGTH_LONG).show();
-                                installButton.setEnabled(true);
-                                selectButton.setEnabled(true);
-                            });
-                            return;
-                        }
-                        
-                        runOnUiThread(() -> {
-                            statusText.setText("Finding installed APK location for " + pkgName + "...");
-                        });
-                        
-                        // Get the APK installation path(s)
-                        // Use --user 0 to query user space
-                        Shell.Result pathResult = Shell.cmd(
-                                "pm path --user 0 " + packageName
-                        ).exec();
-                        
-                        if (!pathResult.isSuccess() || pathResult.getOut().isEmpty()) {
-                            runOnUiThread(() -> {
-                                statusText.setText("Could not find installed APK location");
-                                Toast.makeText(MainActivity.this, "Could not find installed APK location", Toast.LENGTH_LONG).show();
-                                installButton.setEnabled(true);
-                                selectButton.setEnabled(true);
-                            });
-                            return;
-                        }
-                        
-                        // Parse APK paths - can be multiple for split APKs
-                        List<String> installedApkPaths = new java.util.ArrayList<>();
-                        for (String line : pathResult.getOut()) {
-                            if (line.startsWith("package:")) {
-                                installedApkPaths.add(line.replace("package:", "").trim());
                             }
-                        }
-                        
-                        if (installedApkPaths.isEmpty()) {
-                            runOnUiThread(() -> {
-                                statusText.setText("Could not parse APK paths");
-                                Toast.makeText(MainActivity.this, "Could not parse APK paths", Toast.LENGTH_LONG).show();
-                                installButton.setEnabled(true);
-                                selectButton.setEnabled(true);
-                            });
-                            return;
-                        }
-                        
-                        // Check if this is a split APK installation
-                        boolean isSplitApk = installedApkPaths.size() > 1;
-                        String baseApkPath = installedApkPaths.get(0);
-                        
-                        if (isSplitApk) {
-                            runOnUiThread(() -> {
-                                statusText.setText("Warning: App uses split APKs. This may not work correctly.");
-                                Toast.makeText(MainActivity.this, "Warning: Split APK detected. Replacement may fail.", Toast.LENGTH_LONG).show();
-                            });
-                        }
-                        
-                        runOnUiThread(() -> {
-                            statusText.setText("Force-stopping " + pkgName + "...");
-                        });
-                        
-                        // Force stop the app before replacing APK
-                        // Use --user 0 to target user space
-                        Shell.Result stopResult = Shell.cmd(
-                                "am force-stop --user 0 " + packageName
-                        ).exec();
-                        
-                        if (!stopResult.isSuccess()) {
-                            runOnUiThread(() -> {
-                                statusText.setText("Warning: Could not force-stop app");
-                            });
-                        }
-                        
-                        // Sleep briefly to ensure app is fully stopped
-                        try {
-                            Thread.sleep(1000);
-                        } catch (InterruptedException e) {
-                            // Ignore
-                        }
-                        
-                        runOnUiThread(() -> {
-                            statusText.setText("Replacing APK file(s)...");
-                        });
-                        
-                        // Replace the APK file directly
-                        // For split APKs, we only replace base.apk (which is what we have)
-                        // This may cause issues, but it's what was requested
-                        Shell.Result replaceResult = Shell.cmd(
-                                "cp -f \"" + apkPath + "\" \"" + baseApkPath + "\"",
-                                "chmod 644 \"" + baseApkPath + "\"",
-                                "chown system:system \"" + baseApkPath + "\"",
-                                "restorecon \"" + baseApkPath + "\""
-                        ).exec();
-                        
-                        if (!replaceResult.isSuccess()) {
-                            runOnUiThread(() -> {
-                                String error = replaceResult.getOut().isEmpty() ? 
-                                        "Failed to replace APK file" : 
-                                        String.join("\n", replaceResult.getOut());
-                                statusText.setText("APK replacement failed: " + error);
-                                Toast.makeText(MainActivity.this, "APK replacement failed: " + error, Toast.LENGTH_LONG).show();
-                                installButton.setEnabled(true);
-                                selectButton.setEnabled(true);
-                            });
-                            return;
-                        }
-                        
-                        runOnUiThread(() -> {
-                            statusText.setText("Registering APK with Package Manager...");
-                        });
-                        
-                        // Now that the APK file is replaced, install it properly to register with PackageManager
-                        // This ensures the app is properly registered and won't corrupt/disappear
-                        // Since the APK is already in place at the correct location, this won't change the UID or data
-                        // Use --user 0 to ensure registration in user space
-                        Shell.Result registerResult = Shell.cmd(
-                                "pm install -d -r --user 0 \"" + baseApkPath + "\""
-                        ).exec();
-                        
-                        if (!registerResult.isSuccess()) {
-                            // Registration failed, but APK is already replaced
-                            // Log warning but don't fail - the app might still work
-                            runOnUiThread(() -> {
-                                String warning = registerResult.getOut().isEmpty() ? 
-                                        "Unknown error" : 
-                                        String.join("\n", registerResult.getOut());
-                                statusText.setText("APK replaced but registration had issues: " + warning + "\n\nApp data preserved. You may need to reboot the device.");
-                                Toast.makeText(MainActivity.this, "APK replaced with warnings. Reboot may be needed.", Toast.LENGTH_LONG).show();
-                            });
-                        } else {
-                            // Success - APK is both replaced and registered
-                            runOnUiThread(() -> {
-                                statusText.setText("APK replaced and registered successfully. App data preserved.");
-                                Toast.makeText(MainActivity.this, "APK installed successfully with data preserved!", Toast.LENGTH_LONG).show();
-                            });
-                        }
-                        
-                        // Give the system a moment to process
-                        try {
-                            Thread.sleep(500);
-                        } catch (InterruptedException e) {
-                            // Ignore
-                        }
-                        
-                        // Mark the result as successful (either way, the APK was replaced)
-                        result = replaceResult;
-                    } else {
-                        // Could not extract package name
-                        // This shouldn't happen often, but if it does, just report the original error
-                        runOnUiThread(() -> {
-                            String error = output.isEmpty() ? "Unknown error" : output;
-                            statusText.setText("Installation failed: " + error);
-                            Toast.makeText(MainActivity.this, getString(R.string.install_error, error), Toast.LENGTH_LONG).show();
-                            installButton.setEnabled(true);
-                            selectButton.setEnabled(true);
-                        });
-                        return;
-                    }
+                            jobs.setOtherUsers(chosen);
+                        })
+                        .setNegativeButton(android.R.string.cancel, null)
+                        .show();
+            });
+        });
+    }
+
+    private void showMetrics() {
+        jobs.execute(() -> {
+            String summary = ApkInstaller.metricsLog(this).summary(METRICS_WINDOW);
+            runOnUiThread(() -> {
+                if (isFinishing() || isDestroyed()) {
+                    return;
                 }
+                new AlertDialog.Builder(this)
+                        .setTitle(R.string.metrics_title)
+                        .setMessage(summary)
+                        .setPositiveButton(R.string.export_json, (dialog, which) -> {
+                            Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+                            intent.addCategory(Intent.CATEGORY_OPENABLE);
+                            intent.setType("application/json");
+                            intent.putExtra(Intent.EXTRA_TITLE, "install-metrics.json");
+                            startActivityForResult(intent, EXPORT_METRICS_REQUEST);
+                        })
+                        .setNegativeButton(android.R.string.ok, null)
+                        .show();
+            });
+        });
+    }
 
-                final Shell.Result finalResult = result;
-                runOnUiThread(() -> {
-                    if (finalResult.isSuccess()) {
-                        statusText.setText(R.string.install_success);
-                        Toast.makeText(MainActivity.this, R.string.install_success, Toast.LENGTH_LONG).show();
-                    } else {
-                        String error = finalResult.getOut().isEmpty() ? 
-                                "Unknown error" : 
-                                String.join("\n", finalResult.getOut());
-                        statusText.setText(getString(R.string.install_error, error));
-                        Toast.makeText(MainActivity.this, getString(R.string.install_error, error), Toast.LENGTH_LONG).show();
-                    }
-                    
-                    installButton.setEnabled(true);
-                    selectButton.setEnabled(true);
-                });
-            } catch (Exception e) {
-                runOnUiThread(() -> {
-                    statusText.setText(getString(R.string.install_error, e.getMessage()));
-                    Toast.makeText(MainActivity.this, getString(R.string.install_error, e.getMessage()), Toast.LENGTH_LONG).show();
-                    installButton.setEnabled(true);
-                    selectButton.setEnabled(true);
-                });
+    private void exportMetrics(Uri uri) {
+        jobs.execute(() -> {
+            try (OutputStream out = getContentResolver().openOutputStream(uri)) {
+                if (out == null) {
+                    throw new IOException("Could not open " + uri);
+                }
+                out.write(ApkInstaller.metricsLog(this).exportJson().getBytes(StandardCharsets.UTF_8));
+                runOnUiThread(() -> Toast.makeText(this, R.string.export_done, Toast.LENGTH_SHORT).show());
+            } catch (IOException e) {
+                runOnUiThread(() -> Toast.makeText(this, "Error: " + e.getMessage(), Toast.LENGTH_SHORT).show());
             }
-        }).start();
+        });
+    }
+
+    private void chooseRollback() {
+        jobs.execute(() -> {
+            List<String> packages = new ApkInstaller(this, rootShell).rollbackCandidates();
+            runOnUiThread(() -> {
+                if (isFinishing() || isDestroyed()) {
+                    return;
+                }
+                if (packages.isEmpty()) {
+                    Toast.makeText(this, R.string.no_snapshots, Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                String[] choices = packages.toArray(new String[0]);
+                new AlertDialog.Builder(this)
+                        .setTitle(R.string.rollback_choose)
+                        .setItems(choices, (dialog, which) -> rollback(choices[which]))
+                        .setNegativeButton(android.R.string.cancel, null)
+                        .show();
+            });
+        });
+    }
+
+    private void rollback(String packageName) {
+        requestNotificationPermission();
+        jobs.submit("rollback:" + packageName, packageName, true, job -> tasks.rollback(job, packageName));
     }
 }
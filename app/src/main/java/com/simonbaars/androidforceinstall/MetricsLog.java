@@ -0,0 +1,194 @@
+package com.simonbaars.androidforceinstall;
+
+import android.os.Build;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Append-only log of {@link InstallMetrics}, one JSON object per line, tagged
+ * with the device and app build so logs from different phones and versions
+ * can be compared. Once it grows past its size cap the older half is dropped.
+ */
+public class MetricsLog {
+
+    private static final long MAX_BYTES = 1024 * 1024;
+
+    private final File file;
+
+    public MetricsLog(File file) {
+        this.file = file;
+    }
+
+    public synchronized void append(InstallMetrics metrics) {
+        try {
+            JSONObject record = new JSONObject(metrics.toJson());
+            record.put("device", Build.MANUFACTURER + " " + Build.MODEL);
+            record.put("sdk", Build.VERSION.SDK_INT);
+            record.put("appVersion", BuildConfig.VERSION_NAME);
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8)) {
+                writer.write(record.toString());
+                writer.write('\n');
+            }
+            if (file.length() > MAX_BYTES) {
+                trim();
+            }
+        } catch (IOException | JSONException e) {
+            // Metrics are best effort, never fail an install over them
+        }
+    }
+
+    /**
+     * The most recent {@code limit} records, oldest first.
+     */
+    public synchronized List<JSONObject> recent(int limit) {
+        List<String> lines = readLines();
+        List<JSONObject> records = new ArrayList<>();
+        for (int i = Math.max(0, lines.size() - limit); i < lines.size(); i++) {
+            try {
+                records.add(new JSONObject(lines.get(i)));
+            } catch (JSONException e) {
+                // Torn last line after a crash, ignore it
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Every record as one JSON array, for export.
+     */
+    public synchronized String exportJson() {
+        JSONArray array = new JSONArray();
+        for (JSONObject record : recent(Integer.MAX_VALUE)) {
+            array.put(record);
+        }
+        try {
+            return array.toString(2);
+        } catch (JSONException e) {
+            return array.toString();
+        }
+    }
+
+    /**
+     * Median, p90 and p99 duration of every stage over the last
+     * {@code limit} installs, slowest stages first by median.
+     */
+    public String summary(int limit) {
+        List<JSONObject> records = recent(limit);
+        if (records.isEmpty()) {
+            return "No installs recorded yet";
+        }
+
+        Map<String, List<Long>> durations = new LinkedHashMap<>();
+        List<Long> totals = new ArrayList<>();
+        long roundTrips = 0;
+        int failed = 0;
+        for (JSONObject record : records) {
+            totals.add(record.optLong("totalMs"));
+            roundTrips += record.optLong("roundTrips");
+            if (!record.optBoolean("success")) {
+                failed++;
+            }
+            JSONArray stages = record.optJSONArray("stages");
+            for (int i = 0; stages != null && i < stages.length(); i++) {
+                JSONObject stage = stages.optJSONObject(i);
+                if (stage == null) {
+                    continue;
+                }
+                String name = stage.optString("name");
+                List<Long> values = durations.get(name);
+                if (values == null) {
+                    values = new ArrayList<>();
+                    durations.put(name, values);
+                }
+                values.add(stage.optLong("ms"));
+            }
+        }
+
+        StringBuilder summary = new StringBuilder();
+        summary.append(String.format(Locale.ROOT, "Last %d installs (%d failed), %.1f round trips each\n",
+                records.size(), failed, roundTrips / (double) records.size()));
+        summary.append(line("total", totals));
+        List<Map.Entry<String, List<Long>>> stages = new ArrayList<>(durations.entrySet());
+        for (Map.Entry<String, List<Long>> stage : stages) {
+            Collections.sort(stage.getValue());
+        }
+        Collections.sort(stages, (a, b) -> Long.compare(
+                percentile(b.getValue(), 50), percentile(a.getValue(), 50)));
+        for (Map.Entry<String, List<Long>> stage : stages) {
+            summary.append(line(stage.getKey(), stage.getValue()));
+        }
+        return summary.toString();
+    }
+
+    private static String line(String name, List<Long> values) {
+        Collections.sort(values);
+        return String.format(Locale.ROOT, "%s: p50 %d ms, p90 %d ms, p99 %d ms (n=%d)\n", name,
+                percentile(values, 50), percentile(values, 90), percentile(values, 99), values.size());
+    }
+
+    /**
+     * Nearest rank percentile of sorted {@code values}.
+     */
+    static long percentile(List<Long> values, int percent) {
+        if (values.isEmpty()) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percent / 100.0 * values.size());
+        return values.get(Math.max(0, Math.min(values.size() - 1, rank - 1)));
+    }
+
+    private List<String> readLines() {
+        List<String> lines = new ArrayList<>();
+        if (!file.exists()) {
+            return lines;
+        }
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    lines.add(line);
+                }
+            }
+        } catch (IOException e) {
+            // Treat an unreadable log as empty
+        }
+        return lines;
+    }
+
+    /**
+     * Rewrites the log with only its newer half.
+     */
+    private void trim() throws IOException {
+        List<String> lines = readLines();
+        File temp = new File(file.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+            for (String line : lines.subList(lines.size() / 2, lines.size())) {
+                writer.write(line);
+                writer.write('\n');
+            }
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.simonbaars.androidforceinstall;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decides up front how an APK has to be installed by comparing its signers
+ * with those of the installed package, so a signature mismatch no longer costs
+ * a full {@code pm install} attempt that is bound to fail.
+ */
+public class Preflight {
+
+    public enum Strategy {
+        /** Not installed, or signed by the same key: a plain install works. */
+        NORMAL_INSTALL,
+        /**
+         * Only leftovers of the package exist: uninstall them, then install.
+         * Never planned up front, as the leftovers may be data kept on purpose
+         * by {@code pm uninstall -k}; recovery picks it once a plain install failed.
+         */
+        CLEAN_INSTALL,
+        /** Installed with a different key: replace the APK files in place. */
+        DIRECT_REPLACEMENT,
+        /** Same signers, version and content as installed: nothing to do. */
+        UP_TO_DATE,
+        /** Could not tell; try a plain install and recover from its output. */
+        UNKNOWN
+    }
+
+    /**
+     * Lazily computes the content hash of the new APK, so it is only read
+     * when signers and version already match.
+     */
+    public interface ContentHash {
+        String get() throws IOException;
+    }
+
+    /**
+     * The chosen strategy and what it was based on.
+     */
+    public static class Plan {
+        final Strategy strategy;
+        final ApkInfo apk;
+        final List<String> installedPaths;
+        final String reason;
+
+        Plan(Strategy strategy, ApkInfo apk, List<String> installedPaths, String reason) {
+            this.strategy = strategy;
+            this.apk = apk;
+            this.installedPaths = installedPaths;
+            this.reason = reason;
+        }
+
+        public Strategy getStrategy() {
+            return strategy;
+        }
+
+        public ApkInfo getApk() {
+            return apk;
+        }
+
+        public List<String> getInstalledPaths() {
+            return installedPaths;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+    }
+
+    /**
+     * Manifest and signers of an installed package. A direct replacement or a
+     * rollback renames new files onto the same path, so like {@link HashIndex}
+     * an entry is only trusted while the file keeps its size and modification time.
+     */
+    private static final class InstalledApk {
+        final String basePath;
+        final long size;
+        final long lastModified;
+        final ApkInfo info;
+
+        InstalledApk(String basePath, long size, long lastModified, ApkInfo info) {
+            this.basePath = basePath;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.info = info;
+        }
+    }
+
+    // Shared by all installs in this process, keyed by package name
+    private static final Map<String, InstalledApk> INSTALLED_CACHE = new ConcurrentHashMap<>();
+
+    private final RootShell shell;
+    private final HashIndex hashIndex;
+
+    /**
+     * @param hashIndex index used to compare content with the installed APK,
+     *                  or null to skip the up to date check
+     */
+    public Preflight(RootShell shell, HashIndex hashIndex) {
+        this.shell = shell;
+        this.hashIndex = hashIndex;
+    }
+
+    /**
+     * Plans the install of {@code apk}. {@code newHash} may be null, in which
+     * case an identical APK is simply installed again.
+     */
+    public Plan plan(ApkInfo apk, ContentHash newHash) {
+        String packageName = apk.getPackageName();
+        ShellResult pathResult = shell.exec(RootShell.QUERY_TIMEOUT_MILLIS,
+                "pm path --user " + DeviceUser.PRIMARY_USER + " " + packageName);
+        List<String> installedPaths = PmOutput.parsePackagePaths(pathResult.getOut());
+
+        if (installedPaths.isEmpty()) {
+            // Leftovers of an uninstalled package are only cleaned up if the
+            // plain install fails, a plain install restores data kept on purpose
+            return new Plan(Strategy.NORMAL_INSTALL, apk, installedPaths, packageName + " is not installed");
+        }
+
+        String basePath = installedPaths.get(0);
+        ApkInfo installed = installedApk(packageName, basePath);
+        if (installed == null || installed.getSignerDigests().isEmpty() || apk.getSignerDigests().isEmpty()) {
+            return new Plan(Strategy.UNKNOWN, apk, installedPaths, "Could not read signers");
+        }
+        if (!new HashSet<>(installed.getSignerDigests()).equals(new HashSet<>(apk.getSignerDigests()))) {
+            if (apk.rotatedFrom(installed.getSignerDigests())) {
+                // A v3 key rotation from the installed signer, PackageManager takes it as an update
+                return new Plan(Strategy.NORMAL_INSTALL, apk, installedPaths, "Signing key rotated");
+            }
+            if (!apk.getSigningLineage().isEmpty() || !installed.getSigningLineage().isEmpty()) {
+                // Rotation the other way, or between branches of a lineage; whether
+                // PackageManager accepts that depends on capabilities we do not check
+                return new Plan(Strategy.UNKNOWN, apk, installedPaths, "Signing key rotation history differs");
+            }
+            return new Plan(Strategy.DIRECT_REPLACEMENT, apk, installedPaths, "Signers differ");
+        }
+
+        // Cheap checks first, the content is only hashed when everything else matches
+        if (installed.getVersionCode() == apk.getVersionCode() && newHash != null && hashIndex != null) {
+            try {
+                if (hashIndex.hash(new File(basePath)).equals(newHash.get())) {
+                    return new Plan(Strategy.UP_TO_DATE, apk, installedPaths, packageName + " is already up to date");
+                }
+            } catch (IOException | SecurityException e) {
+                // Cannot compare, install it again to be safe
+            }
+        }
+        return new Plan(Strategy.NORMAL_INSTALL, apk, installedPaths, "Signers match");
+    }
+
+    /**
+     * Drops what is cached of {@code packageName}'s installed APK, for when
+     * its files were replaced in place.
+     */
+    static void forget(String packageName) {
+        INSTALLED_CACHE.remove(packageName);
+    }
+
+    private ApkInfo installedApk(String packageName, String basePath) {
+        File baseApk = new File(basePath);
+        long size = baseApk.length();
+        long lastModified = baseApk.lastModified();
+        InstalledApk cached = INSTALLED_CACHE.get(packageName);
+        if (cached != null && cached.basePath.equals(basePath) && cached.size == size
+                && cached.lastModified == lastModified && lastModified > 0) {
+            return cached.info;
+        }
+
+        // Installed APKs are world readable, so the manifest and signing block
+        // can be read in place without copying the file out through the root shell
+        ApkInfo info;
+        try {
+            info = ApkReader.read(baseApk);
+        } catch (IOException | SecurityException e) {
+            return null;
+        }
+        INSTALLED_CACHE.put(packageName, new InstalledApk(basePath, size, lastModified, info));
+        return info;
+    }
+}
@@ -0,0 +1,146 @@
+package com.simonbaars.androidforceinstall;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Waits for the device to reach a state instead of sleeping for a fixed time.
+ * Each condition is checked over the root shell, first after a few
+ * milliseconds and then with a growing backoff, until it holds or the
+ * deadline passes. How long every wait took is recorded.
+ */
+public class Readiness {
+
+    private static final long FIRST_POLL_MILLIS = 10;
+    private static final long MAX_POLL_MILLIS = 250;
+
+    public static final long STOP_DEADLINE_MILLIS = 5000;
+    public static final long REGISTER_DEADLINE_MILLIS = 10000;
+
+    // Exit code of pidof and grep when nothing matched
+    private static final int NOT_FOUND = 1;
+
+    /**
+     * A condition that can be checked repeatedly.
+     */
+    public interface Condition {
+        boolean holds();
+    }
+
+    /**
+     * The outcome of one wait.
+     */
+    public static class Wait {
+        final String name;
+        final boolean ready;
+        final long elapsedMillis;
+        final int polls;
+
+        Wait(String name, boolean ready, long elapsedMillis, int polls) {
+            this.name = name;
+            this.ready = ready;
+            this.elapsedMillis = elapsedMillis;
+            this.polls = polls;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isReady() {
+            return ready;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        public int getPolls() {
+            return polls;
+        }
+
+        @Override
+        public String toString() {
+            return name + (ready ? " after " : " timed out after ") + elapsedMillis + " ms (" + polls + " checks)";
+        }
+    }
+
+    private final RootShell shell;
+    private final List<Wait> waits = Collections.synchronizedList(new ArrayList<>());
+
+    public Readiness(RootShell shell) {
+        this.shell = shell;
+    }
+
+    /**
+     * Waits until no process of {@code packageName} is running anymore.
+     */
+    public Wait processGone(String packageName) {
+        // pidof fails when there is no such process; also covers :remote style processes.
+        // Package names go into grep as fixed strings, a '.' in a pattern would match anything
+        String command = "pidof " + packageName + " >/dev/null"
+                + " || ps -A -o NAME 2>/dev/null | cut -d: -f1 | grep -qxF \"" + packageName + "\"";
+        // Only a clean "not found" from grep means gone; a timeout, a lost shell or
+        // an interrupted exec says nothing about the process, so keep polling
+        return await(packageName + " stopped", STOP_DEADLINE_MILLIS,
+                () -> shell.exec(RootShell.QUERY_TIMEOUT_MILLIS, command).getCode() == NOT_FOUND);
+    }
+
+    /**
+     * Waits until PackageManager reports {@code packageName} at
+     * {@code versionCode} (any version if negative) and every APK file it
+     * lists is visible on disk.
+     */
+    public Wait packageRegistered(String packageName, long versionCode) {
+        String versionCheck = versionCode < 0 ? ""
+                : " | grep -qE \"versionCode=" + versionCode + "( |$)\"";
+        // One round trip per check; the subshell keeps exit away from the persistent shell
+        String command = "( dumpsys package " + packageName + " | grep -qF \"Package [" + packageName + "]\""
+                + " && dumpsys package " + packageName + versionCheck
+                + " && paths=$(pm path --user " + DeviceUser.PRIMARY_USER + " " + packageName + " | sed 's/^package://')"
+                + " && [ -n \"$paths\" ]"
+                + " && for p in $paths; do [ -f \"$p\" ] || exit 1; done )";
+        return await(packageName + " registered", REGISTER_DEADLINE_MILLIS,
+                () -> shell.exec(RootShell.QUERY_TIMEOUT_MILLIS, command).isSuccess());
+    }
+
+    /**
+     * Polls {@code condition} with backoff until it holds or
+     * {@code deadlineMillis} have passed, and records the wait.
+     */
+    public Wait await(String name, long deadlineMillis, Condition condition) {
+        long start = System.nanoTime();
+        long deadline = start + deadlineMillis * 1_000_000L;
+        long delay = FIRST_POLL_MILLIS;
+        int polls = 0;
+        boolean ready;
+        while (true) {
+            polls++;
+            ready = condition.holds();
+            long now = System.nanoTime();
+            if (ready || now >= deadline) {
+                break;
+            }
+            try {
+                Thread.sleep(Math.min(delay, (deadline - now) / 1_000_000L + 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            delay = Math.min(delay * 2, MAX_POLL_MILLIS);
+        }
+        Wait wait = new Wait(name, ready, (System.nanoTime() - start) / 1_000_000L, polls);
+        waits.add(wait);
+        return wait;
+    }
+
+    /**
+     * Every wait so far, oldest first.
+     */
+    public List<Wait> getWaits() {
+        synchronized (waits) {
+            return new ArrayList<>(waits);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.simonbaars.androidforceinstall;
+
+import android.net.Uri;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What the user picked to install: one APK that is streamed from its URI or
+ * was copied to a file, or a batch. Immutable, so a job can take the current
+ * selection and keep using it after the user picks something else.
+ */
+public class Selection {
+
+    final String name;
+    // When the provider reports a size the APK is streamed straight from here
+    final Uri uri;
+    final long size;
+    // Otherwise the copy in the cache directory
+    final File file;
+    // Time that copy took, reported with the install's metrics
+    final long copyMillis;
+    // Set instead of the above when several APKs or a folder were picked
+    final List<BatchInstaller.Item> batch;
+
+    private Selection(String name, Uri uri, long size, File file, long copyMillis, List<BatchInstaller.Item> batch) {
+        this.name = name;
+        this.uri = uri;
+        this.size = size;
+        this.file = file;
+        this.copyMillis = copyMillis;
+        this.batch = batch;
+    }
+
+    static Selection stream(Uri uri, long size, String name) {
+        return new Selection(name, uri, size, null, -1, null);
+    }
+
+    static Selection copied(File file, long copyMillis, String name) {
+        return new Selection(name, null, -1, file, copyMillis, null);
+    }
+
+    static Selection batch(List<BatchInstaller.Item> items) {
+        return new Selection(null, null, -1, null, -1, Collections.unmodifiableList(new ArrayList<>(items)));
+    }
+
+    public boolean isBatch() {
+        return batch != null;
+    }
+
+    /**
+     * Identifies the picked content, so picking and installing the same APK
+     * twice while the first install is still queued or running does nothing.
+     */
+    String key() {
+        if (batch != null) {
+            StringBuilder key = new StringBuilder("batch");
+            for (BatchInstaller.Item item : batch) {
+                key.append('|').append(item.uri);
+            }
+            return key.toString();
+        }
+        if (uri != null) {
+            return uri + "|" + size;
+        }
+        return file.getPath() + "|" + file.length() + "|" + file.lastModified();
+    }
+}
@@ -0,0 +1,398 @@
+package com.simonbaars.androidforceinstall;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Content addressed store of staged APKs. Every file is named after the
+ * SHA-256 of its content, computed while it is copied, and indexed with its
+ * package and version, so the same APK picked twice or under another name is
+ * stored once. A source staged before is recognized through the
+ * {@link HashIndex} by URI, size and modification time and not copied again.
+ * A source whose provider reports no modification time is hashed where it is
+ * and looked up by content, which still saves writing the copy.
+ *
+ * <p>The least recently used files are evicted once the store holds more
+ * than its budget or a quarter of the free space, whichever is smaller. The
+ * newest file and files pinned by a running install are never evicted.
+ *
+ * <p>The index is an append-only tab separated file next to the APKs, so both
+ * go together when the system clears the cache directory.
+ */
+public class StagingCache {
+
+    public static final long DEFAULT_MAX_BYTES = 1024L * 1024 * 1024;
+
+    private static final String INDEX_NAME = "index.tsv";
+    private static final String DELETED = "deleted";
+
+    /**
+     * One stored APK.
+     */
+    public static class Entry {
+        final String sha256;
+        final File file;
+        final long size;
+        final String packageName;
+        final long versionCode;
+        long lastUsed;
+        int pins;
+
+        Entry(String sha256, File file, long size, String packageName, long versionCode, long lastUsed) {
+            this.sha256 = sha256;
+            this.file = file;
+            this.size = size;
+            this.packageName = packageName;
+            this.versionCode = versionCode;
+            this.lastUsed = lastUsed;
+        }
+
+        public String getSha256() {
+            return sha256;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Null for bundles and files that could not be read as an APK.
+         */
+        public String getPackageName() {
+            return packageName;
+        }
+
+        public long getVersionCode() {
+            return versionCode;
+        }
+    }
+
+    private final File dir;
+    private final long maxBytes;
+    private final HashIndex sources;
+    private final File indexFile;
+    private Map<String, Entry> entries;
+    private int lines;
+
+    /**
+     * @param dir      directory the store owns, created when needed
+     * @param maxBytes byte budget for the stored APKs
+     * @param sources  remembers which source had which content
+     */
+    public StagingCache(File dir, long maxBytes, HashIndex sources) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.sources = sources;
+        this.indexFile = new File(dir, INDEX_NAME);
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the stored copy of {@code uri} if the cache holds its current
+     * content, otherwise null. A returned entry stays pinned until
+     * {@link #release}.
+     */
+    public Entry find(ContentResolver resolver, Uri uri) {
+        long size = ContentStaging.size(resolver, uri);
+        long lastModified = ContentStaging.lastModified(resolver, uri);
+        String known = sources.lookup(uri.toString(), size, lastModified);
+        if (known == null && lastModified <= 0 && mayHold(size)) {
+            // Nothing tells whether the source changed, so read it without writing anything
+            try (InputStream in = resolver.openInputStream(uri)) {
+                known = in != null ? HashIndex.sha256(in) : null;
+            } catch (IOException | SecurityException e) {
+                // Staging it will report what is wrong
+            }
+        }
+        synchronized (this) {
+            // Loading the index also clears out leftovers, so do it before staging anything
+            Entry entry = known != null ? entries().get(known) : null;
+            if (entry != null) {
+                use(entry);
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Whether any stored file has {@code size}, or any file at all if the
+     * size is unknown; hashing a source is pointless otherwise.
+     */
+    private synchronized boolean mayHold(long size) {
+        for (Entry entry : entries().values()) {
+            if (size < 0 || entry.size == size) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copies {@code uri} into the cache with {@code stager}, or returns the
+     * entry that already holds the same content. The entry stays pinned until
+     * {@link #release}.
+     *
+     * @param name   display name, whose extension tells APKs from bundles
+     * @param digest the digest {@code stager} was created with
+     */
+    public Entry stage(ContentResolver resolver, Uri uri, String name, FileStager stager, MessageDigest digest)
+            throws IOException {
+        // Queried before the copy, so a change during the copy is noticed next time
+        long size = ContentStaging.size(resolver, uri);
+        long lastModified = ContentStaging.lastModified(resolver, uri);
+        synchronized (this) {
+            entries();
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        File incoming = File.createTempFile("incoming-", extension(name), dir);
+        try {
+            ContentStaging.stage(resolver, uri, incoming, stager);
+        } catch (IOException e) {
+            incoming.delete();
+            throw e;
+        }
+        String sha256 = Hex.encode(digest.digest());
+        sources.put(uri.toString(), size, lastModified, sha256);
+        return add(incoming, sha256, name);
+    }
+
+    /**
+     * Pins the entry behind a file returned earlier, or returns null if it
+     * has been evicted since.
+     */
+    public synchronized Entry pin(File file) {
+        for (Entry entry : entries().values()) {
+            if (entry.file.equals(file)) {
+                use(entry);
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Pins the entry with content {@code sha256}, or returns null if the
+     * cache does not hold it (any more).
+     */
+    public synchronized Entry pin(String sha256) {
+        Entry entry = entries().get(sha256);
+        if (entry != null) {
+            use(entry);
+        }
+        return entry;
+    }
+
+    public synchronized void release(Entry entry) {
+        if (entry != null && entry.pins > 0) {
+            entry.pins--;
+        }
+    }
+
+    public synchronized long totalBytes() {
+        long total = 0;
+        for (Entry entry : entries().values()) {
+            total += entry.size;
+        }
+        return total;
+    }
+
+    private synchronized Entry add(File incoming, String sha256, String name) throws IOException {
+        Entry entry = entries().get(sha256);
+        if (entry != null) {
+            // Same content under another source or name
+            incoming.delete();
+            use(entry);
+            return entry;
+        }
+
+        File file = new File(dir, sha256 + extension(name));
+        if (!incoming.renameTo(file)) {
+            incoming.delete();
+            throw new IOException("Could not store " + file);
+        }
+        String packageName = null;
+        long versionCode = -1;
+        if (!ApkBundle.isBundle(name)) {
+            try {
+                ApkInfo apk = ApkReader.read(file);
+                packageName = apk.getPackageName();
+                versionCode = apk.getVersionCode();
+            } catch (IOException e) {
+                // Stored all the same, installing it will report what is wrong
+            }
+        }
+        entry = new Entry(sha256, file, file.length(), packageName, versionCode, System.currentTimeMillis());
+        entry.pins = 1;
+        entries.put(sha256, entry);
+        append(line(entry));
+        // The preflight check hashes the staged file, it need not read it again
+        sources.put(file.getAbsolutePath(), file.length(), file.lastModified(), sha256);
+        evict(entry);
+        return entry;
+    }
+
+    private void use(Entry entry) {
+        entry.pins++;
+        entry.lastUsed = System.currentTimeMillis();
+        append(line(entry));
+    }
+
+    /**
+     * Deletes least recently used entries until the store fits its budget.
+     */
+    private void evict(Entry newest) {
+        List<Entry> byAge = new ArrayList<>(entries.values());
+        long total = 0;
+        for (Entry entry : byAge) {
+            total += entry.size;
+        }
+        long budget = Math.min(maxBytes, (dir.getUsableSpace() + total) / 4);
+        if (total <= budget) {
+            return;
+        }
+        Collections.sort(byAge, (a, b) -> Long.compare(a.lastUsed, b.lastUsed));
+        for (Entry entry : byAge) {
+            if (total <= budget) {
+                break;
+            }
+            if (entry == newest || entry.pins > 0) {
+                continue;
+            }
+            entry.file.delete();
+            entries.remove(entry.sha256);
+            append(entry.sha256 + "\t" + DELETED + "\n");
+            total -= entry.size;
+        }
+    }
+
+    private Map<String, Entry> entries() {
+        if (entries != null) {
+            return entries;
+        }
+        entries = new HashMap<>();
+        lines = 0;
+        if (indexFile.exists()) {
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines++;
+                    String[] fields = line.split("\t", -1);
+                    if (fields.length == 2 && DELETED.equals(fields[1])) {
+                        entries.remove(fields[0]);
+                    } else if (fields.length == 6) {
+                        try {
+                            entries.put(fields[0], new Entry(fields[0], new File(dir, fields[1]),
+                                    Long.parseLong(fields[2]), fields[3].isEmpty() ? null : fields[3],
+                                    Long.parseLong(fields[4]), Long.parseLong(fields[5])));
+                        } catch (NumberFormatException e) {
+                            // Ignore the corrupt line
+                        }
+                    }
+                    // Anything else is a torn last line after a crash
+                }
+            } catch (IOException e) {
+                // Start over with an empty index
+                entries.clear();
+            }
+        }
+
+        // Drop entries whose file is gone, and files the index does not know:
+        // copies that never finished or whose index line was lost
+        List<String> known = new ArrayList<>();
+        for (Entry entry : new ArrayList<>(entries.values())) {
+            if (entry.file.length() != entry.size) {
+                entry.file.delete();
+                entries.remove(entry.sha256);
+            } else {
+                known.add(entry.file.getName());
+            }
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.equals(indexFile) && !known.contains(file.getName())) {
+                    file.delete();
+                }
+            }
+        }
+        return entries;
+    }
+
+    private static String line(Entry entry) {
+        return entry.sha256 + "\t" + entry.file.getName() + "\t" + entry.size + "\t"
+                + (entry.packageName != null ? entry.packageName : "") + "\t" + entry.versionCode + "\t"
+                + entry.lastUsed + "\n";
+    }
+
+    private void append(String line) {
+        try {
+            if (lines > entries.size() * 4 + 64) {
+                compact();
+                return;
+            }
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(indexFile, true),
+                    StandardCharsets.UTF_8)) {
+                writer.write(line);
+            }
+            lines++;
+        } catch (IOException e) {
+            // Worst case the store forgets some files and deletes them on the next start
+        }
+    }
+
+    /**
+     * Rewrites the index with only the live entries.
+     */
+    private void compact() throws IOException {
+        File temp = new File(dir, INDEX_NAME + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+            for (Entry entry : entries.values()) {
+                writer.write(line(entry));
+            }
+        }
+        if (!temp.renameTo(indexFile)) {
+            temp.delete();
+            throw new IOException("Could not replace " + indexFile);
+        }
+        lines = entries.size();
+    }
+
+    private static String extension(String name) {
+        int dot = name != null ? name.lastIndexOf('.') : -1;
+        String extension = dot >= 0 ? name.substring(dot).toLowerCase(Locale.ROOT) : "";
+        return ApkBundle.isBundle(extension) ? extension : ".apk";
+    }
+}
@@ -0,0 +1,53 @@
+package com.simonbaars.androidforceinstall;
+
+import android.content.ContentResolver;
+import android.content.Intent;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+
+/**
+ * Keeps read access to picked content across process restarts, so a journaled
+ * job can still open its items when it is resumed. A document picked from a
+ * folder is covered by the grant on that folder's tree.
+ */
+final class UriGrants implements InstallJournal.Grants {
+
+    private final ContentResolver resolver;
+
+    UriGrants(ContentResolver resolver) {
+        this.resolver = resolver;
+    }
+
+    @Override
+    public Uri grantFor(Uri uri) {
+        if (!"content".equals(uri.getScheme())) {
+            return null;
+        }
+        try {
+            // Throws for anything that was not reached through a tree
+            String treeId = DocumentsContract.getTreeDocumentId(uri);
+            return DocumentsContract.buildTreeDocumentUri(uri.getAuthority(), treeId);
+        } catch (IllegalArgumentException e) {
+            return uri;
+        }
+    }
+
+    @Override
+    public void hold(Uri grant) {
+        try {
+            resolver.takePersistableUriPermission(grant, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        } catch (SecurityException e) {
+            // The picker did not offer a persistable grant, the job just cannot
+            // read the item after a restart unless it was staged
+        }
+    }
+
+    @Override
+    public void release(Uri grant) {
+        try {
+            resolver.releasePersistableUriPermission(grant, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        } catch (SecurityException e) {
+            // Never held
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.simonbaars.androidforceinstall;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Makes an installed package available to further users. The APK is written
+ * and registered once, for {@link DeviceUser#PRIMARY_USER}; every other user only needs
+ * {@code pm install-existing}, which shares the installed code and costs a
+ * PackageManager call per user instead of another copy of the APK.
+ */
+public class UserFanOut {
+
+    /**
+     * Outcome for one user.
+     */
+    public static class Result {
+        final DeviceUser user;
+        final boolean success;
+        final String message;
+
+        Result(DeviceUser user, boolean success, String message) {
+            this.user = user;
+            this.success = success;
+            this.message = message;
+        }
+
+        public DeviceUser getUser() {
+            return user;
+        }
+
+        public boolean isSuccess() {
+            return success;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+
+    private final RootShell shell;
+    private final ExecutorService pool;
+
+    /**
+     * @param pool runs the per user commands side by side, so the fan-out
+     *             takes about as long as the slowest user
+     */
+    public UserFanOut(RootShell shell, ExecutorService pool) {
+        this.shell = shell;
+        this.pool = pool;
+    }
+
+    /**
+     * Every user on the device, the primary user included. Empty if
+     * {@code pm list users} fails.
+     */
+    public List<DeviceUser> listUsers() {
+        ShellResult result = shell.exec(RootShell.QUERY_TIMEOUT_MILLIS, "pm list users");
+        return result.isSuccess() ? PmOutput.parseUsers(result.getOut()) : new ArrayList<>();
+    }
+
+    /**
+     * Runs {@code pm install-existing} for each of {@code users} at once and
+     * waits for all of them. Each user's package state is separate, so the
+     * commands do not depend on each other and one failing does not stop the
+     * rest. Results are in the order of {@code users}.
+     */
+    public List<Result> installExisting(String packageName, List<DeviceUser> users) {
+        List<Future<Result>> futures = new ArrayList<>();
+        for (DeviceUser user : users) {
+            futures.add(pool.submit(() -> installExisting(packageName, user)));
+        }
+
+        List<Result> results = new ArrayList<>();
+        for (int i = 0; i < users.size(); i++) {
+            try {
+                results.add(futures.get(i).get());
+            } catch (ExecutionException e) {
+                results.add(new Result(users.get(i), false, String.valueOf(e.getCause().getMessage())));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (Future<Result> future : futures) {
+                    future.cancel(true);
+                }
+                results.add(new Result(users.get(i), false, "Interrupted"));
+                break;
+            }
+        }
+        return results;
+    }
+
+    private Result installExisting(String packageName, DeviceUser user) {
+        ShellResult result = shell.exec(RootShell.INSTALL_TIMEOUT_MILLIS,
+                "pm install-existing --user " + user.getId() + " " + packageName);
+        boolean success = PmOutput.isInstalledForUser(result);
+        String message = result.getOut().isEmpty() ? (success ? "installed" : "exit code " + result.getCode())
+                : String.join(" ", result.getOut());
+        return new Result(user, success, message);
+    }
+}
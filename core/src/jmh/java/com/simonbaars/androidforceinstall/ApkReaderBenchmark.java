@@ -0,0 +1,106 @@
+package com.simonbaars.androidforceinstall;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Reads APK metadata the ways it can be done: {@link ApkReader} over the
+ * memory-mapped central directory, {@link ZipFile}, and a front to back
+ * {@link ZipInputStream} scan, which has to read past the whole payload of a
+ * {@link SyntheticApk} to reach its manifest.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ApkReaderBenchmark {
+
+    private static final String MANIFEST = "AndroidManifest.xml";
+
+    @Param({"1", "16", "256", "1024"})
+    public int sizeMb;
+
+    private File apk;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        apk = SyntheticApk.get(sizeMb * SyntheticApk.MB);
+        ApkInfo info = ApkReader.read(apk);
+        if (!SyntheticApk.PACKAGE_NAME.equals(info.getPackageName())
+                || !info.getSignerDigests().contains(SyntheticApk.certificateDigest())) {
+            throw new IllegalStateException("Synthetic APK was not read back correctly: " + apk);
+        }
+    }
+
+    /**
+     * Everything preflight needs: manifest fields and signer digests.
+     */
+    @Benchmark
+    public ApkInfo apkReader() throws IOException {
+        return ApkReader.read(apk);
+    }
+
+    @Benchmark
+    public Object centralDirectoryManifest() throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(apk, "r");
+             FileChannel channel = file.getChannel()) {
+            ZipCentralDirectory zip = ZipCentralDirectory.read(channel);
+            return ApkReader.parseManifest(zip.readFully(zip.find(MANIFEST)));
+        }
+    }
+
+    @Benchmark
+    public Object zipFileManifest() throws IOException {
+        try (ZipFile zip = new ZipFile(apk)) {
+            try (InputStream in = zip.getInputStream(zip.getEntry(MANIFEST))) {
+                return ApkReader.parseManifest(readAll(in));
+            }
+        }
+    }
+
+    @Benchmark
+    public Object zipStreamManifest() throws IOException {
+        try (ZipInputStream zip = new ZipInputStream(new FileInputStream(apk))) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                if (MANIFEST.equals(entry.getName())) {
+                    return ApkReader.parseManifest(readAll(zip));
+                }
+            }
+        }
+        throw new IOException("No manifest in " + apk);
+    }
+
+    @Benchmark
+    public List<String> signingBlock() throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(apk, "r");
+             FileChannel channel = file.getChannel()) {
+            return ApkReader.readSigningBlockDigests(ZipCentralDirectory.read(channel));
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StreamCopy.copy(in, out, -1, null);
+        return out.toByteArray();
+    }
+}
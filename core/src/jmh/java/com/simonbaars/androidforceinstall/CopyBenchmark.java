@@ -0,0 +1,144 @@
+package com.simonbaars.androidforceinstall;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copies a synthetic APK file to file the ways the app stages APKs: through
+ * {@link StreamCopy} with different buffer sizes, with and without progress
+ * reporting, through a direct {@link ByteBuffer}, with
+ * {@link FileChannel#transferTo}, and through {@link FileStager} from a
+ * channel and from a stream, with and without the SHA-256 the staging
+ * cache needs. The source stays in the page cache after
+ * the first iteration, so this measures the copy path, not the disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CopyBenchmark {
+
+    @Param({"1", "16", "256", "1024"})
+    public int sizeMb;
+
+    @Param({"stream-4k", "stream-64k", "stream-1m", "stream-64k-progress", "direct-64k", "direct-1m", "transfer",
+            "stager-channel", "stager-stream", "stager-channel-sha256", "stager-stream-sha256"})
+    public String method;
+
+    private File source;
+    private File target;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        source = SyntheticApk.get(sizeMb * SyntheticApk.MB);
+        target = File.createTempFile("copy-", ".apk", source.getParentFile());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        target.delete();
+    }
+
+    @Benchmark
+    public long copy() throws IOException {
+        switch (method) {
+            case "stream-4k":
+                return streamCopy(4 * 1024, null);
+            case "stream-64k":
+                return streamCopy(64 * 1024, null);
+            case "stream-1m":
+                return streamCopy(1024 * 1024, null);
+            case "stream-64k-progress":
+                return streamCopy(64 * 1024, (done, total, bytesPerSecond) -> {
+                });
+            case "direct-64k":
+                return directCopy(64 * 1024);
+            case "direct-1m":
+                return directCopy(1024 * 1024);
+            case "transfer":
+                return transfer();
+            case "stager-channel":
+                try (FileInputStream in = new FileInputStream(source)) {
+                    return new FileStager(null).stage(in.getChannel(), target);
+                }
+            case "stager-stream":
+                try (FileInputStream in = new FileInputStream(source)) {
+                    return new FileStager(null).stage(in, -1, target);
+                }
+            case "stager-channel-sha256":
+                try (FileInputStream in = new FileInputStream(source)) {
+                    return new FileStager(null, sha256()).stage(in.getChannel(), target);
+                }
+            case "stager-stream-sha256":
+                try (FileInputStream in = new FileInputStream(source)) {
+                    return new FileStager(null, sha256()).stage(in, -1, target);
+                }
+            default:
+                throw new IllegalArgumentException(method);
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private long streamCopy(int bufferSize, ProgressListener listener) throws IOException {
+        try (FileInputStream in = new FileInputStream(source);
+             FileOutputStream out = new FileOutputStream(target)) {
+            return StreamCopy.copy(in, out, -1, listener, bufferSize);
+        }
+    }
+
+    private long directCopy(int bufferSize) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+        long done = 0;
+        try (FileChannel in = new FileInputStream(source).getChannel();
+             FileChannel out = new RandomAccessFile(target, "rw").getChannel()) {
+            out.truncate(0);
+            while (in.read(buffer) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    done += out.write(buffer);
+                }
+                buffer.clear();
+            }
+        }
+        return done;
+    }
+
+    private long transfer() throws IOException {
+        try (FileChannel in = new FileInputStream(source).getChannel();
+             FileChannel out = new RandomAccessFile(target, "rw").getChannel()) {
+            out.truncate(0);
+            long size = in.size();
+            long done = 0;
+            // transferTo may move less than asked, e.g. 2 GB at most per call on Linux
+            while (done < size) {
+                done += in.transferTo(done, size - done, out);
+            }
+            return done;
+        }
+    }
+}
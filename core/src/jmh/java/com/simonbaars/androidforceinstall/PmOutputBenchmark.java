@@ -0,0 +1,91 @@
+package com.simonbaars.androidforceinstall;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Classifies and parses {@code pm} output as {@link PmOutput} does, line by
+ * line with plain string checks, against the regular expression over the
+ * whole output that would be the obvious alternative.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PmOutputBenchmark {
+
+    private static final Pattern PACKAGE_LINE = Pattern.compile("^package:(.*)$", Pattern.MULTILINE);
+    private static final Pattern MISMATCH = Pattern.compile(
+            "INSTALL_FAILED_UPDATE_INCOMPATIBLE|signatures do not match");
+
+    /** Number of APK files of the package, 1 for a plain APK. */
+    @Param({"1", "8", "64"})
+    public int splits;
+
+    private List<String> pathOutput;
+    private String pathText;
+    private ShellResult installOutput;
+    private String installText;
+
+    @Setup
+    public void setUp() {
+        pathOutput = new ArrayList<>();
+        String dir = "/data/app/~~Zm9vYmFyYmF6cXV4Cg==/" + SyntheticApk.PACKAGE_NAME + "-YmFzZTY0c3R1ZmYK==";
+        pathOutput.add("package:" + dir + "/base.apk");
+        for (int i = 1; i < splits; i++) {
+            pathOutput.add("package:" + dir + "/split_config.s" + i + ".apk");
+        }
+        pathText = String.join("\n", pathOutput);
+
+        // A failed install prints progress lines first, one per split
+        List<String> install = new ArrayList<>();
+        for (int i = 0; i < splits; i++) {
+            install.add("Performing Streamed Install");
+        }
+        install.add("Failure [INSTALL_FAILED_UPDATE_INCOMPATIBLE: Package " + SyntheticApk.PACKAGE_NAME
+                + " signatures do not match previously installed version; ignoring!]");
+        installOutput = new ShellResult(0, install);
+        installText = String.join("\n", install);
+    }
+
+    @Benchmark
+    public List<String> parsePackagePaths() {
+        return PmOutput.parsePackagePaths(pathOutput);
+    }
+
+    @Benchmark
+    public List<String> parsePackagePathsRegex() {
+        List<String> paths = new ArrayList<>();
+        Matcher matcher = PACKAGE_LINE.matcher(pathText);
+        while (matcher.find()) {
+            paths.add(matcher.group(1).trim());
+        }
+        return paths;
+    }
+
+    @Benchmark
+    public boolean isSuccess() {
+        return PmOutput.isSuccess(installOutput);
+    }
+
+    @Benchmark
+    public boolean isSignatureMismatch() {
+        return PmOutput.isSignatureMismatch(String.join("\n", installOutput.getOut()));
+    }
+
+    @Benchmark
+    public boolean isSignatureMismatchRegex() {
+        return MISMATCH.matcher(installText).find();
+    }
+}
@@ -0,0 +1,281 @@
+package com.simonbaars.androidforceinstall;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes APK shaped ZIP files of a given size for the benchmarks. Each has a
+ * small classes.dex, a stored payload of incompressible bytes that brings the
+ * file up to size, a binary AndroidManifest.xml and an APK Signing Block with
+ * one v2 signer. Nothing in it would install, but everything the install
+ * pipeline reads is real.
+ *
+ * <p>The manifest is the last entry, behind the payload, which is the worst
+ * case for anything that has to scan the archive front to back.
+ *
+ * <p>Files are generated once into {@code afi.jmh.dir} (the temp directory
+ * by default) and reused by later runs and forks.
+ */
+final class SyntheticApk {
+
+    static final long MB = 1024 * 1024;
+
+    static final String PACKAGE_NAME = "com.example.synthetic";
+    static final int VERSION_CODE = 42;
+    static final int MIN_SDK = 21;
+    static final byte[] CERTIFICATE = repeat("SYNTHETIC-CERTIFICATE", 16);
+
+    private static final int CHUNK = 64 * 1024;
+
+    private SyntheticApk() {
+    }
+
+    static File get(long size) throws IOException {
+        File dir = new File(System.getProperty("afi.jmh.dir", System.getProperty("java.io.tmpdir") + "/afi-jmh"));
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        File apk = new File(dir, "synthetic-" + size + ".apk");
+        if (!apk.exists()) {
+            File temp = new File(dir, apk.getName() + ".tmp");
+            write(temp, size);
+            if (!temp.renameTo(apk)) {
+                throw new IOException("Could not create " + apk);
+            }
+        }
+        return apk;
+    }
+
+    static void write(File file, long size) throws IOException {
+        byte[] manifest = manifest();
+        // Leaves room for the other entries, the signing block and the central directory
+        long payloadSize = Math.max(0, size - 4096);
+        long seed = size;
+
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file))) {
+            zip.putNextEntry(new ZipEntry("classes.dex"));
+            zip.write("dex\n035\0".getBytes(StandardCharsets.ISO_8859_1));
+            zip.write(repeat("synthetic code ", 1024));
+            zip.closeEntry();
+
+            // Stored entries need their CRC up front, so generate the payload twice
+            ZipEntry payload = new ZipEntry("res/raw/payload.bin");
+            payload.setMethod(ZipEntry.STORED);
+            payload.setSize(payloadSize);
+            payload.setCompressedSize(payloadSize);
+            CRC32 crc = new CRC32();
+            writePayload(new OutputStream() {
+                @Override
+                public void write(int b) {
+                    crc.update(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    crc.update(b, off, len);
+                }
+            }, payloadSize, seed);
+            payload.setCrc(crc.getValue());
+            zip.putNextEntry(payload);
+            writePayload(zip, payloadSize, seed);
+            zip.closeEntry();
+
+            zip.putNextEntry(new ZipEntry("AndroidManifest.xml"));
+            zip.write(manifest);
+            zip.closeEntry();
+        }
+        insertSigningBlock(file);
+    }
+
+    static String certificateDigest() {
+        try {
+            return Hex.encode(MessageDigest.getInstance("SHA-256").digest(CERTIFICATE));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writePayload(OutputStream out, long size, long seed) throws IOException {
+        byte[] chunk = new byte[CHUNK];
+        long state = seed | 1;
+        long written = 0;
+        while (written < size) {
+            // xorshift64, fast and incompressible enough
+            for (int i = 0; i < chunk.length; i += 8) {
+                state ^= state << 13;
+                state ^= state >>> 7;
+                state ^= state << 17;
+                for (int b = 0; b < 8; b++) {
+                    chunk[i + b] = (byte) (state >>> (b * 8));
+                }
+            }
+            int length = (int) Math.min(chunk.length, size - written);
+            out.write(chunk, 0, length);
+            written += length;
+        }
+    }
+
+    /**
+     * Moves the central directory back to make room for an APK Signing Block
+     * in front of it, as apksigner does.
+     */
+    private static void insertSigningBlock(File file) throws IOException {
+        byte[] block = signingBlock();
+        try (RandomAccessFile apk = new RandomAccessFile(file, "rw")) {
+            long eocd = apk.length() - 22;
+            apk.seek(eocd + 16);
+            long centralDirectoryOffset = Integer.toUnsignedLong(Integer.reverseBytes(apk.readInt()));
+            byte[] tail = new byte[(int) (apk.length() - centralDirectoryOffset)];
+            apk.seek(centralDirectoryOffset);
+            apk.readFully(tail);
+            ByteBuffer.wrap(tail).order(ByteOrder.LITTLE_ENDIAN)
+                    .putInt(tail.length - 22 + 16, (int) (centralDirectoryOffset + block.length));
+            apk.seek(centralDirectoryOffset);
+            apk.write(block);
+            apk.write(tail);
+        }
+    }
+
+    private static byte[] signingBlock() {
+        byte[] signedData = concat(lengthPrefixed(new byte[0]),
+                lengthPrefixed(lengthPrefixed(CERTIFICATE)),
+                lengthPrefixed(new byte[0]));
+        byte[] signer = concat(lengthPrefixed(signedData), lengthPrefixed(new byte[0]), lengthPrefixed(new byte[0]));
+        byte[] v2 = lengthPrefixed(lengthPrefixed(signer));
+
+        ByteBuffer pair = ByteBuffer.allocate(8 + 4 + v2.length).order(ByteOrder.LITTLE_ENDIAN);
+        pair.putLong(v2.length + 4).putInt(0x7109871a).put(v2);
+        long blockSize = pair.capacity() + 8 + 16;
+        ByteBuffer block = ByteBuffer.allocate((int) blockSize + 8).order(ByteOrder.LITTLE_ENDIAN);
+        block.putLong(blockSize).put(pair.array()).putLong(blockSize)
+                .put("APK Sig Block 42".getBytes(StandardCharsets.US_ASCII));
+        return block.array();
+    }
+
+    /**
+     * Binary XML for {@code <manifest package versionCode><uses-sdk minSdkVersion/></manifest>}.
+     */
+    static byte[] manifest() {
+        String[] strings = {"versionCode", "minSdkVersion", "package", "manifest", "uses-sdk",
+                "android", "http://schemas.android.com/apk/res/android", PACKAGE_NAME};
+        int versionCode = 0;
+        int minSdkVersion = 1;
+        int packageAttr = 2;
+        int manifestTag = 3;
+        int usesSdkTag = 4;
+        int androidNs = 6;
+        int packageValue = 7;
+
+        ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+        write(chunks, stringPool(strings));
+        write(chunks, resourceMap(0x0101021b, 0x0101020c));
+        write(chunks, startElement(manifestTag,
+                attribute(androidNs, versionCode, -1, 0x10, VERSION_CODE),
+                attribute(-1, packageAttr, packageValue, 0x03, packageValue)));
+        write(chunks, startElement(usesSdkTag, attribute(androidNs, minSdkVersion, -1, 0x10, MIN_SDK)));
+        write(chunks, endElement(usesSdkTag));
+        write(chunks, endElement(manifestTag));
+        return chunk(0x0003, 8, new byte[0], chunks.toByteArray());
+    }
+
+    private static byte[] stringPool(String[] strings) {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        ByteBuffer offsets = ByteBuffer.allocate(4 * strings.length).order(ByteOrder.LITTLE_ENDIAN);
+        for (String string : strings) {
+            offsets.putInt(data.size());
+            byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+            data.write(string.length());
+            data.write(utf8.length);
+            write(data, utf8);
+            data.write(0);
+        }
+        while (data.size() % 4 != 0) {
+            data.write(0);
+        }
+        int headerSize = 28;
+        ByteBuffer header = ByteBuffer.allocate(20).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(strings.length).putInt(0).putInt(1 << 8)
+                .putInt(headerSize + offsets.capacity()).putInt(0);
+        return chunk(0x0001, headerSize, header.array(), concat(offsets.array(), data.toByteArray()));
+    }
+
+    private static byte[] resourceMap(int... ids) {
+        ByteBuffer body = ByteBuffer.allocate(4 * ids.length).order(ByteOrder.LITTLE_ENDIAN);
+        for (int id : ids) {
+            body.putInt(id);
+        }
+        return chunk(0x0180, 8, new byte[0], body.array());
+    }
+
+    private static byte[] attribute(int namespace, int name, int rawValue, int type, int data) {
+        ByteBuffer attribute = ByteBuffer.allocate(20).order(ByteOrder.LITTLE_ENDIAN);
+        attribute.putInt(namespace).putInt(name).putInt(rawValue)
+                .putShort((short) 8).put((byte) 0).put((byte) type).putInt(data);
+        return attribute.array();
+    }
+
+    private static byte[] startElement(int name, byte[]... attributes) {
+        ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(1).putInt(-1);
+        ByteBuffer element = ByteBuffer.allocate(20).order(ByteOrder.LITTLE_ENDIAN);
+        element.putInt(-1).putInt(name).putShort((short) 20).putShort((short) 20)
+                .putShort((short) attributes.length).putShort((short) 0).putShort((short) 0).putShort((short) 0);
+        return chunk(0x0102, 16, header.array(), concat(element.array(), concat(attributes)));
+    }
+
+    private static byte[] endElement(int name) {
+        ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(1).putInt(-1);
+        ByteBuffer element = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        element.putInt(-1).putInt(name);
+        return chunk(0x0103, 16, header.array(), element.array());
+    }
+
+    /**
+     * A resource chunk: type, header size and total size, then the rest of the
+     * header and the body.
+     */
+    private static byte[] chunk(int type, int headerSize, byte[] headerRest, byte[] body) {
+        ByteBuffer chunk = ByteBuffer.allocate(8 + headerRest.length + body.length).order(ByteOrder.LITTLE_ENDIAN);
+        chunk.putShort((short) type).putShort((short) headerSize).putInt(chunk.capacity())
+                .put(headerRest).put(body);
+        return chunk.array();
+    }
+
+    private static byte[] lengthPrefixed(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + data.length).order(ByteOrder.LITTLE_ENDIAN);
+        return buffer.putInt(data.length).put(data).array();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            write(out, part);
+        }
+        return out.toByteArray();
+    }
+
+    private static void write(ByteArrayOutputStream out, byte[] data) {
+        out.write(data, 0, data.length);
+    }
+
+    private static byte[] repeat(String text, int times) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            builder.append(text);
+        }
+        return builder.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,77 @@
+package com.simonbaars.androidforceinstall;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Full integrity check of an APK: {@link ApkVerifier} on one thread and on
+ * every core, against reading every entry with a {@link ZipInputStream},
+ * which also checks each CRC on the way.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class VerifyBenchmark {
+
+    @Param({"16", "256", "1024"})
+    public int sizeMb;
+
+    private File apk;
+    private ExecutorService pool;
+    private int threads;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        apk = SyntheticApk.get(sizeMb * SyntheticApk.MB);
+        threads = Runtime.getRuntime().availableProcessors();
+        pool = Executors.newFixedThreadPool(Math.max(1, threads - 1));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Benchmark
+    public void verifierSingleThread() throws IOException {
+        new ApkVerifier(null, 1).verify(apk, ApkVerifier.MANIFEST, ApkVerifier.CLASSES_DEX);
+    }
+
+    @Benchmark
+    public void verifierAllCores() throws IOException {
+        new ApkVerifier(pool, threads).verify(apk, ApkVerifier.MANIFEST, ApkVerifier.CLASSES_DEX);
+    }
+
+    @Benchmark
+    public long zipStreamFullRead() throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        try (ZipInputStream zip = new ZipInputStream(new FileInputStream(apk))) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                int read;
+                while ((read = zip.read(buffer)) > 0) {
+                    total += read;
+                }
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,149 @@
+package com.simonbaars.androidforceinstall;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Split APK containers ({@code .apks}, {@code .xapk}, {@code .apkm}): ZIP files
+ * holding a base APK and its splits. Anything in them that is not an APK
+ * (OBB files, metadata json, icons) is ignored.
+ */
+public final class ApkBundle {
+
+    public static final String BASE = "base";
+
+    private ApkBundle() {
+    }
+
+    public static boolean isBundle(String fileName) {
+        if (fileName == null) {
+            return false;
+        }
+        String lower = fileName.toLowerCase(Locale.ROOT);
+        return lower.endsWith(".apks") || lower.endsWith(".xapk") || lower.endsWith(".apkm");
+    }
+
+    static boolean isApkEntry(ZipEntry entry) {
+        return !entry.isDirectory() && entry.getName().toLowerCase(Locale.ROOT).endsWith(".apk");
+    }
+
+    /**
+     * Guesses the split name from an APK's file name inside a bundle, covering
+     * the layouts of bundletool ({@code splits/base-arm64_v8a.apk}), SAI
+     * ({@code split_config.arm64_v8a.apk}) and XAPK ({@code config.arm64_v8a.apk},
+     * base named after the package). Returns {@link #BASE} for the base APK.
+     */
+    public static String splitNameOf(String entryName) {
+        String name = entryName.substring(entryName.lastIndexOf('/') + 1);
+        if (name.toLowerCase(Locale.ROOT).endsWith(".apk")) {
+            name = name.substring(0, name.length() - 4);
+        }
+        if (name.equals(BASE) || name.equals("base-master")) {
+            return BASE;
+        }
+        if (name.startsWith("split_")) {
+            return name.substring("split_".length());
+        }
+        if (name.startsWith("base-")) {
+            return "config." + name.substring("base-".length());
+        }
+        if (name.endsWith("-master")) {
+            return name.substring(0, name.length() - "-master".length());
+        }
+        if (name.startsWith("config.")) {
+            return name;
+        }
+        // XAPK names the base APK after the package
+        return BASE;
+    }
+
+    /**
+     * Split name from the APK's own manifest, falling back to its file name.
+     */
+    public static String splitNameOf(File apk) {
+        try {
+            String splitName = ApkReader.read(apk).getSplitName();
+            return splitName != null ? splitName : BASE;
+        } catch (IOException e) {
+            return splitNameOf(apk.getName());
+        }
+    }
+
+    /**
+     * Lists the APKs in an opened bundle as session splits. {@link ZipFile}
+     * allows concurrent reads, so the splits can be written in parallel.
+     */
+    public static List<SessionInstaller.Split> splitsOf(ZipFile zip) {
+        List<SessionInstaller.Split> splits = new ArrayList<>();
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            if (isApkEntry(entry)) {
+                splits.add(new SessionInstaller.Split(sessionNameOf(splits.size(), entry.getName()),
+                        entry.getSize(), () -> zip.getInputStream(entry)));
+            }
+        }
+        return splits;
+    }
+
+    /**
+     * Unique name for an APK inside one install session.
+     */
+    static String sessionNameOf(int index, String entryName) {
+        String name = entryName.substring(entryName.lastIndexOf('/') + 1);
+        return index + "_" + name.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /**
+     * Unpacks the APKs of a bundle into {@code dir}, keyed by split name with
+     * the base APK first.
+     */
+    public static Map<String, File> extract(File bundle, File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        Map<String, File> splits = new LinkedHashMap<>();
+        File base = null;
+        try (ZipFile zip = new ZipFile(bundle)) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (!isApkEntry(entry)) {
+                    continue;
+                }
+                File target = new File(dir, sessionNameOf(splits.size(), entry.getName()));
+                try (InputStream in = zip.getInputStream(entry);
+                     OutputStream out = new FileOutputStream(target)) {
+                    StreamCopy.copy(in, out, -1, null);
+                }
+                String splitName = splitNameOf(target);
+                if (splits.containsKey(splitName) || (BASE.equals(splitName) && base != null)) {
+                    throw new IOException("Bundle contains split " + splitName + " twice");
+                }
+                if (BASE.equals(splitName)) {
+                    base = target;
+                } else {
+                    splits.put(splitName, target);
+                }
+            }
+        }
+        if (base == null) {
+            throw new IOException("Bundle does not contain a base APK");
+        }
+        Map<String, File> ordered = new LinkedHashMap<>();
+        ordered.put(BASE, base);
+        ordered.putAll(splits);
+        return ordered;
+    }
+}
@@ -0,0 +1,73 @@
+package com.simonbaars.androidforceinstall;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The few manifest fields and signer digests the installer needs from an APK.
+ */
+public class ApkInfo {
+
+    private final String packageName;
+    private final long versionCode;
+    private final String splitName;
+    private final int minSdk;
+    private final List<String> signerDigests;
+    private final List<String> signingLineage;
+
+    ApkInfo(String packageName, long versionCode, String splitName, int minSdk, List<String> signerDigests,
+            List<String> signingLineage) {
+        this.packageName = packageName;
+        this.versionCode = versionCode;
+        this.splitName = splitName;
+        this.minSdk = minSdk;
+        this.signerDigests = Collections.unmodifiableList(signerDigests);
+        this.signingLineage = Collections.unmodifiableList(signingLineage);
+    }
+
+    public String getPackageName() {
+        return packageName;
+    }
+
+    /**
+     * The full version code, with {@code versionCodeMajor} in the upper 32 bits.
+     */
+    public long getVersionCode() {
+        return versionCode;
+    }
+
+    /**
+     * The {@code split} attribute of the manifest, or null for a base APK.
+     */
+    public String getSplitName() {
+        return splitName;
+    }
+
+    public int getMinSdk() {
+        return minSdk;
+    }
+
+    /**
+     * Lower case hex SHA-256 of each signer's certificate, taken from the newest
+     * signature scheme the APK carries (v3, v2, then v1 JAR signing).
+     */
+    public List<String> getSignerDigests() {
+        return signerDigests;
+    }
+
+    /**
+     * Digests of every certificate in the v3 proof of rotation, oldest first
+     * and ending with the current signer, or empty if the key never rotated.
+     */
+    public List<String> getSigningLineage() {
+        return signingLineage;
+    }
+
+    /**
+     * Whether this APK's key was rotated from all of {@code signerDigests},
+     * which PackageManager accepts as an ordinary update.
+     */
+    public boolean rotatedFrom(List<String> signerDigests) {
+        return !signingLineage.isEmpty() && signingLineage.containsAll(signerDigests);
+    }
+}
@@ -0,0 +1,423 @@
+package com.simonbaars.androidforceinstall;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reads package name, version, split name, minSdk and signer digests straight
+ * from an APK, without the full archive parse {@code getPackageArchiveInfo}
+ * does. Only the ZIP central directory, the binary AndroidManifest.xml and
+ * the APK Signing Block are touched.
+ */
+public final class ApkReader {
+
+    private static final String MANIFEST = "AndroidManifest.xml";
+
+    // APK Signing Block
+    private static final long SIG_BLOCK_MAGIC_LO = 0x20676953204b5041L; // "APK Sig "
+    private static final long SIG_BLOCK_MAGIC_HI = 0x3234206b636f6c42L; // "Block 42"
+    private static final int SIGNATURE_SCHEME_V2_ID = 0x7109871a;
+    private static final int SIGNATURE_SCHEME_V3_ID = 0xf05368c0;
+    private static final int SIGNATURE_SCHEME_V31_ID = 0x1b93ad61;
+    // v3 signed data attribute holding the signing certificate lineage
+    private static final int PROOF_OF_ROTATION_ATTR_ID = 0x3ba06f8c;
+
+    // Binary XML chunk types
+    private static final int RES_STRING_POOL_TYPE = 0x0001;
+    private static final int RES_XML_TYPE = 0x0003;
+    private static final int RES_XML_START_ELEMENT_TYPE = 0x0102;
+    private static final int RES_XML_END_ELEMENT_TYPE = 0x0103;
+    private static final int RES_XML_RESOURCE_MAP_TYPE = 0x0180;
+    private static final int UTF8_FLAG = 1 << 8;
+
+    // Typed value data types
+    private static final int TYPE_STRING = 0x03;
+    private static final int TYPE_INT_DEC = 0x10;
+    private static final int TYPE_INT_HEX = 0x11;
+
+    // android:* attribute resource ids
+    private static final int ATTR_VERSION_CODE = 0x0101021b;
+    private static final int ATTR_VERSION_CODE_MAJOR = 0x01010576;
+    private static final int ATTR_MIN_SDK_VERSION = 0x0101020c;
+
+    // Build.VERSION_CODES.CUR_DEVELOPMENT, what a codename minSdk stands for
+    static final int PREVIEW_SDK = 10000;
+
+    private ApkReader() {
+    }
+
+    public static ApkInfo read(File apk) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(apk, "r");
+             FileChannel channel = file.getChannel()) {
+            return parse(ZipCentralDirectory.read(channel));
+        } catch (RuntimeException e) {
+            throw corrupt(apk.getName(), e);
+        }
+    }
+
+    public static ApkInfo read(FileChannel channel) throws IOException {
+        return read(ZipCentralDirectory.read(channel));
+    }
+
+    public static ApkInfo read(ZipCentralDirectory zip) throws IOException {
+        try {
+            return parse(zip);
+        } catch (RuntimeException e) {
+            throw corrupt("APK", e);
+        }
+    }
+
+    /**
+     * Out-of-range offsets in a truncated or corrupt manifest or signing block
+     * surface as index and buffer exceptions; callers only expect IOException.
+     */
+    private static IOException corrupt(String name, RuntimeException e) {
+        return new IOException("Corrupt " + name + ": " + e, e);
+    }
+
+    private static ApkInfo parse(ZipCentralDirectory zip) throws IOException {
+        ZipCentralDirectory.Entry manifestEntry = zip.find(MANIFEST);
+        if (manifestEntry == null) {
+            throw new IOException("Not an APK: no " + MANIFEST);
+        }
+        ManifestFields manifest = parseManifest(zip.readFully(manifestEntry));
+        if (manifest.packageName == null) {
+            throw new IOException("Manifest has no package name");
+        }
+
+        Signers signers = readSigningBlock(zip);
+        List<String> digests = signers.digests;
+        if (digests.isEmpty()) {
+            digests = readJarSignerDigests(zip);
+        }
+        long versionCode = (manifest.versionCodeMajor << 32) | (manifest.versionCode & 0xffffffffL);
+        return new ApkInfo(manifest.packageName, versionCode, manifest.splitName, manifest.minSdk, digests,
+                signers.lineage);
+    }
+
+    private static final class Signers {
+        final List<String> digests = new ArrayList<>();
+        final List<String> lineage = new ArrayList<>();
+    }
+
+    private static final class ManifestFields {
+        String packageName;
+        long versionCode;
+        long versionCodeMajor;
+        String splitName;
+        int minSdk = 1;
+    }
+
+    /**
+     * Walks the binary XML of the manifest, looking only at the attributes of
+     * the {@code <manifest>} and {@code <uses-sdk>} elements.
+     */
+    static ManifestFields parseManifest(byte[] xml) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(xml).order(ByteOrder.LITTLE_ENDIAN);
+        if (xml.length < 8 || (buffer.getShort(0) & 0xffff) != RES_XML_TYPE) {
+            throw new IOException("Manifest is not binary XML");
+        }
+
+        ManifestFields fields = new ManifestFields();
+        String[] strings = new String[0];
+        int[] resourceIds = new int[0];
+        int depth = 0;
+        int position = buffer.getShort(2) & 0xffff;
+        while (position + 8 <= xml.length) {
+            int type = buffer.getShort(position) & 0xffff;
+            int headerSize = buffer.getShort(position + 2) & 0xffff;
+            int chunkSize = buffer.getInt(position + 4);
+            if (chunkSize < 8 || position + chunkSize > xml.length) {
+                throw new IOException("Corrupt manifest chunk at " + position);
+            }
+
+            if (type == RES_STRING_POOL_TYPE) {
+                strings = readStringPool(buffer, position);
+            } else if (type == RES_XML_RESOURCE_MAP_TYPE) {
+                resourceIds = new int[(chunkSize - headerSize) / 4];
+                for (int i = 0; i < resourceIds.length; i++) {
+                    resourceIds[i] = buffer.getInt(position + headerSize + i * 4);
+                }
+            } else if (type == RES_XML_START_ELEMENT_TYPE) {
+                depth++;
+                String name = string(strings, buffer.getInt(position + 20));
+                boolean isManifest = depth == 1 && "manifest".equals(name);
+                boolean isUsesSdk = depth == 2 && "uses-sdk".equals(name);
+                if (isManifest || isUsesSdk) {
+                    int attributeStart = buffer.getShort(position + 24) & 0xffff;
+                    int attributeSize = buffer.getShort(position + 26) & 0xffff;
+                    int attributeCount = buffer.getShort(position + 28) & 0xffff;
+                    for (int i = 0; i < attributeCount; i++) {
+                        int attribute = position + 16 + attributeStart + i * attributeSize;
+                        int nameIndex = buffer.getInt(attribute + 4);
+                        int rawValue = buffer.getInt(attribute + 8);
+                        int dataType = buffer.get(attribute + 15) & 0xff;
+                        int data = buffer.getInt(attribute + 16);
+                        int resourceId = nameIndex >= 0 && nameIndex < resourceIds.length ? resourceIds[nameIndex] : 0;
+                        String attributeName = string(strings, nameIndex);
+                        String value = dataType == TYPE_STRING ? string(strings, data) : string(strings, rawValue);
+                        boolean isInt = dataType == TYPE_INT_DEC || dataType == TYPE_INT_HEX;
+
+                        if (isManifest) {
+                            if (resourceId == ATTR_VERSION_CODE || (resourceId == 0 && "versionCode".equals(attributeName))) {
+                                fields.versionCode = isInt ? data : parseLong(value);
+                            } else if (resourceId == ATTR_VERSION_CODE_MAJOR
+                                    || (resourceId == 0 && "versionCodeMajor".equals(attributeName))) {
+                                fields.versionCodeMajor = isInt ? data : parseLong(value);
+                            } else if (resourceId == 0 && "package".equals(attributeName)) {
+                                fields.packageName = value;
+                            } else if (resourceId == 0 && "split".equals(attributeName)) {
+                                fields.splitName = value;
+                            }
+                        } else if (resourceId == ATTR_MIN_SDK_VERSION
+                                || (resourceId == 0 && "minSdkVersion".equals(attributeName))) {
+                            fields.minSdk = isInt ? data : sdkVersion(value);
+                        }
+                    }
+                }
+            } else if (type == RES_XML_END_ELEMENT_TYPE) {
+                depth--;
+                if (depth == 0) {
+                    // Everything we need lives on <manifest> and its direct children
+                    break;
+                }
+            }
+            position += chunkSize;
+        }
+        return fields;
+    }
+
+    private static String[] readStringPool(ByteBuffer buffer, int chunk) throws IOException {
+        int headerSize = buffer.getShort(chunk + 2) & 0xffff;
+        int count = buffer.getInt(chunk + 8);
+        int flags = buffer.getInt(chunk + 16);
+        int stringsStart = buffer.getInt(chunk + 20);
+        boolean utf8 = (flags & UTF8_FLAG) != 0;
+
+        String[] strings = new String[count];
+        for (int i = 0; i < count; i++) {
+            int offset = chunk + stringsStart + buffer.getInt(chunk + headerSize + i * 4);
+            if (utf8) {
+                // UTF-16 length first (skipped), then UTF-8 byte length, each 1 or 2 bytes
+                offset += (buffer.get(offset) & 0x80) != 0 ? 2 : 1;
+                int length = buffer.get(offset) & 0xff;
+                if ((length & 0x80) != 0) {
+                    length = ((length & 0x7f) << 8) | (buffer.get(offset + 1) & 0xff);
+                    offset += 2;
+                } else {
+                    offset += 1;
+                }
+                strings[i] = new String(buffer.array(), offset, length, StandardCharsets.UTF_8);
+            } else {
+                int length = buffer.getShort(offset) & 0xffff;
+                if ((length & 0x8000) != 0) {
+                    length = ((length & 0x7fff) << 16) | (buffer.getShort(offset + 2) & 0xffff);
+                    offset += 4;
+                } else {
+                    offset += 2;
+                }
+                strings[i] = new String(buffer.array(), offset, length * 2, StandardCharsets.UTF_16LE);
+            }
+        }
+        return strings;
+    }
+
+    private static String string(String[] strings, int index) {
+        return index >= 0 && index < strings.length ? strings[index] : null;
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return value != null ? Long.parseLong(value.trim()) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * An SDK version written as a string: usually a number such as "21", or
+     * a codename such as "S" for a preview SDK, which maps to
+     * {@link #PREVIEW_SDK} as on the device.
+     */
+    static int sdkVersion(String value) {
+        if (value == null) {
+            return 1;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return PREVIEW_SDK;
+        }
+    }
+
+    /**
+     * Signer certificate digests from the APK Signing Block that sits right
+     * before the central directory, preferring v3.1/v3 over v2. Empty if the
+     * APK only has a v1 (JAR) signature.
+     */
+    static List<String> readSigningBlockDigests(ZipCentralDirectory zip) throws IOException {
+        return readSigningBlock(zip).digests;
+    }
+
+    /**
+     * Signer digests as in {@link #readSigningBlockDigests}, plus the proof of
+     * rotation lineage of a v3/v3.1 signer, if it rotated its key.
+     */
+    private static Signers readSigningBlock(ZipCentralDirectory zip) throws IOException {
+        Signers result = new Signers();
+        long cdOffset = zip.getCentralDirectoryOffset();
+        if (cdOffset < 32) {
+            return result;
+        }
+        FileChannel channel = zip.getChannel();
+        ByteBuffer footer = ZipCentralDirectory.map(channel, cdOffset - 24, 24);
+        if (footer.getLong(8) != SIG_BLOCK_MAGIC_LO || footer.getLong(16) != SIG_BLOCK_MAGIC_HI) {
+            return result;
+        }
+        long blockSize = footer.getLong(0);
+        long blockStart = cdOffset - blockSize - 8;
+        if (blockSize < 24 || blockStart < 0) {
+            throw new IOException("Corrupt APK Signing Block");
+        }
+
+        // Pairs of (uint64 length, uint32 id, value) between the two size fields
+        ByteBuffer pairs = ZipCentralDirectory.map(channel, blockStart + 8, blockSize - 24);
+        ByteBuffer v2 = null;
+        ByteBuffer v3 = null;
+        while (pairs.remaining() >= 12) {
+            long length = pairs.getLong();
+            if (length < 4 || length > pairs.remaining()) {
+                throw new IOException("Corrupt APK Signing Block pair");
+            }
+            int id = pairs.getInt();
+            ByteBuffer value = slice(pairs, (int) length - 4);
+            if (id == SIGNATURE_SCHEME_V31_ID || (id == SIGNATURE_SCHEME_V3_ID && v3 == null)) {
+                v3 = value;
+            } else if (id == SIGNATURE_SCHEME_V2_ID) {
+                v2 = value;
+            }
+        }
+
+        ByteBuffer scheme = v3 != null ? v3 : v2;
+        if (scheme == null) {
+            return result;
+        }
+        // v2 and v3 share the layout up to the certificates:
+        // signers[ signer{ signedData{ digests[], certificates[], ... }, ... } ]
+        ByteBuffer signers = lengthPrefixed(scheme);
+        while (signers.hasRemaining()) {
+            ByteBuffer signer = lengthPrefixed(signers);
+            ByteBuffer signedData = lengthPrefixed(signer);
+            lengthPrefixed(signedData); // digests
+            ByteBuffer certificates = lengthPrefixed(signedData);
+            if (certificates.hasRemaining()) {
+                result.digests.add(sha256(bytes(lengthPrefixed(certificates))));
+            }
+            if (v3 != null && result.lineage.isEmpty()) {
+                readLineage(signedData, result.lineage);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads the rest of v3 signed data, {@code minSdk, maxSdk,
+     * additionalAttributes[ {id, value} ]}, for the proof of rotation: a
+     * version, then one node per certificate the app was signed with, oldest
+     * first, each {@code signedData{ certificate, algorithm }, flags,
+     * algorithm, signature}. The signatures are not checked; PackageManager
+     * does that when it installs the APK.
+     */
+    private static void readLineage(ByteBuffer signedData, List<String> lineage) throws IOException {
+        if (signedData.remaining() < 8) {
+            return;
+        }
+        signedData.position(signedData.position() + 8); // minSdk, maxSdk
+        ByteBuffer attributes = lengthPrefixed(signedData);
+        while (attributes.hasRemaining()) {
+            ByteBuffer attribute = lengthPrefixed(attributes);
+            if (attribute.remaining() < 8 || attribute.getInt() != PROOF_OF_ROTATION_ATTR_ID) {
+                continue;
+            }
+            attribute.getInt(); // version
+            while (attribute.hasRemaining()) {
+                ByteBuffer node = lengthPrefixed(attribute);
+                ByteBuffer nodeData = lengthPrefixed(node);
+                lineage.add(sha256(bytes(lengthPrefixed(nodeData))));
+            }
+        }
+    }
+
+    /**
+     * Falls back to the certificates in the PKCS#7 blocks of a v1 signature.
+     */
+    static List<String> readJarSignerDigests(ZipCentralDirectory zip) throws IOException {
+        List<String> digests = new ArrayList<>();
+        for (ZipCentralDirectory.Entry entry : zip.getEntries()) {
+            String name = entry.getName().toUpperCase(Locale.ROOT);
+            if (!name.startsWith("META-INF/") || name.indexOf('/', 9) >= 0
+                    || !(name.endsWith(".RSA") || name.endsWith(".DSA") || name.endsWith(".EC"))) {
+                continue;
+            }
+            try {
+                CertificateFactory factory = CertificateFactory.getInstance("X.509");
+                Collection<? extends Certificate> certificates =
+                        factory.generateCertificates(new ByteArrayInputStream(zip.readFully(entry)));
+                if (!certificates.isEmpty()) {
+                    digests.add(sha256(certificates.iterator().next().getEncoded()));
+                }
+            } catch (CertificateException e) {
+                throw new IOException("Corrupt signature file " + entry.getName(), e);
+            }
+        }
+        return digests;
+    }
+
+    private static ByteBuffer lengthPrefixed(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 4) {
+            throw new IOException("Corrupt signature: truncated length prefix");
+        }
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Corrupt signature: length " + length + " out of bounds");
+        }
+        return slice(buffer, length);
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int length) {
+        ByteBuffer slice = buffer.slice();
+        slice.limit(length);
+        slice.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(buffer.position() + length);
+        return slice;
+    }
+
+    static String sha256(byte[] data) {
+        try {
+            return Hex.encode(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package com.simonbaars.androidforceinstall;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Checks that an APK is a complete archive before it is copied over an
+ * installed one: the central directory must be readable, required entries
+ * must be present, and every entry must inflate to its recorded size and
+ * CRC-32.
+ *
+ * <p>The entries are spread over several threads, largest first. Shares the
+ * pool has not started by the time the calling thread is done with its own
+ * are run by the calling thread too. Stored entries above
+ * {@link #SLICE_SIZE}, such as uncompressed native libraries or assets, are
+ * additionally checked in slices whose CRCs are combined afterwards, so one
+ * big entry does not keep a single thread busy.
+ */
+public final class ApkVerifier {
+
+    public static final String MANIFEST = "AndroidManifest.xml";
+    public static final String CLASSES_DEX = "classes.dex";
+
+    static final long SLICE_SIZE = 4 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ExecutorService pool;
+    private final int parallelism;
+
+    /**
+     * @param pool        runs all but one share of the work, the calling
+     *                    thread does the rest; null checks on the calling thread only
+     * @param parallelism number of shares the work is split into, best the
+     *                    pool's thread count plus one for the calling thread
+     */
+    public ApkVerifier(ExecutorService pool, int parallelism) {
+        this.pool = pool;
+        this.parallelism = pool != null ? Math.max(1, parallelism) : 1;
+    }
+
+    /**
+     * Throws an {@link IOException} describing the first problem found.
+     *
+     * @param required entry names that must be present
+     */
+    public void verify(File apk, String... required) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(apk, "r");
+             FileChannel channel = file.getChannel()) {
+            verify(ZipCentralDirectory.read(channel), required);
+        }
+    }
+
+    public void verify(ZipCentralDirectory zip, String... required) throws IOException {
+        for (String name : required) {
+            if (zip.find(name) == null) {
+                throw new IOException("Missing " + name);
+            }
+        }
+
+        // One mapping of everything in front of the central directory, shared by all threads
+        ByteBuffer archive = ZipCentralDirectory.map(zip.getChannel(), 0, zip.getCentralDirectoryOffset());
+        List<Check> checks = new ArrayList<>();
+        List<List<Check>> sliced = new ArrayList<>();
+        for (ZipCentralDirectory.Entry entry : zip.getEntries()) {
+            long offset = zip.dataOffset(entry, archive, 0);
+            if (entry.method == ZipCentralDirectory.METHOD_STORED) {
+                if (entry.compressedSize != entry.size) {
+                    throw new IOException("Size mismatch in stored entry " + entry.name);
+                }
+                if (entry.size > SLICE_SIZE) {
+                    List<Check> slices = new ArrayList<>();
+                    for (long start = 0; start < entry.size; start += SLICE_SIZE) {
+                        slices.add(new Check(entry, offset + start, Math.min(SLICE_SIZE, entry.size - start), true));
+                    }
+                    checks.addAll(slices);
+                    sliced.add(slices);
+                    continue;
+                }
+            } else if (entry.method != ZipCentralDirectory.METHOD_DEFLATED) {
+                throw new IOException("Unsupported compression method " + entry.method + " for " + entry.name);
+            }
+            checks.add(new Check(entry, offset, entry.compressedSize, false));
+        }
+
+        run(archive, share(checks));
+
+        for (List<Check> slices : sliced) {
+            long crc = slices.get(0).crc;
+            for (int i = 1; i < slices.size(); i++) {
+                crc = combine(crc, slices.get(i).crc, slices.get(i).length);
+            }
+            ZipCentralDirectory.Entry entry = slices.get(0).entry;
+            if (crc != entry.crc) {
+                throw new IOException("CRC mismatch in " + entry.name);
+            }
+        }
+    }
+
+    /**
+     * Deals the checks out largest first, each to the share with the fewest
+     * bytes so far.
+     */
+    private List<List<Check>> share(List<Check> checks) {
+        List<Check> bySize = new ArrayList<>(checks);
+        Collections.sort(bySize, (a, b) -> Long.compare(b.length, a.length));
+        int count = Math.max(1, Math.min(parallelism, bySize.size()));
+        List<List<Check>> shares = new ArrayList<>(count);
+        long[] bytes = new long[count];
+        for (int i = 0; i < count; i++) {
+            shares.add(new ArrayList<>());
+        }
+        for (Check check : bySize) {
+            int smallest = 0;
+            for (int i = 1; i < count; i++) {
+                if (bytes[i] < bytes[smallest]) {
+                    smallest = i;
+                }
+            }
+            shares.get(smallest).add(check);
+            bytes[smallest] += check.length;
+        }
+        return shares;
+    }
+
+    private void run(ByteBuffer archive, List<List<Check>> shares) throws IOException {
+        // The first failure stops the other shares at their next entry
+        AtomicBoolean failed = new AtomicBoolean();
+        // Whoever gets to a share first runs it: a pool thread or, once it is done
+        // with its own, the calling thread, so shares queued behind other work on a
+        // busy pool do not hold the verification up
+        List<AtomicBoolean> claimed = new ArrayList<>();
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < shares.size(); i++) {
+            claimed.add(new AtomicBoolean(i == 0));
+        }
+        for (int i = 1; i < shares.size(); i++) {
+            List<Check> share = shares.get(i);
+            AtomicBoolean mine = claimed.get(i);
+            futures.add(pool.submit(() -> {
+                if (mine.compareAndSet(false, true)) {
+                    run(archive, share, failed);
+                }
+                return null;
+            }));
+        }
+
+        IOException error = null;
+        try {
+            run(archive, shares.get(0), failed);
+            for (int i = 1; i < shares.size(); i++) {
+                if (claimed.get(i).compareAndSet(false, true)) {
+                    futures.get(i - 1).cancel(false);
+                    run(archive, shares.get(i), failed);
+                }
+            }
+        } catch (IOException e) {
+            error = e;
+        }
+        for (Future<Void> future : futures) {
+            if (future.isCancelled()) {
+                // Ran on the calling thread
+                continue;
+            }
+            try {
+                if (error != null) {
+                    future.cancel(true);
+                } else {
+                    future.get();
+                }
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                error = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failed.set(true);
+                error = new InterruptedIOException("Verification interrupted");
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private static void run(ByteBuffer archive, List<Check> share, AtomicBoolean failed) throws IOException {
+        ByteBuffer view = archive.duplicate();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        Inflater inflater = new Inflater(true);
+        try {
+            for (Check check : share) {
+                if (failed.get()) {
+                    return;
+                }
+                view.limit((int) (check.offset + check.length)).position((int) check.offset);
+                check.run(view, buffer, inflater);
+            }
+        } catch (IOException | RuntimeException e) {
+            failed.set(true);
+            throw e;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * One entry, or one slice of a large stored entry.
+     */
+    private static final class Check {
+        final ZipCentralDirectory.Entry entry;
+        final long offset;
+        final long length;
+        final boolean slice;
+        long crc;
+
+        Check(ZipCentralDirectory.Entry entry, long offset, long length, boolean slice) {
+            this.entry = entry;
+            this.offset = offset;
+            this.length = length;
+            this.slice = slice;
+        }
+
+        void run(ByteBuffer data, byte[] buffer, Inflater inflater) throws IOException {
+            CRC32 crc32 = new CRC32();
+            long size;
+            if (entry.method == ZipCentralDirectory.METHOD_STORED) {
+                size = data.remaining();
+                while (data.hasRemaining()) {
+                    int length = Math.min(buffer.length, data.remaining());
+                    data.get(buffer, 0, length);
+                    crc32.update(buffer, 0, length);
+                }
+            } else {
+                size = inflate(data, buffer, inflater, crc32);
+            }
+            crc = crc32.getValue();
+            if (slice) {
+                // Combined with the other slices once all are done
+                return;
+            }
+            if (size != entry.size) {
+                throw new IOException("Size mismatch in " + entry.name + ": " + size + " bytes, expected " + entry.size);
+            }
+            if (crc != entry.crc) {
+                throw new IOException("CRC mismatch in " + entry.name);
+            }
+        }
+
+        private long inflate(ByteBuffer data, byte[] buffer, Inflater inflater, CRC32 crc32) throws IOException {
+            byte[] input = new byte[Math.min(BUFFER_SIZE, Math.max(1, data.remaining()))];
+            inflater.reset();
+            long size = 0;
+            boolean padded = false;
+            try {
+                while (!inflater.finished()) {
+                    if (inflater.needsInput()) {
+                        if (data.hasRemaining()) {
+                            int length = Math.min(input.length, data.remaining());
+                            data.get(input, 0, length);
+                            inflater.setInput(input, 0, length);
+                        } else if (!padded) {
+                            // Raw deflate may want one byte past the end to finish, as in ZipFile
+                            padded = true;
+                            input[0] = 0;
+                            inflater.setInput(input, 0, 1);
+                        } else {
+                            throw new IOException("Truncated entry " + entry.name);
+                        }
+                    }
+                    int inflated = inflater.inflate(buffer);
+                    if (inflated == 0 && inflater.needsDictionary()) {
+                        throw new IOException("Corrupt entry " + entry.name);
+                    }
+                    crc32.update(buffer, 0, inflated);
+                    size += inflated;
+                    if (size > entry.size) {
+                        // Do not inflate a corrupt entry without end
+                        break;
+                    }
+                }
+                return size;
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt entry " + entry.name, e);
+            }
+        }
+    }
+
+    /**
+     * CRC-32 of two blocks of data back to back, from the CRC of each and
+     * the length of the second, as zlib's crc32_combine.
+     */
+    static long combine(long crc1, long crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+        long[] even = new long[32];
+        long[] odd = new long[32];
+
+        // Operator for one zero bit
+        odd[0] = 0xedb88320L;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        // Two and then four zero bits
+        square(even, odd);
+        square(odd, even);
+
+        // Apply length2 zero bytes to crc1, one bit of length2 at a time
+        do {
+            square(even, odd);
+            if ((length2 & 1) != 0) {
+                crc1 = times(even, crc1);
+            }
+            length2 >>= 1;
+            if (length2 == 0) {
+                break;
+            }
+            square(odd, even);
+            if ((length2 & 1) != 0) {
+                crc1 = times(odd, crc1);
+            }
+            length2 >>= 1;
+        } while (length2 != 0);
+        return crc1 ^ crc2;
+    }
+
+    private static long times(long[] matrix, long vector) {
+        long sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void square(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = times(matrix, matrix[n]);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.simonbaars.androidforceinstall;
+
+/**
+ * One Android user as listed by {@code pm list users}: the owner, a secondary
+ * user or a work profile.
+ */
+public class DeviceUser {
+
+    /** The user every install, replacement and query targets first. */
+    public static final int PRIMARY_USER = 0;
+
+    private final int id;
+    private final String name;
+    private final boolean running;
+
+    public DeviceUser(int id, String name, boolean running) {
+        this.id = id;
+        this.name = name;
+        this.running = running;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public String toString() {
+        return name.isEmpty() ? String.valueOf(id) : id + " (" + name + ")";
+    }
+}
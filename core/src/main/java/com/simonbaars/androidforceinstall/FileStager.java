@@ -0,0 +1,229 @@
+package com.simonbaars.androidforceinstall;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+
+/**
+ * Copies an APK into a local file as fast as the storage allows. A source
+ * that is a real file is moved with {@link FileChannel#transferTo}, which
+ * lets the kernel copy without passing the bytes through the Java heap; any
+ * other source is read through a large direct buffer. With a digest, a
+ * transferred file is hashed by reading the copy back, which the page cache
+ * still holds, so the copy itself keeps the fast path.
+ *
+ * <p>The copy goes to a {@code .part} file that is renamed onto the target
+ * only once it is complete, so a failed or cancelled copy never leaves a
+ * truncated APK behind. Progress is reported at most every 200 ms, and
+ * {@link #cancel()} stops the copy from any thread within one chunk.
+ */
+public class FileStager {
+
+    public static final int DIRECT_BUFFER_SIZE = 1024 * 1024;
+
+    // transferTo is split into chunks so progress and cancellation are checked
+    private static final long TRANSFER_CHUNK = 8 * 1024 * 1024;
+    private static final long PROGRESS_INTERVAL_MS = 200;
+
+    private final ProgressListener listener;
+    private final MessageDigest digest;
+    private volatile boolean cancelled;
+
+    public FileStager(ProgressListener listener) {
+        this(listener, null);
+    }
+
+    /**
+     * @param listener receives progress, may be null
+     * @param digest   updated with every byte copied, may be null
+     */
+    public FileStager(ProgressListener listener, MessageDigest digest) {
+        this.listener = listener;
+        this.digest = digest;
+    }
+
+    /**
+     * Stops a running copy, which then fails with an
+     * {@link InterruptedIOException}. Safe to call from any thread.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Copies {@code source} from its current position to its end into
+     * {@code target}.
+     *
+     * @return number of bytes copied
+     */
+    public long stage(FileChannel source, File target) throws IOException {
+        File part = partFile(target);
+        boolean complete = false;
+        try (FileOutputStream out = new FileOutputStream(part);
+             FileChannel channel = out.getChannel()) {
+            long start = source.position();
+            long size = source.size() - start;
+            Progress progress = new Progress(size);
+            long done = 0;
+            while (done < size) {
+                checkCancelled();
+                long moved = source.transferTo(start + done, Math.min(TRANSFER_CHUNK, size - done), channel);
+                if (moved <= 0) {
+                    // The file shrank while it was copied, a short copy is no APK
+                    throw new IOException("Source ended after " + done + " of " + size + " bytes");
+                }
+                done += moved;
+                progress.update(done);
+            }
+            if (digest != null) {
+                hash(part);
+            }
+            progress.finish(done);
+            commit(part, target);
+            complete = true;
+            return done;
+        } finally {
+            if (!complete) {
+                part.delete();
+            }
+        }
+    }
+
+    /**
+     * Copies {@code source} to its end into {@code target}.
+     *
+     * @param size expected number of bytes for progress, or -1 if unknown
+     * @return number of bytes copied
+     */
+    public long stage(InputStream source, long size, File target) throws IOException {
+        return stage(Channels.newChannel(source), size, target);
+    }
+
+    private long stage(ReadableByteChannel source, long size, File target) throws IOException {
+        File part = partFile(target);
+        boolean complete = false;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(DIRECT_BUFFER_SIZE);
+        try (FileOutputStream out = new FileOutputStream(part);
+             FileChannel channel = out.getChannel()) {
+            Progress progress = new Progress(size);
+            long done = 0;
+            while (true) {
+                checkCancelled();
+                int read = source.read(buffer);
+                if (read == -1) {
+                    break;
+                }
+                // Keep the buffer mostly full, a pipe hands out small reads
+                if (read > 0 && buffer.hasRemaining() && buffer.position() < DIRECT_BUFFER_SIZE / 2) {
+                    continue;
+                }
+                done += drain(buffer, channel);
+                progress.update(done);
+            }
+            done += drain(buffer, channel);
+            progress.finish(done);
+            commit(part, target);
+            complete = true;
+            return done;
+        } finally {
+            if (!complete) {
+                part.delete();
+            }
+        }
+    }
+
+    private int drain(ByteBuffer buffer, FileChannel channel) throws IOException {
+        buffer.flip();
+        int length = buffer.remaining();
+        if (digest != null) {
+            digest.update(buffer.duplicate());
+        }
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+        return length;
+    }
+
+    private void hash(File file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(DIRECT_BUFFER_SIZE);
+        try (FileInputStream in = new FileInputStream(file);
+             FileChannel channel = in.getChannel()) {
+            while (true) {
+                checkCancelled();
+                if (channel.read(buffer) == -1) {
+                    return;
+                }
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+    }
+
+    private void checkCancelled() throws InterruptedIOException {
+        if (cancelled || Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Copy cancelled");
+        }
+    }
+
+    private static File partFile(File target) {
+        return new File(target.getPath() + ".part");
+    }
+
+    private static void commit(File part, File target) throws IOException {
+        if (!part.renameTo(target)) {
+            // Not every file system replaces on rename
+            target.delete();
+            if (!part.renameTo(target)) {
+                throw new IOException("Could not create " + target);
+            }
+        }
+    }
+
+    /**
+     * Throttles progress reports.
+     */
+    private class Progress {
+        private final long total;
+        private final long start = System.currentTimeMillis();
+        private long lastReport = start;
+
+        Progress(long total) {
+            this.total = total;
+        }
+
+        void update(long done) {
+            if (listener == null) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if (now - lastReport >= PROGRESS_INTERVAL_MS) {
+                lastReport = now;
+                listener.onProgress(done, total, rate(done, now - start));
+            }
+        }
+
+        void finish(long done) {
+            if (listener != null) {
+                listener.onProgress(done, total, rate(done, System.currentTimeMillis() - start));
+            }
+        }
+
+        private long rate(long bytes, long elapsedMs) {
+            return elapsedMs <= 0 ? bytes : bytes * 1000 / elapsedMs;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.simonbaars.androidforceinstall;
+
+/**
+ * Lower case hex encoding for digests.
+ */
+public final class Hex {
+
+    private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+
+    private Hex() {
+    }
+
+    public static String encode(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = DIGITS[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = DIGITS[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
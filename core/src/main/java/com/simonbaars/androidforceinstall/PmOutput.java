@@ -0,0 +1,104 @@
+package com.simonbaars.androidforceinstall;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Helpers for interpreting the output of {@code pm} commands.
+ */
+public final class PmOutput {
+
+    // "Success: created install session [1234]"
+    private static final Pattern SESSION_ID = Pattern.compile("\\[(\\d+)]");
+    // "UserInfo{10:Work profile:1030} running", the flags are hex
+    private static final Pattern USER_INFO = Pattern.compile("UserInfo\\{(\\d+):(.*):[0-9a-fA-F]+}(\\s+running)?");
+
+    private PmOutput() {
+    }
+
+    /**
+     * Extracts the session id printed by {@code pm install-create}, or -1.
+     */
+    public static int parseSessionId(List<String> out) {
+        for (String line : out) {
+            Matcher matcher = SESSION_ID.matcher(line);
+            if (line.startsWith("Success") && matcher.find()) {
+                return Integer.parseInt(matcher.group(1));
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * {@code pm} sometimes exits with 0 on failure, so also look for the
+     * "Success" line it prints when a session or install went through.
+     */
+    public static boolean isSuccess(ShellResult result) {
+        if (!result.isSuccess()) {
+            return false;
+        }
+        for (String line : result.getOut()) {
+            if (line.startsWith("Failure") || line.startsWith("Error")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether install output says the new APK is signed differently from the
+     * installed package.
+     */
+    public static boolean isSignatureMismatch(String output) {
+        return output.contains("INSTALL_FAILED_UPDATE_INCOMPATIBLE") ||
+                output.contains("signatures do not match");
+    }
+
+    /**
+     * Parses {@code pm path} output - one "package:" line per APK, several for
+     * split installs with base.apk first.
+     */
+    public static List<String> parsePackagePaths(List<String> out) {
+        List<String> paths = new ArrayList<>();
+        for (String line : out) {
+            if (line.startsWith("package:")) {
+                paths.add(line.substring("package:".length()).trim());
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Parses {@code pm list users} output, one "UserInfo{id:name:flags}" line
+     * per user.
+     */
+    public static List<DeviceUser> parseUsers(List<String> out) {
+        List<DeviceUser> users = new ArrayList<>();
+        for (String line : out) {
+            Matcher matcher = USER_INFO.matcher(line);
+            if (matcher.find()) {
+                users.add(new DeviceUser(Integer.parseInt(matcher.group(1)), matcher.group(2),
+                        matcher.group(3) != null));
+            }
+        }
+        return users;
+    }
+
+    /**
+     * Whether {@code pm install-existing} made the package available, which
+     * it reports as "Package x installed for user: 10".
+     */
+    public static boolean isInstalledForUser(ShellResult result) {
+        if (!isSuccess(result)) {
+            return false;
+        }
+        for (String line : result.getOut()) {
+            if (line.contains("installed for user")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,14 @@
+package com.simonbaars.androidforceinstall;
+
+/**
+ * Receives progress while bytes are moved. Called from the worker thread.
+ */
+public interface ProgressListener {
+
+    /**
+     * @param bytesDone      bytes moved so far
+     * @param totalBytes     expected total, or -1 if unknown
+     * @param bytesPerSecond average throughput since the transfer started
+     */
+    void onProgress(long bytesDone, long totalBytes, long bytesPerSecond);
+}
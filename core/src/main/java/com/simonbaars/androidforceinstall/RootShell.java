@@ -0,0 +1,59 @@
+package com.simonbaars.androidforceinstall;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * The root shell the installer talks to. Kept as an interface so the install
+ * logic can run on the JVM against a fake shell that records what it receives.
+ */
+public interface RootShell {
+
+    /** For quick queries such as pm path, pidof or dumpsys. */
+    long QUERY_TIMEOUT_MILLIS = 15_000;
+    /** For everything else that does not install, such as copying APK files. */
+    long DEFAULT_TIMEOUT_MILLIS = 120_000;
+    /** For pm install and session commits, which may run dexopt on a large APK. */
+    long INSTALL_TIMEOUT_MILLIS = 600_000;
+
+    /** Exit code of a command that did not finish within its timeout. */
+    int TIMEOUT_CODE = 124;
+
+    /**
+     * Runs the commands in order in one root shell and returns the exit code
+     * of the last one together with the combined output.
+     */
+    ShellResult exec(String... commands);
+
+    /**
+     * Like {@link #exec(String...)}, but gives up after {@code timeoutMillis}
+     * and returns {@link #TIMEOUT_CODE}.
+     */
+    ShellResult exec(long timeoutMillis, String... commands);
+
+    /**
+     * Runs independent commands in a single round trip and returns one result
+     * per command, in order. A failing command does not stop the ones after it.
+     */
+    List<ShellResult> execBatch(long timeoutMillis, String... commands);
+
+    /**
+     * Runs a single command with {@code input} piped into its standard input.
+     * Exactly {@code size} bytes are expected to be consumed. May start a
+     * process of its own, see {@link #getPipedProcesses()}.
+     */
+    ShellResult execWithInput(String command, InputStream input, long size,
+                              ProgressListener listener) throws IOException;
+
+    /**
+     * How many times a command was sent to a shell and waited for so far.
+     */
+    long getRoundTrips();
+
+    /**
+     * How many processes were started just for {@link #execWithInput} so far,
+     * on top of the shells the round trips go to.
+     */
+    long getPipedProcesses();
+}
@@ -0,0 +1,310 @@
+package com.simonbaars.androidforceinstall;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Installs APKs by streaming them into a {@code pm install-create} /
+ * {@code install-write} / {@code install-commit} session, so the bytes never
+ * have to be staged on disk by this app first. All splits of a bundle go into
+ * the same session and are committed together.
+ *
+ * <p>Every method abandons its session when something fails before the
+ * commit, but never after {@code install-commit} was sent: a failed commit
+ * closes the session itself, and one that timed out may still be running.
+ */
+public class SessionInstaller {
+
+    /**
+     * Opens a fresh stream over one split's bytes.
+     */
+    public interface StreamOpener {
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * One APK to write into a session.
+     */
+    public static class Split {
+        final String name;
+        final long size;
+        final StreamOpener opener;
+
+        public Split(String name, long size, StreamOpener opener) {
+            this.name = name;
+            this.size = size;
+            this.opener = opener;
+        }
+    }
+
+    private final RootShell shell;
+    private final ExecutorService pool;
+
+    public SessionInstaller(RootShell shell) {
+        this(shell, null);
+    }
+
+    /**
+     * @param pool writes all splits but the first side by side while the
+     *             calling thread writes that one; null writes them one after
+     *             another on the calling thread
+     */
+    public SessionInstaller(RootShell shell, ExecutorService pool) {
+        this.shell = shell;
+        this.pool = pool;
+    }
+
+    /**
+     * Streams {@code size} bytes from {@code apk} into a new install session
+     * and commits it. The returned result carries the output of whichever step
+     * failed, or of the commit on success, so it can be classified the same way
+     * as a plain {@code pm install}.
+     */
+    public ShellResult install(InputStream apk, long size, ProgressListener listener) throws IOException {
+        ShellResult create = createSession(size);
+        int sessionId = PmOutput.parseSessionId(create.getOut());
+        if (!create.isSuccess() || sessionId < 0) {
+            return failure(create, "Could not create install session");
+        }
+
+        boolean committed = false;
+        try {
+            ShellResult write = write(sessionId, "base.apk", apk, size, listener);
+            if (!PmOutput.isSuccess(write)) {
+                return failure(write, "Could not write APK to install session");
+            }
+            committed = true;
+            return shell.exec(RootShell.INSTALL_TIMEOUT_MILLIS, "pm install-commit " + sessionId);
+        } finally {
+            if (!committed) {
+                shell.exec("pm install-abandon " + sessionId);
+            }
+        }
+    }
+
+    /**
+     * Writes every split into one session, several at a time when there is a
+     * pool, and commits them as a single install. Split sizes must be known.
+     */
+    public ShellResult installSplits(List<Split> splits, ProgressListener listener) throws IOException {
+        long total = 0;
+        for (Split split : splits) {
+            if (split.size < 0) {
+                throw new IOException("Unknown size for " + split.name);
+            }
+            total += split.size;
+        }
+
+        ShellResult create = createSession(total);
+        int sessionId = PmOutput.parseSessionId(create.getOut());
+        if (!create.isSuccess() || sessionId < 0) {
+            return failure(create, "Could not create install session");
+        }
+
+        boolean committed = false;
+        List<Future<ShellResult>> writes = new ArrayList<>();
+        try {
+            AtomicLong done = new AtomicLong();
+            long start = System.currentTimeMillis();
+            List<ProgressListener> progress = new ArrayList<>();
+            for (int i = 0; i < splits.size(); i++) {
+                progress.add(perWrite(done, total, start, listener));
+            }
+            if (pool != null) {
+                for (int i = 1; i < splits.size(); i++) {
+                    Split split = splits.get(i);
+                    ProgressListener splitProgress = progress.get(i);
+                    writes.add(pool.submit(() -> write(sessionId, split, splitProgress)));
+                }
+            }
+            int local = pool != null ? Math.min(1, splits.size()) : splits.size();
+            for (int i = 0; i < local; i++) {
+                ShellResult write = write(sessionId, splits.get(i), progress.get(i));
+                if (!PmOutput.isSuccess(write)) {
+                    return failure(write, "Could not write APK to install session");
+                }
+            }
+            for (Future<ShellResult> future : writes) {
+                ShellResult write = future.get();
+                if (!PmOutput.isSuccess(write)) {
+                    return failure(write, "Could not write APK to install session");
+                }
+            }
+            committed = true;
+            return shell.exec(RootShell.INSTALL_TIMEOUT_MILLIS, "pm install-commit " + sessionId);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing splits", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            // Stops writes that are still running once one has failed
+            for (Future<ShellResult> future : writes) {
+                future.cancel(true);
+            }
+            if (!committed) {
+                shell.exec("pm install-abandon " + sessionId);
+            }
+        }
+    }
+
+    /**
+     * Installs a bundle read front to back from {@code bundle}, writing each
+     * APK entry into one session as it comes by. Entries whose size is not in
+     * their local header are spooled to {@code spoolDir} first.
+     */
+    public ShellResult installBundle(InputStream bundle, File spoolDir, ProgressListener listener) throws IOException {
+        ShellResult create = createSession(-1);
+        int sessionId = PmOutput.parseSessionId(create.getOut());
+        if (!create.isSuccess() || sessionId < 0) {
+            return failure(create, "Could not create install session");
+        }
+
+        boolean committed = false;
+        int count = 0;
+        // Progress is reported cumulatively over all entries
+        AtomicLong done = new AtomicLong();
+        long start = System.currentTimeMillis();
+        try (ZipInputStream zip = new ZipInputStream(bundle)) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                if (!ApkBundle.isApkEntry(entry)) {
+                    continue;
+                }
+                String name = ApkBundle.sessionNameOf(count++, entry.getName());
+                ProgressListener progress = perWrite(done, -1, start, listener);
+                ShellResult write;
+                if (entry.getSize() >= 0) {
+                    write = write(sessionId, name, zip, entry.getSize(), progress);
+                } else {
+                    write = writeSpooled(sessionId, name, zip, spoolDir, progress);
+                }
+                if (!PmOutput.isSuccess(write)) {
+                    return failure(write, "Could not write " + entry.getName() + " to install session");
+                }
+            }
+            if (count == 0) {
+                // Not the output of create, which reads like success; the finally abandons the session
+                return failure(null, "Bundle does not contain any APK");
+            }
+            committed = true;
+            return shell.exec(RootShell.INSTALL_TIMEOUT_MILLIS, "pm install-commit " + sessionId);
+        } finally {
+            if (!committed) {
+                shell.exec("pm install-abandon " + sessionId);
+            }
+        }
+    }
+
+    /**
+     * Installs APKs that already sit on the device, letting pm read the files
+     * itself. Used to register a set of replaced split files as one package.
+     */
+    public ShellResult installPaths(List<String> paths) {
+        ShellResult create = createSession(-1);
+        int sessionId = PmOutput.parseSessionId(create.getOut());
+        if (!create.isSuccess() || sessionId < 0) {
+            return failure(create, "Could not create install session");
+        }
+
+        String[] writes = new String[paths.size()];
+        for (int i = 0; i < paths.size(); i++) {
+            writes[i] = "pm install-write " + sessionId + " " + ApkBundle.sessionNameOf(i, paths.get(i))
+                    + " \"" + paths.get(i) + "\"";
+        }
+        boolean committed = false;
+        try {
+            // One round trip for all writes, but every result is checked before committing
+            for (ShellResult write : shell.execBatch(RootShell.INSTALL_TIMEOUT_MILLIS, writes)) {
+                if (!PmOutput.isSuccess(write)) {
+                    return failure(write, "Could not write APK to install session");
+                }
+            }
+            committed = true;
+            return shell.exec(RootShell.INSTALL_TIMEOUT_MILLIS, "pm install-commit " + sessionId);
+        } finally {
+            if (!committed) {
+                shell.exec("pm install-abandon " + sessionId);
+            }
+        }
+    }
+
+    /**
+     * Runs {@code pm install-create}; {@code totalSize} is only a hint and may
+     * be -1 when it is not known up front.
+     */
+    private ShellResult createSession(long totalSize) {
+        // -d allows downgrades, -r replaces, --user keeps it in user space
+        return shell.exec(RootShell.QUERY_TIMEOUT_MILLIS, "pm install-create -d -r --user " + DeviceUser.PRIMARY_USER
+                + (totalSize >= 0 ? " -S " + totalSize : ""));
+    }
+
+    private ShellResult write(int sessionId, Split split, ProgressListener listener) throws IOException {
+        try (InputStream in = split.opener.open()) {
+            return write(sessionId, split.name, in, split.size, listener);
+        }
+    }
+
+    private ShellResult write(int sessionId, String name, InputStream in, long size,
+                              ProgressListener listener) throws IOException {
+        return shell.execWithInput(
+                "pm install-write -S " + size + " " + sessionId + " " + name + " -",
+                in, size, listener);
+    }
+
+    private ShellResult writeSpooled(int sessionId, String name, InputStream in, File spoolDir,
+                                     ProgressListener listener) throws IOException {
+        File spool = File.createTempFile("split", ".apk", spoolDir);
+        try {
+            try (OutputStream out = new FileOutputStream(spool)) {
+                StreamCopy.copy(in, out, -1, null);
+            }
+            try (InputStream spooled = new FileInputStream(spool)) {
+                return write(sessionId, name, spooled, spool.length(), listener);
+            }
+        } finally {
+            spool.delete();
+        }
+    }
+
+    /**
+     * Progress listener for one of several concurrent writes, reporting the
+     * combined bytes of all of them.
+     */
+    private static ProgressListener perWrite(AtomicLong done, long total, long start, ProgressListener listener) {
+        if (listener == null) {
+            return null;
+        }
+        long[] reported = new long[1];
+        return (bytesDone, totalBytes, bytesPerSecond) -> {
+            long sum = done.addAndGet(bytesDone - reported[0]);
+            reported[0] = bytesDone;
+            long elapsed = System.currentTimeMillis() - start;
+            listener.onProgress(sum, total, elapsed <= 0 ? sum : sum * 1000 / elapsed);
+        };
+    }
+
+    private static ShellResult failure(ShellResult result, String message) {
+        if (result != null && !result.getOut().isEmpty()) {
+            return new ShellResult(result.isSuccess() ? 1 : result.getCode(), result.getOut());
+        }
+        List<String> out = new ArrayList<>();
+        out.add(message);
+        return new ShellResult(1, out);
+    }
+}
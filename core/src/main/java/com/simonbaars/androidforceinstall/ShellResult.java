@@ -0,0 +1,30 @@
+package com.simonbaars.androidforceinstall;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Exit code and combined output of a root shell invocation.
+ */
+public class ShellResult {
+
+    private final int code;
+    private final List<String> out;
+
+    public ShellResult(int code, List<String> out) {
+        this.code = code;
+        this.out = out != null ? out : Collections.emptyList();
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    public List<String> getOut() {
+        return out;
+    }
+
+    public boolean isSuccess() {
+        return code == 0;
+    }
+}
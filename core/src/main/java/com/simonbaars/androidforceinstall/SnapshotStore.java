@@ -0,0 +1,278 @@
+package com.simonbaars.androidforceinstall;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the previous APK files of a package around before they are replaced,
+ * so a failed or unwanted replacement can be rolled back. Snapshots are hard
+ * links wherever the filesystem allows it: the replacement swaps in a new
+ * file by renaming, so the old inode simply lives on in the snapshot and
+ * taking it costs no I/O. Only when linking fails is the file copied.
+ *
+ * <p>Layout: {@code ROOT/<package>/<timestamp>/<apk files>} plus a
+ * {@code paths} file listing where each APK was installed. A snapshot's mtime
+ * is its last use, and the least recently used ones are evicted once the
+ * store grows past its byte budget, each package's newest last.
+ */
+public class SnapshotStore {
+
+    // On /data, like /data/app, so hard links work
+    static final String ROOT = "/data/local/tmp/afi-snapshots";
+    private static final String PATHS_FILE = "paths";
+
+    public static final long DEFAULT_MAX_BYTES = 2L * 1024 * 1024 * 1024;
+
+    /**
+     * One snapshot directory.
+     */
+    public static class Snapshot {
+        final String packageName;
+        final String dir;
+
+        Snapshot(String packageName, String dir) {
+            this.packageName = packageName;
+            this.dir = dir;
+        }
+
+        public String getPackageName() {
+            return packageName;
+        }
+
+        public String getDir() {
+            return dir;
+        }
+
+        /**
+         * Path of the saved copy of an APK that was installed at {@code installedPath}.
+         */
+        public String fileFor(String installedPath) {
+            return dir + "/" + fileName(installedPath);
+        }
+    }
+
+    private final RootShell shell;
+    private final long maxBytes;
+
+    public SnapshotStore(RootShell shell, long maxBytes) {
+        this.shell = shell;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Saves {@code installedPaths} of {@code packageName} and evicts old
+     * snapshots if the store is over budget. Returns null on failure.
+     */
+    public Snapshot take(String packageName, Collection<String> installedPaths) {
+        Snapshot snapshot = newSnapshot(packageName);
+        return taken(snapshot, shell.exec(takeCommand(snapshot, installedPaths)));
+    }
+
+    /**
+     * A snapshot that is yet to be taken, for callers that send
+     * {@link #takeCommand} along with other commands in one round trip.
+     */
+    public Snapshot newSnapshot(String packageName) {
+        return new Snapshot(packageName, ROOT + "/" + packageName + "/" + System.currentTimeMillis());
+    }
+
+    public String takeCommand(Snapshot snapshot, Collection<String> installedPaths) {
+        List<String> commands = new ArrayList<>();
+        commands.add("mkdir -p \"" + snapshot.dir + "\"");
+        for (String path : installedPaths) {
+            String saved = snapshot.fileFor(path);
+            commands.add("{ ln -f \"" + path + "\" \"" + saved + "\" 2>/dev/null || cp -p \"" + path + "\" \"" + saved + "\"; }");
+            commands.add("echo \"" + path + "\" >> \"" + snapshot.dir + "/" + PATHS_FILE + "\"");
+        }
+        return String.join(" && ", commands);
+    }
+
+    /**
+     * Finishes a snapshot whose {@link #takeCommand} ended with {@code result}.
+     * Returns null, after cleaning up, if it failed.
+     */
+    public Snapshot taken(Snapshot snapshot, ShellResult result) {
+        if (!result.isSuccess()) {
+            shell.exec("rm -rf \"" + snapshot.dir + "\"");
+            return null;
+        }
+        evict(snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Packages that have at least one snapshot.
+     */
+    public List<String> packages() {
+        List<String> packages = new ArrayList<>();
+        for (String line : shell.exec("ls -1 \"" + ROOT + "\" 2>/dev/null").getOut()) {
+            if (!line.trim().isEmpty()) {
+                packages.add(line.trim());
+            }
+        }
+        Collections.sort(packages);
+        return packages;
+    }
+
+    /**
+     * The most recent snapshot of {@code packageName}, or null.
+     */
+    public Snapshot latest(String packageName) {
+        long latest = -1;
+        for (String line : shell.exec("ls -1 \"" + ROOT + "/" + packageName + "\" 2>/dev/null").getOut()) {
+            try {
+                latest = Math.max(latest, Long.parseLong(line.trim()));
+            } catch (NumberFormatException e) {
+                // Not a snapshot directory
+            }
+        }
+        return latest < 0 ? null : new Snapshot(packageName, ROOT + "/" + packageName + "/" + latest);
+    }
+
+    /**
+     * Where the APKs of {@code snapshot} were installed when it was taken.
+     */
+    public List<String> installedPaths(Snapshot snapshot) {
+        return parseInstalledPaths(shell.exec(installedPathsCommand(snapshot)));
+    }
+
+    String installedPathsCommand(Snapshot snapshot) {
+        return "cat \"" + snapshot.dir + "/" + PATHS_FILE + "\"";
+    }
+
+    static List<String> parseInstalledPaths(ShellResult result) {
+        List<String> paths = new ArrayList<>();
+        if (!result.isSuccess()) {
+            return paths;
+        }
+        for (String line : result.getOut()) {
+            if (!line.trim().isEmpty()) {
+                paths.add(line.trim());
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Marks {@code snapshot} as used, moving it to the back of the eviction order.
+     */
+    public void touch(Snapshot snapshot) {
+        shell.exec("touch \"" + snapshot.dir + "\"");
+    }
+
+    public void delete(Snapshot snapshot) {
+        shell.exec("rm -rf \"" + snapshot.dir + "\"",
+                "rmdir \"" + ROOT + "/" + snapshot.packageName + "\" 2>/dev/null");
+    }
+
+    /**
+     * One line of the eviction listing: a snapshot directory with its last use
+     * and size.
+     */
+    private static final class Usage {
+        final String dir;
+        final String packageName;
+        final long takenAt;
+        final long usedAt;
+        final long bytes;
+
+        Usage(String dir, String packageName, long takenAt, long usedAt, long bytes) {
+            this.dir = dir;
+            this.packageName = packageName;
+            this.takenAt = takenAt;
+            this.usedAt = usedAt;
+            this.bytes = bytes;
+        }
+
+        /**
+         * Parses {@code <mtime> <kilobytes> ROOT/<package>/<timestamp>}, or
+         * returns null for anything else.
+         */
+        static Usage parse(String line) {
+            String[] fields = line.trim().split(" ", 3);
+            if (fields.length != 3 || !fields[2].startsWith(ROOT + "/")) {
+                return null;
+            }
+            String[] parts = fields[2].substring(ROOT.length() + 1).split("/");
+            if (parts.length != 2) {
+                return null;
+            }
+            try {
+                return new Usage(fields[2], parts[0], Long.parseLong(parts[1]),
+                        Long.parseLong(fields[0]), Long.parseLong(fields[1]) * 1024);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Removes least recently used snapshots until the store fits its budget.
+     * Older snapshots go first; a package's newest, the one its rollback
+     * restores, only goes when the store is still over budget without the
+     * older ones.
+     */
+    public void evict() {
+        evict(null);
+    }
+
+    /**
+     * Like {@link #evict()}, but never removes {@code keep}, the snapshot
+     * just taken for a replacement that is about to run.
+     */
+    private void evict(Snapshot keep) {
+        ShellResult result = shell.exec(
+                "for d in \"" + ROOT + "\"/*/*; do"
+                        + " [ -d \"$d\" ] && echo \"$(stat -c %Y \"$d\") $(du -sk \"$d\" | cut -f1) $d\";"
+                        + " done");
+        List<Usage> snapshots = new ArrayList<>();
+        Map<String, Usage> newest = new HashMap<>();
+        long totalBytes = 0;
+        for (String line : result.getOut()) {
+            Usage usage = Usage.parse(line);
+            if (usage == null) {
+                // Ignore unexpected output
+                continue;
+            }
+            snapshots.add(usage);
+            totalBytes += usage.bytes;
+            Usage current = newest.get(usage.packageName);
+            if (current == null || usage.takenAt > current.takenAt) {
+                newest.put(usage.packageName, usage);
+            }
+        }
+
+        Collections.sort(snapshots, (a, b) -> Long.compare(a.usedAt, b.usedAt));
+        List<Usage> candidates = new ArrayList<>();
+        List<Usage> latest = new ArrayList<>();
+        for (Usage snapshot : snapshots) {
+            if (keep != null && snapshot.dir.equals(keep.dir)) {
+                continue;
+            }
+            (newest.get(snapshot.packageName) == snapshot ? latest : candidates).add(snapshot);
+        }
+        candidates.addAll(latest);
+
+        List<String> remove = new ArrayList<>();
+        for (Usage snapshot : candidates) {
+            if (totalBytes <= maxBytes) {
+                break;
+            }
+            remove.add("rm -rf \"" + snapshot.dir + "\"");
+            totalBytes -= snapshot.bytes;
+        }
+        if (!remove.isEmpty()) {
+            // One round trip for all of them, empty package directories go too
+            remove.add("rmdir \"" + ROOT + "\"/* 2>/dev/null");
+            shell.exec(remove.toArray(new String[0]));
+        }
+    }
+
+    static String fileName(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+}
@@ -0,0 +1,68 @@
+package com.simonbaars.androidforceinstall;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Buffered stream copy with throttled progress reporting.
+ */
+public final class StreamCopy {
+
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    // Progress is reported at most this often, plus once at the end
+    private static final long PROGRESS_INTERVAL_MS = 200;
+
+    private StreamCopy() {
+    }
+
+    /**
+     * Copies {@code in} to {@code out} until end of stream, or until
+     * {@code limit} bytes have been copied when {@code limit} is not negative.
+     *
+     * @return number of bytes copied
+     */
+    public static long copy(InputStream in, OutputStream out, long limit,
+                            ProgressListener listener) throws IOException {
+        return copy(in, out, limit, listener, BUFFER_SIZE);
+    }
+
+    /**
+     * Like {@link #copy(InputStream, OutputStream, long, ProgressListener)}
+     * with a buffer of {@code bufferSize} bytes, so buffer sizes can be compared.
+     */
+    public static long copy(InputStream in, OutputStream out, long limit,
+                            ProgressListener listener, int bufferSize) throws IOException {
+        byte[] buffer = new byte[bufferSize];
+        long start = System.currentTimeMillis();
+        long lastReport = start;
+        long done = 0;
+        while (limit < 0 || done < limit) {
+            int toRead = limit < 0 ? buffer.length : (int) Math.min(buffer.length, limit - done);
+            int bytesRead = in.read(buffer, 0, toRead);
+            if (bytesRead == -1) {
+                break;
+            }
+            out.write(buffer, 0, bytesRead);
+            done += bytesRead;
+
+            if (listener != null) {
+                long now = System.currentTimeMillis();
+                if (now - lastReport >= PROGRESS_INTERVAL_MS) {
+                    lastReport = now;
+                    listener.onProgress(done, limit, rate(done, now - start));
+                }
+            }
+        }
+        out.flush();
+        if (listener != null) {
+            listener.onProgress(done, limit, rate(done, System.currentTimeMillis() - start));
+        }
+        return done;
+    }
+
+    private static long rate(long bytes, long elapsedMs) {
+        return elapsedMs <= 0 ? bytes : bytes * 1000 / elapsedMs;
+    }
+}
@@ -0,0 +1,260 @@
+package com.simonbaars.androidforceinstall;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Minimal ZIP reader over a memory-mapped file: finds the end of central
+ * directory record, lists the entries and reads individual entries without
+ * touching the rest of the archive. ZIP64 is not supported, which APKs never
+ * need.
+ */
+public final class ZipCentralDirectory {
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int CD_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    private static final int EOCD_MIN_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    public static final int METHOD_STORED = 0;
+    public static final int METHOD_DEFLATED = 8;
+
+    /**
+     * One central directory record.
+     */
+    public static final class Entry {
+        final String name;
+        final int method;
+        final long crc;
+        final long compressedSize;
+        final long size;
+        final long localHeaderOffset;
+
+        Entry(String name, int method, long crc, long compressedSize, long size, long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getMethod() {
+            return method;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+
+    private final FileChannel channel;
+    private final long centralDirectoryOffset;
+    private final long centralDirectorySize;
+    private final List<Entry> entries;
+
+    private ZipCentralDirectory(FileChannel channel, long centralDirectoryOffset, long centralDirectorySize,
+                                List<Entry> entries) {
+        this.channel = channel;
+        this.centralDirectoryOffset = centralDirectoryOffset;
+        this.centralDirectorySize = centralDirectorySize;
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Reads the central directory of the ZIP behind {@code channel}. The
+     * channel stays owned by the caller.
+     */
+    public static ZipCentralDirectory read(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        if (fileSize < EOCD_MIN_SIZE) {
+            throw new IOException("Not a ZIP archive: too small");
+        }
+
+        // The EOCD record sits at the very end, followed only by the comment
+        int tailSize = (int) Math.min(fileSize, EOCD_MIN_SIZE + MAX_COMMENT_SIZE);
+        ByteBuffer tail = map(channel, fileSize - tailSize, tailSize);
+        int eocd = -1;
+        for (int i = tailSize - EOCD_MIN_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIGNATURE && i + EOCD_MIN_SIZE + (tail.getShort(i + 20) & 0xffff) == tailSize) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new IOException("Not a ZIP archive: no end of central directory record");
+        }
+
+        int entryCount = tail.getShort(eocd + 10) & 0xffff;
+        long cdSize = tail.getInt(eocd + 12) & 0xffffffffL;
+        long cdOffset = tail.getInt(eocd + 16) & 0xffffffffL;
+        if (cdOffset + cdSize > fileSize - tailSize + eocd) {
+            throw new IOException("Truncated ZIP archive: central directory out of bounds");
+        }
+
+        ByteBuffer cd = map(channel, cdOffset, cdSize);
+        List<Entry> entries = new ArrayList<>(entryCount);
+        int position = 0;
+        for (int i = 0; i < entryCount; i++) {
+            if (position + 46 > cdSize || cd.getInt(position) != CD_SIGNATURE) {
+                throw new IOException("Corrupt central directory at entry " + i);
+            }
+            int method = cd.getShort(position + 10) & 0xffff;
+            long crc = cd.getInt(position + 16) & 0xffffffffL;
+            long compressedSize = cd.getInt(position + 20) & 0xffffffffL;
+            long size = cd.getInt(position + 24) & 0xffffffffL;
+            int nameLength = cd.getShort(position + 28) & 0xffff;
+            int extraLength = cd.getShort(position + 30) & 0xffff;
+            int commentLength = cd.getShort(position + 32) & 0xffff;
+            long localHeaderOffset = cd.getInt(position + 42) & 0xffffffffL;
+            if (position + 46 + nameLength > cdSize) {
+                throw new IOException("Corrupt central directory at entry " + i);
+            }
+
+            byte[] name = new byte[nameLength];
+            cd.position(position + 46);
+            cd.get(name);
+            entries.add(new Entry(new String(name, StandardCharsets.UTF_8), method, crc,
+                    compressedSize, size, localHeaderOffset));
+            position += 46 + nameLength + extraLength + commentLength;
+        }
+
+        return new ZipCentralDirectory(channel, cdOffset, cdSize, entries);
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public Entry find(String name) {
+        for (Entry entry : entries) {
+            if (entry.name.equals(name)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    public long getCentralDirectoryOffset() {
+        return centralDirectoryOffset;
+    }
+
+    public long getCentralDirectorySize() {
+        return centralDirectorySize;
+    }
+
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Offset of the entry's data, just past its local file header.
+     */
+    public long dataOffset(Entry entry) throws IOException {
+        if (entry.localHeaderOffset + 30 > centralDirectoryOffset) {
+            throw new IOException("Local header of " + entry.name + " out of bounds");
+        }
+        return dataOffset(entry, map(channel, entry.localHeaderOffset, 30), entry.localHeaderOffset);
+    }
+
+    /**
+     * {@link #dataOffset(Entry)} reading the local header from {@code buffer},
+     * which holds the archive from {@code bufferOffset} on.
+     */
+    long dataOffset(Entry entry, ByteBuffer buffer, long bufferOffset) throws IOException {
+        if (entry.localHeaderOffset + 30 > centralDirectoryOffset) {
+            throw new IOException("Local header of " + entry.name + " out of bounds");
+        }
+        int header = (int) (entry.localHeaderOffset - bufferOffset);
+        if (buffer.getInt(header) != LOCAL_SIGNATURE) {
+            throw new IOException("Bad local header for " + entry.name);
+        }
+        int nameLength = buffer.getShort(header + 26) & 0xffff;
+        int extraLength = buffer.getShort(header + 28) & 0xffff;
+        long offset = entry.localHeaderOffset + 30 + nameLength + extraLength;
+        if (offset + entry.compressedSize > centralDirectoryOffset) {
+            throw new IOException("Data of " + entry.name + " out of bounds");
+        }
+        return offset;
+    }
+
+    /**
+     * Maps the raw, possibly compressed, bytes of an entry.
+     */
+    public ByteBuffer mapRaw(Entry entry) throws IOException {
+        return map(channel, dataOffset(entry), entry.compressedSize);
+    }
+
+    /**
+     * Reads and, if needed, inflates an entry fully into memory. Only meant
+     * for small entries such as the manifest or signature files.
+     */
+    public byte[] readFully(Entry entry) throws IOException {
+        if (entry.size > Integer.MAX_VALUE - 8) {
+            throw new IOException(entry.name + " is too large to read into memory");
+        }
+        ByteBuffer raw = mapRaw(entry);
+        byte[] data = new byte[(int) entry.size];
+        if (entry.method == METHOD_STORED) {
+            raw.get(data);
+            return data;
+        }
+        if (entry.method != METHOD_DEFLATED) {
+            throw new IOException("Unsupported compression method " + entry.method + " for " + entry.name);
+        }
+
+        byte[] compressed = new byte[(int) entry.compressedSize];
+        raw.get(compressed);
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed);
+            int done = 0;
+            while (done < data.length) {
+                int inflated = inflater.inflate(data, done, data.length - done);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                done += inflated;
+            }
+            if (done != data.length) {
+                throw new IOException("Truncated entry " + entry.name);
+            }
+            return data;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt entry " + entry.name, e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    static ByteBuffer map(FileChannel channel, long offset, long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Region too large to map: " + size);
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+}
@@ -0,0 +1,289 @@
+package com.simonbaars.androidforceinstall;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Reads APKs built by {@link TestApk}, plus {@code fixtures/v1-signed.apk}:
+ * a TestApk signed by jarsigner with the self-signed certificate in
+ * {@code fixtures/v1-signer.der}.
+ */
+public class ApkReaderTest {
+
+    private static final byte[] CERT_A = "certificate A".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CERT_B = "certificate B".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CERT_C = "certificate C".getBytes(StandardCharsets.US_ASCII);
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private ApkInfo read(TestApk apk) throws IOException {
+        return ApkReader.read(apk.write(temp.newFile()));
+    }
+
+    @Test
+    public void readsPackageVersionAndMinSdk() throws IOException {
+        ApkInfo info = read(TestApk.of("com.example.app", 1234).minSdk(21));
+
+        assertEquals("com.example.app", info.getPackageName());
+        assertEquals(1234, info.getVersionCode());
+        assertEquals(21, info.getMinSdk());
+        assertNull(info.getSplitName());
+    }
+
+    @Test
+    public void readsUtf16StringPool() throws IOException {
+        ApkInfo info = read(TestApk.of("com.example.\u00fctf16", 7).minSdk(26).utf16());
+
+        assertEquals("com.example.\u00fctf16", info.getPackageName());
+        assertEquals(7, info.getVersionCode());
+        assertEquals(26, info.getMinSdk());
+    }
+
+    @Test
+    public void combinesVersionCodeMajor() throws IOException {
+        TestApk apk = TestApk.of("com.example.app", -2);
+        apk.manifest().intAttribute("versionCodeMajor", TestApk.ATTR_VERSION_CODE_MAJOR, 3);
+
+        // The low 32 bits are unsigned
+        assertEquals((3L << 32) | 0xfffffffeL, read(apk).getVersionCode());
+    }
+
+    @Test
+    public void readsSplitName() throws IOException {
+        TestApk apk = TestApk.of("com.example.app", 1);
+        apk.manifest().stringAttribute("split", 0, "config.arm64_v8a");
+
+        assertEquals("config.arm64_v8a", read(apk).getSplitName());
+    }
+
+    @Test
+    public void readsAttributesByNameWithoutResourceIds() throws IOException {
+        TestApk apk = new TestApk();
+        apk.manifest().stringAttribute("package", 0, "com.example.plain")
+                .intAttribute("versionCode", 0, 99)
+                .child(new TestApk.Element("uses-sdk").intAttribute("minSdkVersion", 0, 23));
+
+        ApkInfo info = read(apk);
+        assertEquals("com.example.plain", info.getPackageName());
+        assertEquals(99, info.getVersionCode());
+        assertEquals(23, info.getMinSdk());
+    }
+
+    @Test
+    public void readsVersionCodeWrittenAsString() throws IOException {
+        TestApk apk = new TestApk();
+        apk.manifest().stringAttribute("package", 0, "com.example.app")
+                .stringAttribute("versionCode", TestApk.ATTR_VERSION_CODE, "512");
+
+        assertEquals(512, read(apk).getVersionCode());
+    }
+
+    @Test
+    public void keepsNumericStringMinSdk() throws IOException {
+        TestApk apk = TestApk.of("com.example.app", 1);
+        apk.manifest().child(new TestApk.Element("uses-sdk")
+                .stringAttribute("minSdkVersion", TestApk.ATTR_MIN_SDK_VERSION, "21"));
+
+        assertEquals(21, read(apk).getMinSdk());
+    }
+
+    @Test
+    public void mapsCodenameMinSdkToPreview() throws IOException {
+        TestApk apk = TestApk.of("com.example.app", 1);
+        apk.manifest().child(new TestApk.Element("uses-sdk")
+                .stringAttribute("minSdkVersion", TestApk.ATTR_MIN_SDK_VERSION, "VanillaIceCream"));
+
+        assertEquals(ApkReader.PREVIEW_SDK, read(apk).getMinSdk());
+    }
+
+    @Test
+    public void defaultsMinSdkToOne() throws IOException {
+        assertEquals(1, read(TestApk.of("com.example.app", 1)).getMinSdk());
+    }
+
+    @Test
+    public void ignoresUsesSdkDeeperInTheTree() throws IOException {
+        TestApk apk = TestApk.of("com.example.app", 1).minSdk(24);
+        apk.manifest().child(new TestApk.Element("application")
+                .child(new TestApk.Element("uses-sdk").intAttribute("minSdkVersion", TestApk.ATTR_MIN_SDK_VERSION, 99)));
+
+        assertEquals(24, read(apk).getMinSdk());
+    }
+
+    @Test
+    public void readsStoredManifest() throws IOException {
+        assertEquals("com.example.stored", read(TestApk.of("com.example.stored", 1).storedManifest()).getPackageName());
+    }
+
+    @Test
+    public void rejectsTextManifest() throws IOException {
+        try {
+            read(TestApk.of("com.example.app", 1).withoutManifest()
+                    .entry("AndroidManifest.xml", "<manifest package=\"x\"/>".getBytes(StandardCharsets.UTF_8)));
+            fail("Expected the text manifest to be refused");
+        } catch (IOException e) {
+            assertEquals("Manifest is not binary XML", e.getMessage());
+        }
+    }
+
+    @Test
+    public void rejectsArchiveWithoutManifest() throws IOException {
+        try {
+            read(TestApk.of("com.example.app", 1).withoutManifest());
+            fail("Expected an archive without manifest to be refused");
+        } catch (IOException e) {
+            assertEquals("Not an APK: no AndroidManifest.xml", e.getMessage());
+        }
+    }
+
+    @Test
+    public void rejectsCorruptManifestAsIOException() throws IOException {
+        byte[] xml = TestApk.of("com.example.app", 1).manifestXml();
+        // First string offset, right after the XML and string pool headers, far past the end
+        ByteBuffer.wrap(xml).order(ByteOrder.LITTLE_ENDIAN).putInt(8 + 28, 0x10000000);
+        File apk = TestApk.of("com.example.app", 1).withoutManifest()
+                .entry("AndroidManifest.xml", xml)
+                .write(temp.newFile("corrupt.apk"));
+        try {
+            ApkReader.read(apk);
+            fail("Expected the corrupt manifest to be refused");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Corrupt corrupt.apk: "));
+        }
+    }
+
+    @Test
+    public void hasNoDigestsWithoutAnySignature() throws IOException {
+        assertEquals(Collections.emptyList(), read(TestApk.of("com.example.app", 1)).getSignerDigests());
+    }
+
+    @Test
+    public void readsV2Signers() throws IOException {
+        ApkInfo info = read(TestApk.of("com.example.app", 1).signed(TestApk.V2, CERT_A, CERT_B));
+
+        assertEquals(Arrays.asList(ApkReader.sha256(CERT_A), ApkReader.sha256(CERT_B)), info.getSignerDigests());
+    }
+
+    @Test
+    public void prefersV3OverV2() throws IOException {
+        ApkInfo info = read(TestApk.of("com.example.app", 1)
+                .signed(TestApk.V2, CERT_A)
+                .signed(TestApk.V3, CERT_B));
+
+        assertEquals(Collections.singletonList(ApkReader.sha256(CERT_B)), info.getSignerDigests());
+    }
+
+    @Test
+    public void prefersV31OverV3WhicheverComesFirst() throws IOException {
+        ApkInfo info = read(TestApk.of("com.example.app", 1)
+                .signed(TestApk.V31, CERT_C)
+                .signed(TestApk.V3, CERT_B)
+                .signed(TestApk.V2, CERT_A));
+
+        assertEquals(Collections.singletonList(ApkReader.sha256(CERT_C)), info.getSignerDigests());
+    }
+
+    @Test
+    public void hasNoLineageWithoutRotation() throws IOException {
+        ApkInfo info = read(TestApk.of("com.example.app", 1).signed(TestApk.V3, CERT_A));
+
+        assertEquals(Collections.emptyList(), info.getSigningLineage());
+        assertFalse(info.rotatedFrom(Collections.singletonList(ApkReader.sha256(CERT_A))));
+    }
+
+    @Test
+    public void readsV3RotationLineage() throws IOException {
+        ApkInfo info = read(TestApk.of("com.example.app", 1)
+                .signed(TestApk.V2, CERT_A)
+                .signedWithLineage(TestApk.V3, TestApk.lineage(CERT_A, CERT_B), CERT_B));
+
+        assertEquals(Collections.singletonList(ApkReader.sha256(CERT_B)), info.getSignerDigests());
+        assertEquals(Arrays.asList(ApkReader.sha256(CERT_A), ApkReader.sha256(CERT_B)), info.getSigningLineage());
+        assertTrue(info.rotatedFrom(Collections.singletonList(ApkReader.sha256(CERT_A))));
+        assertFalse(info.rotatedFrom(Collections.singletonList(ApkReader.sha256(CERT_C))));
+    }
+
+    @Test
+    public void readsV31RotationLineage() throws IOException {
+        // v3.1 carries the rotated key, v3 keeps the original for older platforms
+        ApkInfo info = read(TestApk.of("com.example.app", 1)
+                .signed(TestApk.V3, CERT_A)
+                .signedWithLineage(TestApk.V31, TestApk.lineage(CERT_A, CERT_B, CERT_C), CERT_C));
+
+        assertEquals(Collections.singletonList(ApkReader.sha256(CERT_C)), info.getSignerDigests());
+        assertEquals(3, info.getSigningLineage().size());
+        assertTrue(info.rotatedFrom(Collections.singletonList(ApkReader.sha256(CERT_B))));
+    }
+
+    @Test
+    public void skipsUnknownSigningBlockPairs() throws IOException {
+        // apksigner pads the block to 4 KB with a pair of this id
+        ApkInfo info = read(TestApk.of("com.example.app", 1)
+                .signingBlockPair(0x42726577, new byte[100])
+                .signed(TestApk.V2, CERT_A));
+
+        assertEquals(Collections.singletonList(ApkReader.sha256(CERT_A)), info.getSignerDigests());
+    }
+
+    @Test
+    public void rejectsTruncatedSignerList() throws IOException {
+        // Signers claim 100 bytes that are not there
+        try {
+            read(TestApk.of("com.example.app", 1).signingBlockPair(TestApk.V2, TestApk.int32(100)));
+            fail("Expected the corrupt signer list to be refused");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Corrupt signature"));
+        }
+    }
+
+    @Test
+    public void readsJarSignerCertificate() throws IOException {
+        File apk = resource("v1-signed.apk");
+
+        ApkInfo info = ApkReader.read(apk);
+
+        assertEquals("com.example.v1", info.getPackageName());
+        assertEquals(3, info.getVersionCode());
+        assertEquals(Collections.singletonList(ApkReader.sha256(resourceBytes("v1-signer.der"))),
+                info.getSignerDigests());
+    }
+
+    private File resource(String name) throws IOException {
+        File file = temp.newFile(name);
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(resourceBytes(name));
+        }
+        return file;
+    }
+
+    private static byte[] resourceBytes(String name) throws IOException {
+        try (InputStream in = ApkReaderTest.class.getResourceAsStream("/fixtures/" + name)) {
+            if (in == null) {
+                throw new IOException("Missing fixture " + name);
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            StreamCopy.copy(in, bytes, -1, null);
+            return bytes.toByteArray();
+        }
+    }
+}
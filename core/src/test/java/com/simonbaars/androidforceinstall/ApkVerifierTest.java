@@ -0,0 +1,210 @@
+package com.simonbaars.androidforceinstall;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ApkVerifierTest {
+
+    // Spans three slices, the last one short
+    private static final byte[] LIBRARY = new byte[(int) ApkVerifier.SLICE_SIZE * 2 + 12345];
+    private static final byte[] ASSET = new byte[100_000];
+
+    static {
+        Random random = new Random(11);
+        random.nextBytes(LIBRARY);
+        // Compressible, so the deflated entry is much shorter than its data
+        for (int i = 0; i < ASSET.length; i++) {
+            ASSET[i] = (byte) (i % 251 < 200 ? 'a' + i % 7 : random.nextInt());
+        }
+    }
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private final ExecutorService pool = Executors.newFixedThreadPool(2);
+
+    @After
+    public void shutDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void acceptsValidApk() throws IOException {
+        File apk = apk(TestApk.of("com.example", 1));
+
+        verifier().verify(apk, ApkVerifier.MANIFEST, ApkVerifier.CLASSES_DEX);
+        // Also on the calling thread alone
+        new ApkVerifier(null, 4).verify(apk, ApkVerifier.MANIFEST, ApkVerifier.CLASSES_DEX);
+    }
+
+    @Test(timeout = 30_000)
+    public void verifiesOnCallingThreadWhilePoolIsBusy() throws Exception {
+        File apk = apk(TestApk.of("com.example", 1));
+        ExecutorService busy = Executors.newSingleThreadExecutor();
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            // Stands in for a staging copy ahead of the verification in the queue
+            busy.submit(() -> {
+                release.await();
+                return null;
+            });
+
+            new ApkVerifier(busy, 4).verify(apk, ApkVerifier.MANIFEST, ApkVerifier.CLASSES_DEX);
+        } finally {
+            release.countDown();
+            busy.shutdownNow();
+        }
+    }
+
+    @Test
+    public void rejectsMissingManifest() throws IOException {
+        File apk = apk(TestApk.of("com.example", 1).withoutManifest());
+
+        assertRejected(apk, "Missing AndroidManifest.xml");
+    }
+
+    @Test
+    public void rejectsMissingClassesDex() throws IOException {
+        File apk = apk(TestApk.of("com.example", 1).withoutClassesDex());
+
+        assertRejected(apk, "Missing classes.dex");
+    }
+
+    @Test
+    public void rejectsCrcMismatchInDeflatedEntry() throws IOException {
+        File apk = apk(TestApk.of("com.example", 1));
+        patchCentralDirectory(apk, "assets/data.bin", 16, (int) crc(ASSET) ^ 1);
+
+        assertRejected(apk, "CRC mismatch in assets/data.bin");
+    }
+
+    @Test
+    public void rejectsCrcMismatchInSlicedStoredEntry() throws IOException {
+        File apk = apk(TestApk.of("com.example", 1));
+        // Flip a byte in the middle slice of the data itself
+        byte[] bytes = Files.readAllBytes(apk.toPath());
+        int data = indexOf(bytes, Arrays.copyOf(LIBRARY, 64));
+        try (RandomAccessFile file = new RandomAccessFile(apk, "rw")) {
+            long position = data + ApkVerifier.SLICE_SIZE + 1000;
+            file.seek(position);
+            file.write(bytes[(int) position] ^ 0xff);
+        }
+
+        assertRejected(apk, "CRC mismatch in lib/arm64-v8a/libnative.so");
+    }
+
+    @Test
+    public void rejectsTruncatedEntry() throws IOException {
+        File apk = apk(TestApk.of("com.example", 1));
+        // A compressed size that ends the deflate stream halfway through
+        patchCentralDirectory(apk, "assets/data.bin", 20, compressedSize(apk, "assets/data.bin") / 2);
+
+        assertRejected(apk, "Truncated entry assets/data.bin");
+    }
+
+    @Test
+    public void combinesCrcsOfConsecutiveBlocks() {
+        byte[] data = "The quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.US_ASCII);
+        for (int split : new int[]{0, 1, 17, data.length - 1, data.length}) {
+            byte[] first = Arrays.copyOfRange(data, 0, split);
+            byte[] second = Arrays.copyOfRange(data, split, data.length);
+
+            assertEquals("split at " + split, crc(data),
+                    ApkVerifier.combine(crc(first), crc(second), second.length));
+        }
+        assertEquals(crc(LIBRARY), ApkVerifier.combine(
+                crc(Arrays.copyOf(LIBRARY, (int) ApkVerifier.SLICE_SIZE)),
+                crc(Arrays.copyOfRange(LIBRARY, (int) ApkVerifier.SLICE_SIZE, LIBRARY.length)),
+                LIBRARY.length - ApkVerifier.SLICE_SIZE));
+    }
+
+    private ApkVerifier verifier() {
+        return new ApkVerifier(pool, 3);
+    }
+
+    private void assertRejected(File apk, String message) {
+        try {
+            verifier().verify(apk, ApkVerifier.MANIFEST, ApkVerifier.CLASSES_DEX);
+            fail("Expected " + message);
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith(message));
+        }
+    }
+
+    private File apk(TestApk apk) throws IOException {
+        return apk.entry("assets/data.bin", ASSET)
+                .storedEntry("lib/arm64-v8a/libnative.so", LIBRARY)
+                .write(temp.newFile("app.apk"));
+    }
+
+    private static int compressedSize(File apk, String name) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(apk, "r")) {
+            return (int) ZipCentralDirectory.read(file.getChannel()).find(name).getCompressedSize();
+        }
+    }
+
+    /**
+     * Overwrites the little-endian int at {@code field} in the central
+     * directory record of {@code name}.
+     */
+    private static void patchCentralDirectory(File apk, String name, int field, int value) throws IOException {
+        byte[] bytes = Files.readAllBytes(apk.toPath());
+        byte[] header = TestApk.int32(0x02014b50);
+        byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+        for (int at = indexOf(bytes, header, 0); at >= 0; at = indexOf(bytes, header, at + 1)) {
+            if (Arrays.equals(encoded, Arrays.copyOfRange(bytes, at + 46, at + 46 + encoded.length))) {
+                try (RandomAccessFile file = new RandomAccessFile(apk, "rw")) {
+                    file.seek(at + field);
+                    file.write(TestApk.int32(value));
+                }
+                return;
+            }
+        }
+        throw new IOException("No central directory record for " + name);
+    }
+
+    private static int indexOf(byte[] bytes, byte[] pattern) throws IOException {
+        int at = indexOf(bytes, pattern, 0);
+        if (at < 0) {
+            throw new IOException("Pattern not found");
+        }
+        return at;
+    }
+
+    private static int indexOf(byte[] bytes, byte[] pattern, int from) {
+        for (int i = from; i <= bytes.length - pattern.length; i++) {
+            int j = 0;
+            while (j < pattern.length && bytes[i + j] == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static long crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+}
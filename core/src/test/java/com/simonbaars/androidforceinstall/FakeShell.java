@@ -0,0 +1,106 @@
+package com.simonbaars.androidforceinstall;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Root shell that records every command and the bytes piped into it, and
+ * answers from canned results chosen by command prefix. Commands without a
+ * canned result succeed with no output.
+ */
+class FakeShell implements RootShell {
+
+    private final Map<String, ShellResult> results = new LinkedHashMap<>();
+    private final List<String> commands = Collections.synchronizedList(new ArrayList<>());
+    private final Map<String, byte[]> inputs = Collections.synchronizedMap(new LinkedHashMap<>());
+    private final AtomicLong piped = new AtomicLong();
+
+    /**
+     * Answers commands starting with {@code prefix}; the longest matching
+     * prefix wins.
+     */
+    FakeShell answer(String prefix, int code, String... out) {
+        results.put(prefix, new ShellResult(code, Arrays.asList(out)));
+        return this;
+    }
+
+    /**
+     * Every command received so far, in order.
+     */
+    List<String> commands() {
+        synchronized (commands) {
+            return new ArrayList<>(commands);
+        }
+    }
+
+    /**
+     * The bytes piped into {@code command}.
+     */
+    byte[] input(String command) {
+        return inputs.get(command);
+    }
+
+    @Override
+    public ShellResult exec(String... commands) {
+        return exec(DEFAULT_TIMEOUT_MILLIS, commands);
+    }
+
+    @Override
+    public ShellResult exec(long timeoutMillis, String... commands) {
+        ShellResult last = new ShellResult(0, null);
+        List<String> out = new ArrayList<>();
+        for (String command : commands) {
+            last = answer(command);
+            out.addAll(last.getOut());
+        }
+        return new ShellResult(last.getCode(), out);
+    }
+
+    @Override
+    public List<ShellResult> execBatch(long timeoutMillis, String... commands) {
+        List<ShellResult> results = new ArrayList<>();
+        for (String command : commands) {
+            results.add(answer(command));
+        }
+        return results;
+    }
+
+    @Override
+    public ShellResult execWithInput(String command, InputStream input, long size,
+                                     ProgressListener listener) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        StreamCopy.copy(input, bytes, size, listener);
+        inputs.put(command, bytes.toByteArray());
+        piped.incrementAndGet();
+        return answer(command);
+    }
+
+    @Override
+    public long getRoundTrips() {
+        return commands.size() - piped.get();
+    }
+
+    @Override
+    public long getPipedProcesses() {
+        return piped.get();
+    }
+
+    private ShellResult answer(String command) {
+        commands.add(command);
+        String match = null;
+        for (String prefix : results.keySet()) {
+            if (command.startsWith(prefix) && (match == null || prefix.length() > match.length())) {
+                match = prefix;
+            }
+        }
+        return match != null ? results.get(match) : new ShellResult(0, null);
+    }
+}
@@ -0,0 +1,131 @@
+package com.simonbaars.androidforceinstall;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FileStagerTest {
+
+    // Larger than the direct buffer, and not a multiple of it
+    private static final byte[] DATA = new byte[FileStager.DIRECT_BUFFER_SIZE * 2 + 12345];
+
+    static {
+        new Random(7).nextBytes(DATA);
+    }
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void hashesTransferredFile() throws IOException {
+        File target = new File(temp.getRoot(), "staged.apk");
+        MessageDigest digest = sha256();
+
+        try (FileInputStream in = new FileInputStream(source())) {
+            assertEquals(DATA.length, new FileStager(null, digest).stage(in.getChannel(), target));
+        }
+
+        assertArrayEquals(DATA, Files.readAllBytes(target.toPath()));
+        assertArrayEquals(sha256().digest(DATA), digest.digest());
+        assertFalse(new File(target.getPath() + ".part").exists());
+    }
+
+    @Test
+    public void hashesStreamWhileCopying() throws IOException {
+        File target = new File(temp.getRoot(), "staged.apk");
+        MessageDigest digest = sha256();
+
+        assertEquals(DATA.length, new FileStager(null, digest).stage(new ByteArrayInputStream(DATA), -1, target));
+
+        assertArrayEquals(DATA, Files.readAllBytes(target.toPath()));
+        assertArrayEquals(sha256().digest(DATA), digest.digest());
+    }
+
+    @Test
+    public void copiesChannelFromItsPosition() throws IOException {
+        File target = new File(temp.getRoot(), "staged.apk");
+        MessageDigest digest = sha256();
+
+        try (FileInputStream in = new FileInputStream(source());
+             FileChannel channel = in.getChannel()) {
+            channel.position(100);
+            assertEquals(DATA.length - 100, new FileStager(null, digest).stage(channel, target));
+        }
+
+        byte[] expected = new byte[DATA.length - 100];
+        System.arraycopy(DATA, 100, expected, 0, expected.length);
+        assertArrayEquals(expected, Files.readAllBytes(target.toPath()));
+        assertArrayEquals(sha256().digest(expected), digest.digest());
+    }
+
+    @Test
+    public void cancelledCopyLeavesNothingBehind() throws IOException {
+        File target = new File(temp.getRoot(), "staged.apk");
+        FileStager stager = new FileStager(null, sha256());
+        stager.cancel();
+
+        try (FileInputStream in = new FileInputStream(source())) {
+            stager.stage(in.getChannel(), target);
+            fail("Expected the cancelled copy to fail");
+        } catch (InterruptedIOException e) {
+            assertFalse(target.exists());
+            assertFalse(new File(target.getPath() + ".part").exists());
+        }
+    }
+
+    @Test
+    public void failedCommitLeavesNoPartFile() throws IOException {
+        // Neither rename can replace a directory that is not empty
+        File target = new File(temp.getRoot(), "staged.apk");
+        assertTrue(new File(target, "inside").mkdirs());
+        File source = source();
+
+        for (boolean channel : new boolean[]{true, false}) {
+            try (FileInputStream in = new FileInputStream(source)) {
+                if (channel) {
+                    new FileStager(null, sha256()).stage(in.getChannel(), target);
+                } else {
+                    new FileStager(null, sha256()).stage(in, DATA.length, target);
+                }
+                fail("Expected the copy onto a directory to fail");
+            } catch (IOException e) {
+                assertTrue(target.isDirectory());
+                assertFalse(new File(target.getPath() + ".part").exists());
+            }
+        }
+    }
+
+    private File source() throws IOException {
+        File file = temp.newFile("source.apk");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(DATA);
+        }
+        return file;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
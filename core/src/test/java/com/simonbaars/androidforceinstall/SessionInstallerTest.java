@@ -0,0 +1,312 @@
+package com.simonbaars.androidforceinstall;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SessionInstallerTest {
+
+    private static final String CREATE = "pm install-create -d -r --user 0";
+    private static final byte[] APK = "not really an apk, but pm never looks".getBytes(StandardCharsets.UTF_8);
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private static FakeShell shell() {
+        return new FakeShell()
+                .answer("pm install-create", 0, "Success: created install session [42]")
+                .answer("pm install-write", 0, "Success: streamed " + APK.length + " bytes")
+                .answer("pm install-commit", 0, "Success");
+    }
+
+    @Test
+    public void streamsOneApkThroughCreateWriteCommit() throws IOException {
+        FakeShell shell = shell();
+
+        ShellResult result = new SessionInstaller(shell).install(new ByteArrayInputStream(APK), APK.length, null);
+
+        assertTrue(result.isSuccess());
+        assertEquals(Arrays.asList(
+                CREATE + " -S " + APK.length,
+                "pm install-write -S " + APK.length + " 42 base.apk -",
+                "pm install-commit 42"), shell.commands());
+        assertArrayEquals(APK, shell.input("pm install-write -S " + APK.length + " 42 base.apk -"));
+    }
+
+    @Test
+    public void reportsCreateFailureWithoutWriting() throws IOException {
+        FakeShell shell = shell().answer("pm install-create", 1, "Error: no space left");
+
+        ShellResult result = new SessionInstaller(shell).install(new ByteArrayInputStream(APK), APK.length, null);
+
+        assertFalse(result.isSuccess());
+        assertEquals(Collections.singletonList("Error: no space left"), result.getOut());
+        assertEquals(Collections.singletonList(CREATE + " -S " + APK.length), shell.commands());
+    }
+
+    @Test
+    public void reportsCreateWithoutSessionId() throws IOException {
+        FakeShell shell = shell().answer("pm install-create", 0);
+
+        ShellResult result = new SessionInstaller(shell).install(new ByteArrayInputStream(APK), APK.length, null);
+
+        assertFalse(result.isSuccess());
+        assertEquals(Collections.singletonList("Could not create install session"), result.getOut());
+    }
+
+    @Test
+    public void abandonsSessionWhenWriteFails() throws IOException {
+        // pm exits with 0 here, only the output tells
+        FakeShell shell = shell().answer("pm install-write", 0, "Failure [INSTALL_FAILED_INVALID_APK]");
+
+        ShellResult result = new SessionInstaller(shell).install(new ByteArrayInputStream(APK), APK.length, null);
+
+        assertFalse(result.isSuccess());
+        assertEquals(Collections.singletonList("Failure [INSTALL_FAILED_INVALID_APK]"), result.getOut());
+        assertEquals(Arrays.asList(
+                CREATE + " -S " + APK.length,
+                "pm install-write -S " + APK.length + " 42 base.apk -",
+                "pm install-abandon 42"), shell.commands());
+    }
+
+    @Test
+    public void returnsCommitFailureForClassification() throws IOException {
+        FakeShell shell = shell().answer("pm install-commit", 1,
+                "Failure [INSTALL_FAILED_UPDATE_INCOMPATIBLE: signatures do not match]");
+
+        ShellResult result = new SessionInstaller(shell).install(new ByteArrayInputStream(APK), APK.length, null);
+
+        assertFalse(result.isSuccess());
+        assertTrue(PmOutput.isSignatureMismatch(String.join("\n", result.getOut())));
+        // A failed commit closes the session itself
+        assertFalse(shell.commands().contains("pm install-abandon 42"));
+    }
+
+    @Test
+    public void writesAllSplitsIntoOneSession() throws IOException {
+        FakeShell shell = shell();
+        List<SessionInstaller.Split> splits = new ArrayList<>();
+        for (String name : new String[]{"0_base.apk", "1_config.arm64_v8a.apk", "2_config.en.apk"}) {
+            splits.add(new SessionInstaller.Split(name, APK.length, () -> new ByteArrayInputStream(APK)));
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        ShellResult result;
+        try {
+            result = new SessionInstaller(shell, pool).installSplits(splits, null);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        assertTrue(result.isSuccess());
+        List<String> commands = shell.commands();
+        assertEquals(5, commands.size());
+        assertEquals(CREATE + " -S " + 3 * APK.length, commands.get(0));
+        // The writes run in parallel, in any order
+        assertEquals(new HashSet<>(Arrays.asList(
+                "pm install-write -S " + APK.length + " 42 0_base.apk -",
+                "pm install-write -S " + APK.length + " 42 1_config.arm64_v8a.apk -",
+                "pm install-write -S " + APK.length + " 42 2_config.en.apk -")),
+                new HashSet<>(commands.subList(1, 4)));
+        assertEquals("pm install-commit 42", commands.get(4));
+    }
+
+    @Test
+    public void abandonsSplitsWhenOneWriteFails() throws IOException {
+        FakeShell shell = shell().answer("pm install-write -S " + APK.length + " 42 1_", 1, "Error: broken pipe");
+        List<SessionInstaller.Split> splits = Arrays.asList(
+                new SessionInstaller.Split("0_base.apk", APK.length, () -> new ByteArrayInputStream(APK)),
+                new SessionInstaller.Split("1_config.en.apk", APK.length, () -> new ByteArrayInputStream(APK)));
+
+        ShellResult result = new SessionInstaller(shell).installSplits(splits, null);
+
+        assertFalse(result.isSuccess());
+        assertEquals(Collections.singletonList("Error: broken pipe"), result.getOut());
+        assertFalse(shell.commands().contains("pm install-commit 42"));
+        assertEquals("pm install-abandon 42", shell.commands().get(shell.commands().size() - 1));
+    }
+
+    @Test
+    public void writesSplitsInOrderWithoutPool() throws IOException {
+        FakeShell shell = shell();
+        List<SessionInstaller.Split> splits = Arrays.asList(
+                new SessionInstaller.Split("0_base.apk", APK.length, () -> new ByteArrayInputStream(APK)),
+                new SessionInstaller.Split("1_config.en.apk", APK.length, () -> new ByteArrayInputStream(APK)));
+
+        ShellResult result = new SessionInstaller(shell).installSplits(splits, null);
+
+        assertTrue(result.isSuccess());
+        assertEquals(Arrays.asList(
+                CREATE + " -S " + 2 * APK.length,
+                "pm install-write -S " + APK.length + " 42 0_base.apk -",
+                "pm install-write -S " + APK.length + " 42 1_config.en.apk -",
+                "pm install-commit 42"), shell.commands());
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesSplitsOfUnknownSize() throws IOException {
+        FakeShell shell = shell();
+        try {
+            new SessionInstaller(shell).installSplits(Collections.singletonList(
+                    new SessionInstaller.Split("0_base.apk", -1, () -> new ByteArrayInputStream(APK))), null);
+        } finally {
+            assertTrue(shell.commands().isEmpty());
+        }
+    }
+
+    @Test
+    public void streamsBundleEntriesWithKnownSize() throws IOException {
+        FakeShell shell = shell();
+        byte[] bundle = bundle(ZipEntry.STORED, "base.apk", "split_config.en.apk", "info.json");
+
+        ShellResult result = new SessionInstaller(shell).installBundle(new ByteArrayInputStream(bundle),
+                temp.getRoot(), null);
+
+        assertTrue(result.isSuccess());
+        assertEquals(Arrays.asList(
+                CREATE,
+                "pm install-write -S " + APK.length + " 42 0_base.apk -",
+                "pm install-write -S " + APK.length + " 42 1_split_config.en.apk -",
+                "pm install-commit 42"), shell.commands());
+        assertArrayEquals(APK, shell.input("pm install-write -S " + APK.length + " 42 1_split_config.en.apk -"));
+    }
+
+    @Test
+    public void spoolsBundleEntriesWithoutSize() throws IOException {
+        FakeShell shell = shell();
+        // Deflated entries written by a stream carry their size after the data
+        byte[] bundle = bundle(ZipEntry.DEFLATED, "base.apk");
+
+        ShellResult result = new SessionInstaller(shell).installBundle(new ByteArrayInputStream(bundle),
+                temp.getRoot(), null);
+
+        assertTrue(result.isSuccess());
+        assertEquals(Arrays.asList(
+                CREATE,
+                "pm install-write -S " + APK.length + " 42 0_base.apk -",
+                "pm install-commit 42"), shell.commands());
+        assertArrayEquals(APK, shell.input("pm install-write -S " + APK.length + " 42 0_base.apk -"));
+        assertEquals(0, temp.getRoot().list().length);
+    }
+
+    @Test
+    public void abandonsBundleWhenWriteFails() throws IOException {
+        FakeShell shell = shell().answer("pm install-write", 1, "Error: session is sealed");
+        byte[] bundle = bundle(ZipEntry.STORED, "base.apk", "split_config.en.apk");
+
+        ShellResult result = new SessionInstaller(shell).installBundle(new ByteArrayInputStream(bundle),
+                temp.getRoot(), null);
+
+        assertFalse(result.isSuccess());
+        assertEquals(Arrays.asList(
+                CREATE,
+                "pm install-write -S " + APK.length + " 42 0_base.apk -",
+                "pm install-abandon 42"), shell.commands());
+    }
+
+    @Test
+    public void abandonsBundleWithoutApks() throws IOException {
+        FakeShell shell = shell();
+        byte[] bundle = bundle(ZipEntry.STORED, "manifest.json", "icon.png");
+
+        ShellResult result = new SessionInstaller(shell).installBundle(new ByteArrayInputStream(bundle),
+                temp.getRoot(), null);
+
+        assertFalse(result.isSuccess());
+        assertEquals(Collections.singletonList("Bundle does not contain any APK"), result.getOut());
+        assertEquals(Arrays.asList(CREATE, "pm install-abandon 42"), shell.commands());
+    }
+
+    @Test
+    public void registersDevicePathsInOneSession() {
+        FakeShell shell = shell();
+
+        ShellResult result = new SessionInstaller(shell).installPaths(Arrays.asList(
+                "/data/app/~~x/com.example-1/base.apk", "/data/app/~~x/com.example-1/split_config.en.apk"));
+
+        assertTrue(result.isSuccess());
+        assertEquals(Arrays.asList(
+                CREATE,
+                "pm install-write 42 0_base.apk \"/data/app/~~x/com.example-1/base.apk\"",
+                "pm install-write 42 1_split_config.en.apk \"/data/app/~~x/com.example-1/split_config.en.apk\"",
+                "pm install-commit 42"), shell.commands());
+    }
+
+    @Test
+    public void leavesDevicePathsSessionAloneWhenCommitFails() {
+        FakeShell shell = shell().answer("pm install-commit", 1, "Failure [INSTALL_FAILED_INVALID_APK]");
+
+        ShellResult result = new SessionInstaller(shell).installPaths(
+                Collections.singletonList("/data/app/com.example-1/base.apk"));
+
+        assertFalse(result.isSuccess());
+        assertEquals(Collections.singletonList("Failure [INSTALL_FAILED_INVALID_APK]"), result.getOut());
+        assertFalse(shell.commands().contains("pm install-abandon 42"));
+    }
+
+    @Test
+    public void leavesSplitsSessionAloneWhenCommitTimesOut() throws IOException {
+        // pm may still be committing, abandoning now would race it
+        FakeShell shell = shell().answer("pm install-commit", RootShell.TIMEOUT_CODE, "Timed out");
+        List<SessionInstaller.Split> splits = Collections.singletonList(
+                new SessionInstaller.Split("0_base.apk", APK.length, () -> new ByteArrayInputStream(APK)));
+
+        ShellResult result = new SessionInstaller(shell).installSplits(splits, null);
+
+        assertEquals(RootShell.TIMEOUT_CODE, result.getCode());
+        assertEquals("pm install-commit 42", shell.commands().get(shell.commands().size() - 1));
+    }
+
+    @Test
+    public void abandonsDevicePathsWhenOneWriteFails() {
+        FakeShell shell = shell().answer("pm install-write 42 0_", 1, "Error: file not found");
+
+        ShellResult result = new SessionInstaller(shell).installPaths(Arrays.asList(
+                "/data/app/com.example-1/base.apk", "/data/app/com.example-1/split_config.en.apk"));
+
+        assertFalse(result.isSuccess());
+        assertEquals(Collections.singletonList("Error: file not found"), result.getOut());
+        assertFalse(shell.commands().contains("pm install-commit 42"));
+        assertEquals("pm install-abandon 42", shell.commands().get(shell.commands().size() - 1));
+    }
+
+    private static byte[] bundle(int method, String... names) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            for (String name : names) {
+                ZipEntry entry = new ZipEntry(name);
+                entry.setMethod(method);
+                if (method == ZipEntry.STORED) {
+                    CRC32 crc = new CRC32();
+                    crc.update(APK);
+                    entry.setSize(APK.length);
+                    entry.setCrc(crc.getValue());
+                }
+                zip.putNextEntry(entry);
+                zip.write(APK);
+                zip.closeEntry();
+            }
+        }
+        return bytes.toByteArray();
+    }
+}
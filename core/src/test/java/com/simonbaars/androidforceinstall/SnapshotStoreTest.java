@@ -0,0 +1,116 @@
+package com.simonbaars.androidforceinstall;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SnapshotStoreTest {
+
+    private static final String ROOT = SnapshotStore.ROOT;
+    private static final long MB = 1024 * 1024;
+
+    // Bytes of every snapshot directory listed so far
+    private static final Map<String, Long> SIZES = new HashMap<>();
+
+    /**
+     * {@code <mtime> <kilobytes> <dir>}, as the listing in evict() prints it.
+     */
+    private static String line(long usedAt, long bytes, String dir) {
+        SIZES.put(dir, bytes);
+        return usedAt + " " + bytes / 1024 + " " + dir;
+    }
+
+    private static FakeShell shell(String... listing) {
+        return new FakeShell().answer("for d in", 0, listing);
+    }
+
+    private static List<String> removed(FakeShell shell) {
+        List<String> removed = new ArrayList<>();
+        for (String command : shell.commands()) {
+            if (command.startsWith("rm -rf \"")) {
+                removed.add(command.substring("rm -rf \"".length(), command.length() - 1));
+            }
+        }
+        return removed;
+    }
+
+    private static long remaining(FakeShell shell, String... listing) {
+        long total = 0;
+        for (String line : listing) {
+            total += SIZES.get(line.split(" ", 3)[2]);
+        }
+        for (String dir : removed(shell)) {
+            total -= SIZES.get(dir);
+        }
+        return total;
+    }
+
+    @Test
+    public void evictsOlderSnapshotsBeforeNewestOfAPackage() {
+        String[] listing = {
+                line(100, 40 * MB, ROOT + "/com.a/1000"),
+                line(300, 40 * MB, ROOT + "/com.a/2000"),
+                line(200, 40 * MB, ROOT + "/com.b/1500"),
+        };
+        FakeShell shell = shell(listing);
+
+        new SnapshotStore(shell, 100 * MB).evict();
+
+        assertEquals(Collections.singletonList(ROOT + "/com.a/1000"), removed(shell));
+    }
+
+    @Test
+    public void staysWithinBudgetWhenOnlyNewestSnapshotsAreLeft() {
+        String[] listing = {
+                line(100, 50 * MB, ROOT + "/com.a/1000"),
+                line(200, 50 * MB, ROOT + "/com.b/1000"),
+                line(300, 50 * MB, ROOT + "/com.c/1000"),
+                line(150, 50 * MB, ROOT + "/com.c/500"),
+                line(400, 50 * MB, ROOT + "/com.d/1000"),
+        };
+        FakeShell shell = shell(listing);
+
+        new SnapshotStore(shell, 120 * MB).evict();
+
+        assertTrue(remaining(shell, listing) <= 120 * MB);
+        // The older snapshot of com.c goes first, then the least recently used newest ones
+        assertEquals(Arrays.asList(ROOT + "/com.c/500", ROOT + "/com.a/1000", ROOT + "/com.b/1000"),
+                removed(shell));
+    }
+
+    @Test
+    public void keepsSnapshotJustTaken() {
+        String[] listing = {
+                line(100, 80 * MB, ROOT + "/com.a/1000"),
+                line(50, 80 * MB, ROOT + "/com.b/2000"),
+        };
+        FakeShell shell = shell(listing);
+        SnapshotStore store = new SnapshotStore(shell, 100 * MB);
+        SnapshotStore.Snapshot snapshot = new SnapshotStore.Snapshot("com.b", ROOT + "/com.b/2000");
+
+        assertEquals(snapshot, store.taken(snapshot, new ShellResult(0, null)));
+
+        assertEquals(Collections.singletonList(ROOT + "/com.a/1000"), removed(shell));
+    }
+
+    @Test
+    public void leavesStoreWithinBudgetAlone() {
+        FakeShell shell = shell(
+                line(100, 10 * MB, ROOT + "/com.a/1000"),
+                line(200, 10 * MB, ROOT + "/com.a/2000"));
+
+        new SnapshotStore(shell, 100 * MB).evict();
+
+        assertTrue(removed(shell).isEmpty());
+        assertFalse(shell.commands().stream().anyMatch(command -> command.startsWith("rmdir")));
+    }
+}
@@ -0,0 +1,459 @@
+package com.simonbaars.androidforceinstall;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Builds small APK fixtures for the reader and verifier tests: a binary
+ * AndroidManifest.xml with exactly the attributes a test asks for, a
+ * classes.dex, and optionally an APK Signing Block with v2, v3 and v3.1
+ * signers laid out as apksigner writes them. Certificates are opaque bytes,
+ * the reader only hashes them.
+ */
+final class TestApk {
+
+    static final int V2 = 0x7109871a;
+    static final int V3 = 0xf05368c0;
+    static final int V31 = 0x1b93ad61;
+    // v3 additional attribute holding the proof-of-rotation lineage
+    static final int PROOF_OF_ROTATION_ATTR = 0x3ba06f8c;
+
+    static final int ATTR_VERSION_CODE = 0x0101021b;
+    static final int ATTR_VERSION_CODE_MAJOR = 0x01010576;
+    static final int ATTR_MIN_SDK_VERSION = 0x0101020c;
+
+    private static final int TYPE_STRING = 0x03;
+    private static final int TYPE_INT_DEC = 0x10;
+
+    /**
+     * One attribute of an element; {@code resourceId} 0 leaves it out of the
+     * resource map, as aapt does for {@code package} and {@code split}.
+     */
+    private static final class Attribute {
+        final String name;
+        final int resourceId;
+        final String string;
+        final int value;
+
+        Attribute(String name, int resourceId, String string, int value) {
+            this.name = name;
+            this.resourceId = resourceId;
+            this.string = string;
+            this.value = value;
+        }
+    }
+
+    /**
+     * One element, written as a start element with its attributes followed
+     * by its children and the end element.
+     */
+    static final class Element {
+        final String name;
+        final List<Attribute> attributes = new ArrayList<>();
+        final List<Element> children = new ArrayList<>();
+
+        Element(String name) {
+            this.name = name;
+        }
+
+        Element intAttribute(String name, int resourceId, int value) {
+            attributes.add(new Attribute(name, resourceId, null, value));
+            return this;
+        }
+
+        Element stringAttribute(String name, int resourceId, String value) {
+            attributes.add(new Attribute(name, resourceId, value, 0));
+            return this;
+        }
+
+        Element child(Element child) {
+            children.add(child);
+            return this;
+        }
+    }
+
+    private final Element manifest = new Element("manifest");
+    private final List<byte[]> pairs = new ArrayList<>();
+    private final Map<String, byte[]> extraEntries = new LinkedHashMap<>();
+    private final Set<String> storedEntries = new HashSet<>();
+    private boolean utf16;
+    private boolean withManifest = true;
+    private boolean withClassesDex = true;
+    private int manifestMethod = ZipEntry.DEFLATED;
+    private String comment;
+
+    /**
+     * An APK for {@code packageName} with versionCode and nothing else.
+     */
+    static TestApk of(String packageName, int versionCode) {
+        TestApk apk = new TestApk();
+        apk.manifest.stringAttribute("package", 0, packageName)
+                .intAttribute("versionCode", ATTR_VERSION_CODE, versionCode);
+        return apk;
+    }
+
+    Element manifest() {
+        return manifest;
+    }
+
+    /**
+     * Adds {@code <uses-sdk android:minSdkVersion>} as an integer.
+     */
+    TestApk minSdk(int minSdk) {
+        manifest.child(new Element("uses-sdk").intAttribute("minSdkVersion", ATTR_MIN_SDK_VERSION, minSdk));
+        return this;
+    }
+
+    /**
+     * Writes the string pool as UTF-16, as older aapt versions did.
+     */
+    TestApk utf16() {
+        utf16 = true;
+        return this;
+    }
+
+    TestApk withoutManifest() {
+        withManifest = false;
+        return this;
+    }
+
+    TestApk withoutClassesDex() {
+        withClassesDex = false;
+        return this;
+    }
+
+    TestApk storedManifest() {
+        manifestMethod = ZipEntry.STORED;
+        return this;
+    }
+
+    TestApk comment(String comment) {
+        this.comment = comment;
+        return this;
+    }
+
+    TestApk entry(String name, byte[] data) {
+        extraEntries.put(name, data);
+        return this;
+    }
+
+    /**
+     * Like {@link #entry}, but stored uncompressed, as native libraries are.
+     */
+    TestApk storedEntry(String name, byte[] data) {
+        storedEntries.add(name);
+        return entry(name, data);
+    }
+
+    /**
+     * Adds a signature scheme block with one signer per certificate.
+     */
+    TestApk signed(int schemeId, byte[]... certificates) {
+        return signedWithLineage(schemeId, null, certificates);
+    }
+
+    /**
+     * Like {@link #signed}; for v3 and v3.1 the first signer also carries
+     * {@code lineage}, see {@link #lineage}, as its proof of rotation.
+     */
+    TestApk signedWithLineage(int schemeId, byte[] lineage, byte[]... certificates) {
+        List<byte[]> signers = new ArrayList<>();
+        for (int i = 0; i < certificates.length; i++) {
+            signers.add(lengthPrefixed(signer(schemeId, certificates[i], i == 0 ? lineage : null)));
+        }
+        pairs.add(pair(schemeId, lengthPrefixed(concat(signers.toArray(new byte[0][])))));
+        return this;
+    }
+
+    /**
+     * Adds a raw ID-value pair to the signing block, such as padding or a
+     * scheme the reader does not know.
+     */
+    TestApk signingBlockPair(int id, byte[] value) {
+        pairs.add(pair(id, value));
+        return this;
+    }
+
+    File write(File file) throws IOException {
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file))) {
+            if (withManifest) {
+                putEntry(zip, "AndroidManifest.xml", manifestXml(), manifestMethod);
+            }
+            if (withClassesDex) {
+                putEntry(zip, "classes.dex", "dex\n035\0".getBytes(StandardCharsets.ISO_8859_1), ZipEntry.DEFLATED);
+            }
+            for (Map.Entry<String, byte[]> entry : extraEntries.entrySet()) {
+                putEntry(zip, entry.getKey(), entry.getValue(),
+                        storedEntries.contains(entry.getKey()) ? ZipEntry.STORED : ZipEntry.DEFLATED);
+            }
+            if (comment != null) {
+                zip.setComment(comment);
+            }
+        }
+        if (!pairs.isEmpty()) {
+            insertSigningBlock(file, signingBlock());
+        }
+        return file;
+    }
+
+    private static void putEntry(ZipOutputStream zip, String name, byte[] data, int method) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(method);
+        if (method == ZipEntry.STORED) {
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            entry.setSize(data.length);
+            entry.setCompressedSize(data.length);
+            entry.setCrc(crc.getValue());
+        }
+        zip.putNextEntry(entry);
+        zip.write(data);
+        zip.closeEntry();
+    }
+
+    /**
+     * v2: signedData{digests, certificates, additionalAttributes}, signatures,
+     * publicKey. v3 adds minSdk and maxSdk both after the certificates and
+     * after signedData.
+     */
+    private static byte[] signer(int schemeId, byte[] certificate, byte[] lineage) {
+        boolean v3 = schemeId != V2;
+        // Another attribute in front, so the reader has to look for the right id
+        byte[] attributes = concat(lengthPrefixed(concat(int32(0x559f8b02), int32(1))),
+                lineage != null ? lengthPrefixed(concat(int32(PROOF_OF_ROTATION_ATTR), lineage)) : new byte[0]);
+        byte[] signedData = concat(lengthPrefixed(new byte[0]),
+                lengthPrefixed(lengthPrefixed(certificate)),
+                v3 ? concat(int32(24), int32(Integer.MAX_VALUE)) : new byte[0],
+                lengthPrefixed(attributes));
+        return concat(lengthPrefixed(signedData),
+                v3 ? concat(int32(24), int32(Integer.MAX_VALUE)) : new byte[0],
+                lengthPrefixed(new byte[0]),
+                lengthPrefixed(new byte[0]));
+    }
+
+    /**
+     * A proof-of-rotation lineage: a version, then one node per certificate,
+     * oldest first, each {@code signedData{certificate, algorithm}, flags,
+     * algorithm, signature by the previous signer}.
+     */
+    static byte[] lineage(byte[]... certificates) {
+        List<byte[]> nodes = new ArrayList<>();
+        for (byte[] certificate : certificates) {
+            byte[] signedData = concat(lengthPrefixed(certificate), int32(0x0103));
+            nodes.add(lengthPrefixed(concat(lengthPrefixed(signedData), int32(0), int32(0x0103),
+                    lengthPrefixed(new byte[0]))));
+        }
+        return concat(int32(1), concat(nodes.toArray(new byte[0][])));
+    }
+
+    private static byte[] pair(int id, byte[] value) {
+        ByteBuffer pair = ByteBuffer.allocate(8 + 4 + value.length).order(ByteOrder.LITTLE_ENDIAN);
+        return pair.putLong(value.length + 4).putInt(id).put(value).array();
+    }
+
+    private byte[] signingBlock() {
+        byte[] all = concat(pairs.toArray(new byte[0][]));
+        long blockSize = all.length + 8 + 16;
+        ByteBuffer block = ByteBuffer.allocate((int) blockSize + 8).order(ByteOrder.LITTLE_ENDIAN);
+        block.putLong(blockSize).put(all).putLong(blockSize)
+                .put("APK Sig Block 42".getBytes(StandardCharsets.US_ASCII));
+        return block.array();
+    }
+
+    /**
+     * Moves the central directory back to make room for {@code block} in
+     * front of it, as apksigner does.
+     */
+    static void insertSigningBlock(File file, byte[] block) throws IOException {
+        try (RandomAccessFile apk = new RandomAccessFile(file, "rw")) {
+            long eocd = findEocd(apk);
+            apk.seek(eocd + 16);
+            long centralDirectoryOffset = Integer.toUnsignedLong(Integer.reverseBytes(apk.readInt()));
+            byte[] tail = new byte[(int) (apk.length() - centralDirectoryOffset)];
+            apk.seek(centralDirectoryOffset);
+            apk.readFully(tail);
+            ByteBuffer.wrap(tail).order(ByteOrder.LITTLE_ENDIAN)
+                    .putInt((int) (eocd - centralDirectoryOffset) + 16, (int) (centralDirectoryOffset + block.length));
+            apk.seek(centralDirectoryOffset);
+            apk.write(block);
+            apk.write(tail);
+        }
+    }
+
+    private static long findEocd(RandomAccessFile apk) throws IOException {
+        for (long position = apk.length() - 22; position >= 0; position--) {
+            apk.seek(position);
+            if (Integer.reverseBytes(apk.readInt()) == 0x06054b50) {
+                apk.seek(position + 20);
+                int commentLength = Short.toUnsignedInt(Short.reverseBytes(apk.readShort()));
+                if (position + 22 + commentLength == apk.length()) {
+                    return position;
+                }
+            }
+        }
+        throw new IOException("No end of central directory");
+    }
+
+    byte[] manifestXml() {
+        List<String> strings = new ArrayList<>();
+        List<Integer> resourceIds = new ArrayList<>();
+        // Names with resource ids come first, so their index matches the resource map
+        collectResourceNames(manifest, strings, resourceIds);
+        index(strings, "android");
+        int namespace = index(strings, "http://schemas.android.com/apk/res/android");
+
+        ByteArrayOutputStream elements = new ByteArrayOutputStream();
+        writeElement(elements, manifest, strings, namespace);
+
+        int[] ids = new int[resourceIds.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = resourceIds.get(i);
+        }
+        byte[] body = concat(stringPool(strings), resourceMap(ids), elements.toByteArray());
+        return chunk(0x0003, 8, new byte[0], body);
+    }
+
+    private static void collectResourceNames(Element element, List<String> strings, List<Integer> resourceIds) {
+        for (Attribute attribute : element.attributes) {
+            if (attribute.resourceId != 0 && !strings.contains(attribute.name)) {
+                strings.add(attribute.name);
+                resourceIds.add(attribute.resourceId);
+            }
+        }
+        for (Element child : element.children) {
+            collectResourceNames(child, strings, resourceIds);
+        }
+    }
+
+    private void writeElement(ByteArrayOutputStream out, Element element, List<String> strings, int namespace) {
+        int name = index(strings, element.name);
+        List<byte[]> attributes = new ArrayList<>();
+        for (Attribute attribute : element.attributes) {
+            int attributeName = attribute.resourceId != 0 ? strings.indexOf(attribute.name)
+                    : index(strings, attribute.name);
+            int attributeNamespace = attribute.resourceId != 0 ? namespace : -1;
+            if (attribute.string != null) {
+                int value = index(strings, attribute.string);
+                attributes.add(attribute(attributeNamespace, attributeName, value, TYPE_STRING, value));
+            } else {
+                attributes.add(attribute(attributeNamespace, attributeName, -1, TYPE_INT_DEC, attribute.value));
+            }
+        }
+        write(out, startElement(name, attributes.toArray(new byte[0][])));
+        for (Element child : element.children) {
+            writeElement(out, child, strings, namespace);
+        }
+        write(out, endElement(name));
+    }
+
+    private static int index(List<String> strings, String string) {
+        int index = strings.indexOf(string);
+        if (index < 0) {
+            strings.add(string);
+            index = strings.size() - 1;
+        }
+        return index;
+    }
+
+    private byte[] stringPool(List<String> strings) {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        ByteBuffer offsets = ByteBuffer.allocate(4 * strings.size()).order(ByteOrder.LITTLE_ENDIAN);
+        for (String string : strings) {
+            offsets.putInt(data.size());
+            if (utf16) {
+                byte[] chars = string.getBytes(StandardCharsets.UTF_16LE);
+                write(data, new byte[]{(byte) string.length(), (byte) (string.length() >> 8)});
+                write(data, chars);
+                write(data, new byte[]{0, 0});
+            } else {
+                byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+                data.write(string.length());
+                data.write(utf8.length);
+                write(data, utf8);
+                data.write(0);
+            }
+        }
+        while (data.size() % 4 != 0) {
+            data.write(0);
+        }
+        int headerSize = 28;
+        ByteBuffer header = ByteBuffer.allocate(20).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(strings.size()).putInt(0).putInt(utf16 ? 0 : 1 << 8)
+                .putInt(headerSize + offsets.capacity()).putInt(0);
+        return chunk(0x0001, headerSize, header.array(), concat(offsets.array(), data.toByteArray()));
+    }
+
+    private static byte[] resourceMap(int... ids) {
+        ByteBuffer body = ByteBuffer.allocate(4 * ids.length).order(ByteOrder.LITTLE_ENDIAN);
+        for (int id : ids) {
+            body.putInt(id);
+        }
+        return chunk(0x0180, 8, new byte[0], body.array());
+    }
+
+    private static byte[] attribute(int namespace, int name, int rawValue, int type, int data) {
+        ByteBuffer attribute = ByteBuffer.allocate(20).order(ByteOrder.LITTLE_ENDIAN);
+        attribute.putInt(namespace).putInt(name).putInt(rawValue)
+                .putShort((short) 8).put((byte) 0).put((byte) type).putInt(data);
+        return attribute.array();
+    }
+
+    private static byte[] startElement(int name, byte[]... attributes) {
+        ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(1).putInt(-1);
+        ByteBuffer element = ByteBuffer.allocate(20).order(ByteOrder.LITTLE_ENDIAN);
+        element.putInt(-1).putInt(name).putShort((short) 20).putShort((short) 20)
+                .putShort((short) attributes.length).putShort((short) 0).putShort((short) 0).putShort((short) 0);
+        return chunk(0x0102, 16, header.array(), concat(element.array(), concat(attributes)));
+    }
+
+    private static byte[] endElement(int name) {
+        ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(1).putInt(-1);
+        ByteBuffer element = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        element.putInt(-1).putInt(name);
+        return chunk(0x0103, 16, header.array(), element.array());
+    }
+
+    private static byte[] chunk(int type, int headerSize, byte[] headerRest, byte[] body) {
+        ByteBuffer chunk = ByteBuffer.allocate(8 + headerRest.length + body.length).order(ByteOrder.LITTLE_ENDIAN);
+        chunk.putShort((short) type).putShort((short) headerSize).putInt(chunk.capacity())
+                .put(headerRest).put(body);
+        return chunk.array();
+    }
+
+    static byte[] int32(int value) {
+        return ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array();
+    }
+
+    static byte[] lengthPrefixed(byte[] data) {
+        return concat(int32(data.length), data);
+    }
+
+    static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            write(out, part);
+        }
+        return out.toByteArray();
+    }
+
+    private static void write(ByteArrayOutputStream out, byte[] data) {
+        out.write(data, 0, data.length);
+    }
+}
@@ -0,0 +1,224 @@
+package com.simonbaars.androidforceinstall;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ZipCentralDirectoryTest {
+
+    private static final byte[] DATA = "The quick brown fox jumps over the lazy dog, twice. The quick brown fox."
+            .getBytes(StandardCharsets.US_ASCII);
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void listsEntriesWithSizesAndReadsThem() throws IOException {
+        File zip = zip(null, entry("stored.bin", ZipEntry.STORED, null), entry("deflated.bin", ZipEntry.DEFLATED, null));
+
+        try (RandomAccessFile file = new RandomAccessFile(zip, "r")) {
+            ZipCentralDirectory cd = ZipCentralDirectory.read(file.getChannel());
+            assertEquals(2, cd.getEntries().size());
+
+            ZipCentralDirectory.Entry stored = cd.find("stored.bin");
+            assertEquals(ZipCentralDirectory.METHOD_STORED, stored.getMethod());
+            assertEquals(DATA.length, stored.getSize());
+            assertEquals(DATA.length, stored.getCompressedSize());
+            assertArrayEquals(DATA, cd.readFully(stored));
+
+            // Written with a data descriptor, the central directory still has the sizes
+            ZipCentralDirectory.Entry deflated = cd.find("deflated.bin");
+            assertEquals(ZipCentralDirectory.METHOD_DEFLATED, deflated.getMethod());
+            assertEquals(DATA.length, deflated.getSize());
+            assertTrue(deflated.getCompressedSize() < DATA.length);
+            assertEquals(crc(DATA), deflated.getCrc());
+            assertArrayEquals(DATA, cd.readFully(deflated));
+
+            assertNull(cd.find("missing.bin"));
+        }
+    }
+
+    @Test
+    public void decodesUtf8Names() throws IOException {
+        String name = "res/raw/caf\u00e9.txt";
+        File zip = zip(null, entry(name, ZipEntry.DEFLATED, null));
+
+        try (RandomAccessFile file = new RandomAccessFile(zip, "r")) {
+            assertNotNull(ZipCentralDirectory.read(file.getChannel()).find(name));
+        }
+    }
+
+    @Test
+    public void findsEndRecordBehindComment() throws IOException {
+        File zip = zip("built by a test", entry("a.bin", ZipEntry.DEFLATED, null));
+
+        try (RandomAccessFile file = new RandomAccessFile(zip, "r")) {
+            assertEquals(1, ZipCentralDirectory.read(file.getChannel()).getEntries().size());
+        }
+    }
+
+    @Test
+    public void ignoresEndRecordSignatureInsideComment() throws IOException {
+        // A fake end record in the comment, whose comment length does not reach the end of the file
+        File zip = zip("PK\u0005\u0006 0123456789012345678", entry("a.bin", ZipEntry.DEFLATED, null));
+
+        try (RandomAccessFile file = new RandomAccessFile(zip, "r")) {
+            ZipCentralDirectory cd = ZipCentralDirectory.read(file.getChannel());
+            assertArrayEquals(DATA, cd.readFully(cd.find("a.bin")));
+        }
+    }
+
+    @Test
+    public void usesLocalExtraFieldForDataOffset() throws IOException {
+        // zipalign pads stored entries through the local extra field
+        byte[] padding = ByteBuffer.allocate(11).order(ByteOrder.LITTLE_ENDIAN)
+                .putShort((short) 0xd935).putShort((short) 7).putShort((short) 4).array();
+        File zip = zip(null, entry("lib/arm64-v8a/libx.so", ZipEntry.STORED, padding));
+
+        try (RandomAccessFile file = new RandomAccessFile(zip, "r")) {
+            ZipCentralDirectory cd = ZipCentralDirectory.read(file.getChannel());
+            ZipCentralDirectory.Entry entry = cd.find("lib/arm64-v8a/libx.so");
+            assertEquals(30 + entry.getName().length() + padding.length, cd.dataOffset(entry));
+            assertArrayEquals(DATA, cd.readFully(entry));
+        }
+    }
+
+    @Test
+    public void findsCentralDirectoryBehindSigningBlock() throws IOException {
+        File zip = zip(null, entry("a.bin", ZipEntry.DEFLATED, null));
+        long before = zip.length();
+        TestApk.insertSigningBlock(zip, new byte[4096]);
+
+        try (RandomAccessFile file = new RandomAccessFile(zip, "r")) {
+            ZipCentralDirectory cd = ZipCentralDirectory.read(file.getChannel());
+            assertEquals(before + 4096, zip.length());
+            assertArrayEquals(DATA, cd.readFully(cd.find("a.bin")));
+        }
+    }
+
+    @Test
+    public void rejectsTinyFile() throws IOException {
+        assertRejected(write(new byte[10]), "Not a ZIP archive: too small");
+    }
+
+    @Test
+    public void rejectsFileWithoutEndRecord() throws IOException {
+        assertRejected(write(DATA), "Not a ZIP archive: no end of central directory record");
+    }
+
+    @Test
+    public void rejectsTruncatedArchive() throws IOException {
+        File zip = zip(null, entry("a.bin", ZipEntry.DEFLATED, null), entry("b.bin", ZipEntry.DEFLATED, null));
+        try (RandomAccessFile file = new RandomAccessFile(zip, "rw")) {
+            // Cut into the central directory, keeping a valid looking end record
+            byte[] end = new byte[22];
+            file.seek(file.length() - 22);
+            file.readFully(end);
+            file.setLength(file.length() - 40);
+            file.seek(file.length() - 22);
+            file.write(end);
+        }
+
+        assertRejected(zip, "Truncated ZIP archive: central directory out of bounds");
+    }
+
+    @Test
+    public void rejectsCorruptCentralDirectoryRecord() throws IOException {
+        File zip = zip(null, entry("a.bin", ZipEntry.DEFLATED, null));
+        try (RandomAccessFile file = new RandomAccessFile(zip, "rw")) {
+            file.seek(file.length() - 22 + 16);
+            long cdOffset = Integer.toUnsignedLong(Integer.reverseBytes(file.readInt()));
+            file.seek(cdOffset);
+            file.write(new byte[]{'X', 'X', 'X', 'X'});
+        }
+
+        assertRejected(zip, "Corrupt central directory at entry 0");
+    }
+
+    @Test
+    public void rejectsEntryWithBrokenLocalHeader() throws IOException {
+        File zip = zip(null, entry("a.bin", ZipEntry.DEFLATED, null));
+        try (RandomAccessFile file = new RandomAccessFile(zip, "rw")) {
+            file.seek(0);
+            file.write(new byte[]{'X', 'X', 'X', 'X'});
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(zip, "r")) {
+            ZipCentralDirectory cd = ZipCentralDirectory.read(file.getChannel());
+            cd.readFully(cd.find("a.bin"));
+            fail("Expected the broken local header to be refused");
+        } catch (IOException e) {
+            assertEquals("Bad local header for a.bin", e.getMessage());
+        }
+    }
+
+    private void assertRejected(File zip, String message) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(zip, "r")) {
+            ZipCentralDirectory.read(file.getChannel());
+            fail("Expected " + message);
+        } catch (IOException e) {
+            assertEquals(message, e.getMessage());
+        }
+    }
+
+    private static ZipEntry entry(String name, int method, byte[] extra) {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(method);
+        if (method == ZipEntry.STORED) {
+            entry.setSize(DATA.length);
+            entry.setCompressedSize(DATA.length);
+            entry.setCrc(crc(DATA));
+        }
+        if (extra != null) {
+            entry.setExtra(extra);
+        }
+        return entry;
+    }
+
+    private File zip(String comment, ZipEntry... entries) throws IOException {
+        File file = temp.newFile();
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            for (ZipEntry entry : entries) {
+                zip.putNextEntry(entry);
+                zip.write(DATA);
+                zip.closeEntry();
+            }
+            if (comment != null) {
+                zip.setComment(comment);
+            }
+        }
+        return file;
+    }
+
+    private File write(byte[] data) throws IOException {
+        File file = temp.newFile();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+        return file;
+    }
+
+    private static long crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+}